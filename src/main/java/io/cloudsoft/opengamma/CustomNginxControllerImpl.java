@@ -7,13 +7,12 @@ import org.slf4j.LoggerFactory;
 
 import brooklyn.entity.Effector;
 import brooklyn.entity.basic.SoftwareProcessDriverLifecycleEffectorTasks;
-import brooklyn.entity.proxy.nginx.NginxControllerImpl;
 import brooklyn.location.Location;
 import brooklyn.location.LocationSpec;
 import brooklyn.location.jclouds.JcloudsLocation;
 import brooklyn.management.ManagementContext;
 
-public class CustomNginxControllerImpl extends NginxControllerImpl {
+public class CustomNginxControllerImpl extends OpenGammaNginxControllerImpl {
 
 private static final String EXTERNAL_NETWORK_NAME_PREFIX = "CLPU0_IPAC";
 public static final Logger log = LoggerFactory.getLogger(CustomNginxControllerImpl.class);
@@ -30,7 +29,8 @@ public static final Logger log = LoggerFactory.getLogger(CustomNginxControllerIm
            "    server_tokens off;\n"+
            "    proxy_set_header Host $host;\n"+
            "    proxy_set_header X-Forwarded-For $proxy_add_x_forwarded_for;\n"+
-           "    proxy_set_header X-Real-IP $remote_addr;\n";
+           "    proxy_set_header X-Real-IP $remote_addr;\n"+
+           getCodeForOpenGammaProfile();
    } 
    
    private static final SoftwareProcessDriverLifecycleEffectorTasks LIFECYCLE_TASKS =
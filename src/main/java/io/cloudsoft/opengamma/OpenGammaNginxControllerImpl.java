@@ -0,0 +1,411 @@
+package io.cloudsoft.opengamma;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.proxy.nginx.NginxControllerImpl;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.event.feed.ssh.SshFeed;
+import brooklyn.event.feed.ssh.SshPollConfig;
+import brooklyn.event.feed.ssh.SshPollValue;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.management.Task;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.task.ScheduledTask;
+import brooklyn.util.task.Tasks;
+import brooklyn.util.text.Strings;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+
+/**
+ * Nginx load-balancer profile for OpenGamma: keeps pools of keepalive connections to the servers,
+ * gzips responses, caches the web UI's static bundles, and micro-caches (for about a second) idempotent
+ * reads of the REST masters, so bursts of identical GETs from many UI clients reach Jetty once.
+ * <p>
+ * Publishes the proxy cache hit ratio, and the fraction of upstream requests which reused a
+ * keepalive connection (estimated from the machine's TCP active opens, as nginx has no counter for it).
+ * <p>
+ * Once running, additions to the pool are coalesced: the config is rewritten and nginx reloaded
+ * {@link #RELOAD_COALESCE_WINDOW} after the first addition, and at most once per {@link #MIN_RELOAD_INTERVAL},
+ * as each reload starts new workers, dropping keepalive connections. Removals are applied at once (with any
+ * pending additions), as a server being drained or stopped must stop getting requests. Members join the pool only once
+ * they have been up for {@link #MEMBER_READY_AFTER}, so servers which flap while starting do not cause reloads.
+ */
+public class OpenGammaNginxControllerImpl extends NginxControllerImpl {
+
+    private static final Logger log = LoggerFactory.getLogger(OpenGammaNginxControllerImpl.class);
+
+    public static final ConfigKey<Integer> UPSTREAM_KEEPALIVE = ConfigKeys.newIntegerConfigKey(
+            "opengamma.nginx.upstream.keepalive", "Idle keepalive connections each worker keeps to the servers; 0 for none", 32);
+
+    public static final ConfigKey<Boolean> GZIP = ConfigKeys.newBooleanConfigKey(
+            "opengamma.nginx.gzip", "Whether to gzip text, JavaScript, CSS and JSON responses", true);
+
+    public static final ConfigKey<String> STATIC_PATH_PATTERN = ConfigKeys.newStringConfigKey(
+            "opengamma.nginx.static.pattern", "Regular expression (nginx, case-insensitive) matching the web UI's static resources",
+            "^/(bundles|prototype|scripts|styles|images)/|\\.(js|css|png|gif|jpg|ico|svg|woff|ttf)$");
+
+    public static final ConfigKey<Duration> STATIC_CACHE_TTL = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.nginx.static.ttl", "How long static resources are served from the cache; zero to not cache them", Duration.ONE_HOUR);
+
+    public static final ConfigKey<String> STATIC_CACHE_SIZE = ConfigKeys.newStringConfigKey(
+            "opengamma.nginx.static.maxSize", "Maximum size on disk of the static resource cache (nginx size, e.g. 256m)", "256m");
+
+    public static final ConfigKey<String> MICROCACHE_PATH_PATTERN = ConfigKeys.newStringConfigKey(
+            "opengamma.nginx.microcache.pattern", "Regular expression (nginx) matching the REST reads which may be micro-cached",
+            "^/jax/(securities|positions|portfolios|holidays|regions|exchanges|configs|timeseries|conventions)");
+
+    public static final ConfigKey<Duration> MICROCACHE_TTL = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.nginx.microcache.ttl", "How long REST reads are served from the cache; zero to not cache them", Duration.ONE_SECOND);
+
+    public static final AttributeSensor<Double> CACHE_HIT_RATIO =
+            new BasicAttributeSensor<Double>(Double.class, "proxy.cache.hitRatio", "Fraction of cacheable requests served from the proxy cache (since the last poll)");
+
+    public static final AttributeSensor<Double> UPSTREAM_CONNECTION_REUSE =
+            new BasicAttributeSensor<Double>(Double.class, "proxy.upstream.connectionReuse", "Estimated fraction of requests to the servers " +
+                    "which reused a keepalive connection (since the last poll)");
+
+    public static final ConfigKey<Duration> RELOAD_COALESCE_WINDOW = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.nginx.reload.coalesceWindow", "Time after a server pool change during which further changes are " +
+            "batched into the same reload; zero to reload on every change", Duration.seconds(5));
+
+    public static final ConfigKey<Duration> MIN_RELOAD_INTERVAL = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.nginx.reload.minInterval", "Least time between reloads caused by server pool changes", Duration.THIRTY_SECONDS);
+
+    public static final ConfigKey<Duration> MEMBER_READY_AFTER = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.nginx.member.readyAfter", "How long a member must have been up before it is added to the pool", Duration.TEN_SECONDS);
+
+    public static final AttributeSensor<Integer> RELOAD_COUNT =
+            new BasicAttributeSensor<Integer>(Integer.class, "proxy.reload.count", "Number of times nginx has been reloaded");
+
+    public static final AttributeSensor<Long> RELOAD_DURATION =
+            new BasicAttributeSensor<Long>(Long.class, "proxy.reload.durationMillis", "Time taken by the last reload, in millis");
+
+    public static final AttributeSensor<Integer> RECONFIGURATIONS_COALESCED =
+            new BasicAttributeSensor<Integer>(Integer.class, "proxy.reload.coalesced", "Number of server pool changes applied by an already-pending reload");
+
+    /** marks where the OpenGamma locations go in each server block, once the upstream they proxy to is known */
+    private static final String LOCATIONS_MARKER = "#OPENGAMMA_LOCATIONS#";
+    private static final String CACHE_STATUS_LOG = "logs/cache-status.log";
+
+    private SshFeed edgeFeed;
+
+    private final Object reloadMutex = new Object();
+    private Task<?> pendingReload;
+    private long lastReload;
+    /** ids of members to when they were first seen up (since last being down) */
+    private final Map<String,Long> membersUpSince = Maps.newConcurrentMap();
+    private final Map<String,Task<?>> pendingMembers = Maps.newConcurrentMap();
+    /** set while a member is being removed from the pool, so the config is rewritten and reloaded at once */
+    private boolean removingMember;
+
+    @Override
+    protected String getCodeForServerConfig() {
+        return super.getCodeForServerConfig() + getCodeForOpenGammaProfile();
+    }
+
+    /** server-level directives of the profile */
+    protected String getCodeForOpenGammaProfile() {
+        StringBuilder config = new StringBuilder();
+        if (getConfig(GZIP)) {
+            config.append("    gzip on;\n")
+                .append("    gzip_comp_level 5;\n")
+                .append("    gzip_min_length 1024;\n")
+                .append("    gzip_proxied any;\n")
+                .append("    gzip_vary on;\n")
+                .append("    gzip_types text/plain text/css text/xml text/javascript application/javascript application/x-javascript application/json application/xml;\n");
+        }
+        if (getConfig(UPSTREAM_KEEPALIVE) > 0) {
+            // keepalive to upstreams needs HTTP/1.1 without the client's Connection header
+            config.append("    proxy_http_version 1.1;\n")
+                .append("    proxy_set_header Connection \"\";\n");
+        }
+        config.append("    access_log logs/access.log;\n")
+            .append("    access_log "+CACHE_STATUS_LOG+" cachestatus;\n")
+            .append("    "+LOCATIONS_MARKER+"\n");
+        return config.toString();
+    }
+
+    @Override
+    public String getConfigFile() {
+        String config = super.getConfigFile();
+        config = config.replaceFirst("http \\{\n", Matcher.quoteReplacement("http {\n"+getCodeForHttpConfig()));
+        int keepalive = getConfig(UPSTREAM_KEEPALIVE);
+        if (keepalive > 0) {
+            config = config.replaceAll("(upstream\\s+\\S+\\s*\\{[^}]*?)(\\s*)\\}", "$1    keepalive "+keepalive+";$2}");
+        }
+        StringBuilder result = new StringBuilder();
+        int from = 0, marker;
+        while ((marker = config.indexOf(LOCATIONS_MARKER, from)) >= 0) {
+            result.append(config, from, marker);
+            Matcher proxyPass = Pattern.compile("proxy_pass\\s+([^;]+);").matcher(config);
+            // servers without an upstream (e.g. an empty pool) just return errors; nothing to cache
+            if (proxyPass.find(marker)) result.append(getCodeForLocations(proxyPass.group(1).trim()));
+            from = marker + LOCATIONS_MARKER.length();
+        }
+        result.append(config.substring(from));
+        return result.toString();
+    }
+
+    /** http-level directives of the profile */
+    protected String getCodeForHttpConfig() {
+        String cacheDir = getDriver().getRunDir()+"/cache";
+        return "  log_format cachestatus '$upstream_cache_status';\n"+
+            "  proxy_cache_path "+cacheDir+"/static levels=1:2 keys_zone=og_static:10m max_size="+getConfig(STATIC_CACHE_SIZE)+" inactive=1d;\n"+
+            "  proxy_cache_path "+cacheDir+"/micro levels=1:2 keys_zone=og_micro:10m max_size=64m inactive=1m;\n";
+    }
+
+    /** locations, ahead of the default one, caching what can be cached from the given upstream */
+    protected String getCodeForLocations(String upstream) {
+        StringBuilder config = new StringBuilder();
+        long staticTtl = getConfig(STATIC_CACHE_TTL).toSeconds();
+        if (staticTtl > 0) {
+            config.append("location ~* "+getConfig(STATIC_PATH_PATTERN)+" {\n")
+                .append("      proxy_pass "+upstream+";\n")
+                .append("      proxy_cache og_static;\n")
+                .append("      proxy_cache_valid 200 301 302 "+staticTtl+"s;\n")
+                .append("      proxy_ignore_headers Cache-Control Expires Set-Cookie;\n")
+                .append("      add_header X-Cache-Status $upstream_cache_status;\n")
+                .append("    }\n    ");
+        }
+        long microTtl = getConfig(MICROCACHE_TTL).toMilliseconds();
+        if (microTtl > 0) {
+            config.append("location ~ "+getConfig(MICROCACHE_PATH_PATTERN)+" {\n")
+                .append("      proxy_pass "+upstream+";\n")
+                .append("      proxy_cache og_micro;\n")
+                .append("      proxy_cache_key \"$scheme$request_method$host$request_uri$http_accept\";\n")
+                .append("      proxy_cache_valid 200 "+Math.max(1, microTtl / 1000)+"s;\n")
+                // one request per key goes through while the entry is refreshed; the rest get the previous value
+                .append("      proxy_cache_lock on;\n")
+                .append("      proxy_cache_use_stale updating;\n")
+                .append("      add_header X-Cache-Status $upstream_cache_status;\n")
+                .append("    }\n    ");
+        }
+        return config.toString();
+    }
+
+    @Override
+    protected void connectSensors() {
+        super.connectSensors();
+        SshMachineLocation machine = (SshMachineLocation) Iterables.find(getLocations(), Predicates.instanceOf(SshMachineLocation.class), null);
+        if (machine == null) return;
+        edgeFeed = SshFeed.builder()
+                .entity(this)
+                .machine(machine)
+                .period(Duration.TEN_SECONDS)
+                .poll(new SshPollConfig<Double>(CACHE_HIT_RATIO)
+                        .command(getEdgeStatisticsCommand())
+                        .onSuccess(new EdgeStatisticsParser()))
+                .build();
+    }
+
+    @Override
+    protected void disconnectSensors() {
+        super.disconnectSensors();
+        if (edgeFeed != null) edgeFeed.stop();
+        synchronized (reloadMutex) {
+            if (pendingReload != null) pendingReload.cancel(true);
+            pendingReload = null;
+            for (Task<?> pending : pendingMembers.values()) {
+                pending.cancel(true);
+            }
+            pendingMembers.clear();
+        }
+    }
+
+    @Override
+    protected boolean belongsInServerPool(final Entity member) {
+        if (!super.belongsInServerPool(member)) {
+            membersUpSince.remove(member.getId());
+            return false;
+        }
+        long readyAfter = getConfig(MEMBER_READY_AFTER).toMilliseconds();
+        if (readyAfter <= 0) return true;
+        long now = System.currentTimeMillis();
+        Long upSince = membersUpSince.get(member.getId());
+        if (upSince == null) {
+            membersUpSince.put(member.getId(), now);
+            upSince = now;
+        }
+        long remaining = upSince + readyAfter - now;
+        if (remaining <= 0) return true;
+        synchronized (reloadMutex) {
+            if (!pendingMembers.containsKey(member.getId())) {
+                log.debug("{} deferring adding {} to the pool for {}ms, until it has been up for {}", new Object[] {this, member, remaining, getConfig(MEMBER_READY_AFTER)});
+                pendingMembers.put(member.getId(), scheduleOnce("Adding "+member+" to the pool", remaining, new Runnable() {
+                    public void run() {
+                        pendingMembers.remove(member.getId());
+                        try {
+                            onServerPoolMemberChanged(member);
+                        } catch (Exception e) {
+                            Exceptions.propagateIfFatal(e);
+                            log.warn("Problem adding "+member+" to the pool of "+OpenGammaNginxControllerImpl.this+": "+e, e);
+                        }
+                    }
+                }));
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected synchronized void onServerPoolMemberChanged(Entity member) {
+        Map<Entity,String> targets = getAttribute(SERVER_POOL_TARGETS);
+        removingMember = targets != null && targets.containsKey(member) && !super.belongsInServerPool(member);
+        try {
+            super.onServerPoolMemberChanged(member);
+        } finally {
+            removingMember = false;
+        }
+    }
+
+    /**
+     * rewrites the config at once while starting, or when a member is removed (superseding any coalesced reload,
+     * so the reload which follows applies it); otherwise, once running, a coalesced reload does so shortly
+     */
+    @Override
+    protected void reconfigureService() {
+        long window = getConfig(RELOAD_COALESCE_WINDOW).toMilliseconds();
+        if (window <= 0 || !Boolean.TRUE.equals(getAttribute(SERVICE_UP))) {
+            super.reconfigureService();
+            return;
+        }
+        if (removingMember) {
+            synchronized (reloadMutex) {
+                if (pendingReload != null) {
+                    pendingReload.cancel(false);
+                    pendingReload = null;
+                }
+            }
+            log.debug("{} reconfiguring at once, as a member is leaving the pool", this);
+            super.reconfigureService();
+            return;
+        }
+        synchronized (reloadMutex) {
+            if (pendingReload != null) {
+                Integer coalesced = getAttribute(RECONFIGURATIONS_COALESCED);
+                setAttribute(RECONFIGURATIONS_COALESCED, (coalesced == null ? 0 : coalesced) + 1);
+                return;
+            }
+            long delay = Math.max(window, lastReload + getConfig(MIN_RELOAD_INTERVAL).toMilliseconds() - System.currentTimeMillis());
+            pendingReload = scheduleOnce("Reloading after server pool changes", delay, new Runnable() {
+                public void run() {
+                    try {
+                        reconfigureAndReload();
+                    } catch (Exception e) {
+                        Exceptions.propagateIfFatal(e);
+                        log.warn("Problem reloading "+OpenGammaNginxControllerImpl.this+" after server pool changes: "+e, e);
+                    }
+                }
+            });
+        }
+    }
+
+    /** reloads now, unless a coalesced reload (which will pick up the latest config) is pending */
+    @Override
+    public void reload() {
+        synchronized (reloadMutex) {
+            if (pendingReload != null) {
+                log.debug("{} not reloading; coalesced reload pending", this);
+                return;
+            }
+        }
+        timedReload();
+    }
+
+    protected void reconfigureAndReload() {
+        synchronized (reloadMutex) {
+            pendingReload = null;
+        }
+        // as AbstractControllerImpl.update, so the pool is not changed while the config is written
+        synchronized (this) {
+            super.reconfigureService();
+        }
+        timedReload();
+    }
+
+    private void timedReload() {
+        long start = System.currentTimeMillis();
+        super.reload();
+        long end = System.currentTimeMillis();
+        synchronized (reloadMutex) {
+            lastReload = end;
+        }
+        Integer count = getAttribute(RELOAD_COUNT);
+        setAttribute(RELOAD_COUNT, (count == null ? 0 : count) + 1);
+        setAttribute(RELOAD_DURATION, end - start);
+    }
+
+    /** runs the job once, after the delay, as a task in this entity's execution context */
+    private Task<?> scheduleOnce(final String description, long delayMillis, final Runnable job) {
+        Callable<Task<?>> taskFactory = new Callable<Task<?>>() {
+            @Override
+            public Task<?> call() {
+                return Tasks.<Void>builder().name(description).body(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        job.run();
+                        return null;
+                    }
+                }).build();
+            }
+        };
+        return Entities.submit(this, new ScheduledTask(MutableMap.of("displayName", description,
+                "delay", Duration.millis(delayMillis), "maxIterations", 1), taskFactory));
+    }
+
+    /**
+     * Prints the counts of each cache status logged since the previous run (tracking its position in the log),
+     * followed by the machine's total TCP active opens (almost all of which are nginx connecting to servers).
+     */
+    protected String getEdgeStatisticsCommand() {
+        String log = getDriver().getRunDir()+"/"+CACHE_STATUS_LOG;
+        String position = log+".position";
+        return "size=`stat -c %s "+log+" 2>/dev/null || echo 0`; " +
+                "pos=`cat "+position+" 2>/dev/null || echo 0`; " +
+                "if [ $size -lt $pos ]; then pos=0; fi; " +
+                "tail -c +$((pos+1)) "+log+" 2>/dev/null | head -c $((size-pos)) | " +
+                "awk '{ n[$1]++ } END { printf \"%d %d %d \", n[\"HIT\"]+n[\"STALE\"]+n[\"UPDATING\"], n[\"MISS\"]+n[\"EXPIRED\"], n[\"HIT\"]+n[\"STALE\"]+n[\"UPDATING\"]+n[\"MISS\"]+n[\"EXPIRED\"]+n[\"BYPASS\"]+n[\"-\"]+0 }'; " +
+                "echo $size > "+position+"; " +
+                "netstat -s -t 2>/dev/null | awk '/active connection(s)? openings/ { print $1; found=1 } END { if (!found) print -1 }'";
+    }
+
+    /** sets {@link #UPSTREAM_CONNECTION_REUSE} and returns the hit ratio, from the output of {@link #getEdgeStatisticsCommand()} */
+    private class EdgeStatisticsParser implements Function<SshPollValue,Double> {
+        private long lastOpens = -1;
+
+        @Override
+        public Double apply(SshPollValue input) {
+            String[] fields = Strings.isBlank(input.getStdout()) ? new String[0] : input.getStdout().trim().split("\\s+");
+            if (fields.length < 4) {
+                log.debug("Unexpected edge statistics from {}: {}", OpenGammaNginxControllerImpl.this, input.getStdout());
+                return null;
+            }
+            long hits = Long.parseLong(fields[0]), misses = Long.parseLong(fields[1]), requests = Long.parseLong(fields[2]);
+            long opens = Long.parseLong(fields[3]);
+
+            // everything but hits went to a server
+            long upstreamRequests = requests - hits;
+            if (lastOpens >= 0 && opens >= lastOpens && upstreamRequests > 0) {
+                setAttribute(UPSTREAM_CONNECTION_REUSE, Math.max(0d, 1d - (double) (opens - lastOpens) / upstreamRequests));
+            }
+            lastOpens = opens;
+            return hits + misses > 0 ? (double) hits / (hits + misses) : null;
+        }
+    }
+}
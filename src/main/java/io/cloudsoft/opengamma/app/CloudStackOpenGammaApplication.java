@@ -6,6 +6,7 @@ import io.cloudsoft.networking.cloudstack.legacy.LegacySubnetTier;
 import io.cloudsoft.networking.cloudstack.loadbalancer.CloudStackLoadBalancer;
 import io.cloudsoft.networking.subnet.SubnetTier;
 import io.cloudsoft.opengamma.cluster.OpenGammaClusterFactory;
+import io.cloudsoft.opengamma.server.HardwareProfile;
 import io.cloudsoft.opengamma.server.OpenGammaMonitoringAggregation;
 
 import java.util.ArrayList;
@@ -36,7 +37,6 @@ import brooklyn.event.SensorEventListener;
 import brooklyn.launcher.BrooklynLauncher;
 import brooklyn.location.basic.Locations;
 import brooklyn.location.basic.PortRanges;
-import brooklyn.location.jclouds.JcloudsLocationConfig;
 import brooklyn.util.CommandLineUtil;
 import brooklyn.util.collections.MutableMap;
 import brooklyn.util.net.Cidr;
@@ -78,7 +78,7 @@ public class CloudStackOpenGammaApplication extends LegacyAbstractSubnetApp impl
         final ActiveMQBroker broker = backend.addChild(EntitySpec.create(ActiveMQBroker.class));
         final PostgreSqlNode database = backend.addChild(PostgreSqlSpecs.spec()
                 // make it a reasonably big DB instance
-                .configure(SoftwareProcess.PROVISIONING_PROPERTIES.subKey(JcloudsLocationConfig.MIN_RAM.getName()), "8192")
+                .configure(SoftwareProcess.PROVISIONING_PROPERTIES, HardwareProfile.parse(getConfig(DATABASE_HARDWARE_PROFILE)).toProvisioningProperties())
                 .configure(PostgreSqlNode.CREATION_SCRIPT_URL, "classpath:/io/cloudsoft/opengamma/config/create-brooklyn-db.sql")
                 .configure(PostgreSqlNode.DISCONNECT_ON_STOP, true));
         logNewSensorValuesOn(broker,
@@ -31,4 +31,105 @@ public interface ClusteredOpenGammaApplication extends StartableApplication {
     public static final ConfigKey<Double> VIEWS_PER_SERVER_SCALING_TARGET = ConfigKeys.newDoubleConfigKey(
             "opengamma.autoscaling.viewsPerServer.target", "Number of views per server to trigger scaling up", 1.0d);
 
+    @CatalogConfig(label="Self-Tuning Scaling Target", priority=3.4)
+    public static final ConfigKey<Boolean> ENABLE_SELF_TUNING_SCALING = ConfigKeys.newBooleanConfigKey(
+            "opengamma.autoscaling.viewsPerServer.selfTuning", "Whether to learn the views-per-server target from the CPU " +
+            "used by view processes, starting from the configured target", false);
+
+    public static final ConfigKey<Double> TARGET_CPU_UTILISATION = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.targetCpu", "CPU utilisation (0-1) at which servers should run when the target is self-tuning", 0.7d);
+
+    @CatalogConfig(label="Cycle-Time SLA (ms)", priority=3.5)
+    public static final ConfigKey<Double> CYCLE_TIME_SLA = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.cycleTime.p95.sla", "If set, scale on the cycle-weighted 95th percentile of per-view mean cycle times (millis, mean across servers) " +
+            "instead of views per server, adding servers above this and removing them below half of it");
+
+    @CatalogConfig(label="Server Hardware", priority=2.3)
+    public static final ConfigKey<String> SERVER_HARDWARE_PROFILE = ConfigKeys.newStringConfigKey(
+            "opengamma.server.hardwareProfile", "Hardware for OpenGamma servers (e.g. cores=4,ram=16384,disk=ssd)", "cores=2,ram=8192");
+
+    @CatalogConfig(label="Database Hardware", priority=2.4)
+    public static final ConfigKey<String> DATABASE_HARDWARE_PROFILE = ConfigKeys.newStringConfigKey(
+            "opengamma.database.hardwareProfile", "Hardware for the database server (e.g. cores=4,ram=16384,disk=ssd)", "ram=8192");
+
+    public static final ConfigKey<Double> GC_SCALE_OUT_OVERHEAD = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.gc.scaleOut", "If set, mean GC millis per second across the cluster above which a server is added");
+
+    public static final ConfigKey<Double> GC_RECYCLE_OVERHEAD = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.gc.recycle", "If set, GC millis per second of a server, with a nearly full old generation, above which it is restarted");
+
+    public static final ConfigKey<Boolean> ENABLE_VERTICAL_SCALING = ConfigKeys.newBooleanConfigKey(
+            "opengamma.autoscaling.vertical", "Whether to move servers whose views are memory-bound (high heap, low CPU) " +
+            "to larger instances, and idle ones to smaller instances; servers' heaps are then sized to their RAM", false);
+
+    @CatalogConfig(label="Load Generator Profile", priority=5)
+    public static final ConfigKey<String> LOAD_GENERATOR_PROFILE = ConfigKeys.newStringConfigKey(
+            "opengamma.load.generator.profile", "If set, adds a load generator driving the application's ROOT_URL " +
+            "with this ramp of open views (comma-separated time=views steps, e.g. \"0s=1, 5m=10, 10m=0\")");
+
+    @CatalogConfig(label="Scaling Schedule", priority=3.2)
+    public static final ConfigKey<String> SCALING_SCHEDULE = ConfigKeys.newStringConfigKey(
+            "opengamma.autoscaling.schedule", "Weekly calendar of minimum cluster sizes per region, " +
+            "e.g. \"MON-FRI 07:15 min=4; MON-FRI 18:30 min=2\" (entries may add region=GLOB)");
+
+    public static final ConfigKey<String> SCALING_SCHEDULE_TIME_ZONE = ConfigKeys.newStringConfigKey(
+            "opengamma.autoscaling.schedule.timeZone", "Time zone for the scaling schedule", "Europe/London");
+
+    @CatalogConfig(label="Predictive Scaling", priority=3.3)
+    public static final ConfigKey<Boolean> ENABLE_PREDICTIVE_SCALING = ConfigKeys.newBooleanConfigKey(
+            "opengamma.autoscaling.predictive", "Whether to learn a weekly profile of view processes and pre-scale ahead of it", false);
+
+    public static final ConfigKey<String> PREDICTIVE_SCALING_HISTORY_DIR = ConfigKeys.newStringConfigKey(
+            "opengamma.autoscaling.predictive.historyDir", "Directory on the management node in which learned view profiles are saved");
+
+    @CatalogConfig(label="Standalone Market Data Server", priority=6)
+    public static final ConfigKey<Boolean> ENABLE_MARKET_DATA_SERVER = ConfigKeys.newBooleanConfigKey(
+            "opengamma.marketdata.standalone", "Whether to run a single market-data server publishing ticks to all OpenGamma servers, " +
+            "rather than each server simulating live data itself", false);
+
+    public static final ConfigKey<Integer> MARKET_DATA_UNIVERSE_SIZE = ConfigKeys.newIntegerConfigKey(
+            "opengamma.marketdata.standalone.universeSize", "Number of tickers simulated by the market-data server (default as per the example data)");
+
+    public static final ConfigKey<Integer> MARKET_DATA_MAX_MILLIS_BETWEEN_TICKS = ConfigKeys.newIntegerConfigKey(
+            "opengamma.marketdata.standalone.maxMillisBetweenTicks", "Maximum interval between ticks from the market-data server (lower for a higher tick rate)");
+
+    @CatalogConfig(label="Cache Mode", priority=4.1)
+    public static final ConfigKey<String> CACHE_MODE = ConfigKeys.newStringConfigKey(
+            "opengamma.cache.mode", "'private' for per-server caches, or 'replicated' to share cache entries " +
+            "between the servers of each cluster", "private");
+
+    @CatalogConfig(label="Sensor History", priority=7)
+    public static final ConfigKey<Boolean> ENABLE_SENSOR_HISTORY = ConfigKeys.newBooleanConfigKey(
+            "opengamma.history", "Whether to record the history of key sensors across the application, queryable by effector, " +
+            "for capacity planning", false);
+
+    public static final ConfigKey<String> SENSOR_HISTORY_DIR = ConfigKeys.newStringConfigKey(
+            "opengamma.history.dir", "Directory on the management node in which sensor history is kept");
+
+    @CatalogConfig(label="Prometheus Metrics Port", priority=7.1)
+    public static final ConfigKey<Integer> METRICS_PROMETHEUS_PORT = ConfigKeys.newIntegerConfigKey(
+            "opengamma.metrics.prometheus.port", "If set, serves the application's KPIs in Prometheus format at /metrics on this port of the management node");
+
+    @CatalogConfig(label="Graphite Endpoint", priority=7.2)
+    public static final ConfigKey<String> METRICS_GRAPHITE = ConfigKeys.newStringConfigKey(
+            "opengamma.metrics.graphite", "If set, pushes the application's KPIs to Graphite at this host:port");
+
+    public static final ConfigKey<Boolean> ENABLE_STARTUP_ACCELERATION = ConfigKeys.newBooleanConfigKey(
+            "opengamma.server.startupAcceleration", "Whether servers keep a precomputed classpath and class-data-sharing archive " +
+            "to start faster (see OpenGammaServer.STARTUP_ACCELERATION)", false);
+
+    public static final ConfigKey<Boolean> ENABLE_DATABASE_SNAPSHOT = ConfigKeys.newBooleanConfigKey(
+            "opengamma.server.database.snapshot", "Whether the database is restored from a snapshot taken by an earlier deployment " +
+            "of the same OpenGamma version, rather than populated from scratch (see OpenGammaServer.DATABASE_SNAPSHOT)", false);
+
+    public static final ConfigKey<Boolean> ENABLE_HTS_LOADER = ConfigKeys.newBooleanConfigKey(
+            "opengamma.hts.loader", "Whether to include an entity with an effector for bulk-loading historical time series into the database",false);
+
+    public static final ConfigKey<Boolean> ENABLE_ENDPOINT_PROBES = ConfigKeys.newBooleanConfigKey(
+            "opengamma.probes", "Whether each server's REST endpoints are probed directly, publishing per-endpoint latency", true);
+
+    public static final ConfigKey<Boolean> ENABLE_NGINX_EDGE_PROFILE = ConfigKeys.newBooleanConfigKey(
+            "opengamma.nginx.edgeProfile", "Whether the load balancer gzips, caches static resources and REST reads, " +
+            "and keeps connections alive to the servers (see OpenGammaNginxControllerImpl); REST reads may then be up to a second stale", false);
+
 }
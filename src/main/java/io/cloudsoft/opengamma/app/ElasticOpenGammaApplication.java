@@ -2,8 +2,16 @@ package io.cloudsoft.opengamma.app;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import io.cloudsoft.opengamma.CustomNginxControllerImpl;
+import io.cloudsoft.opengamma.OpenGammaNginxControllerImpl;
 import io.cloudsoft.opengamma.cluster.OpenGammaClusterFactory;
+import io.cloudsoft.opengamma.history.SensorHistory;
+import io.cloudsoft.opengamma.hts.HistoricalTimeSeriesLoader;
+import io.cloudsoft.opengamma.load.OpenGammaLoadGenerator;
+import io.cloudsoft.opengamma.marketdata.OpenGammaMarketDataServer;
+import io.cloudsoft.opengamma.metrics.MetricsExporter;
+import io.cloudsoft.opengamma.server.HardwareProfile;
 import io.cloudsoft.opengamma.server.OpenGammaMonitoringAggregation;
+import io.cloudsoft.opengamma.server.OpenGammaServer;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -20,7 +28,6 @@ import brooklyn.entity.Entity;
 import brooklyn.entity.basic.AbstractApplication;
 import brooklyn.entity.basic.BasicStartable;
 import brooklyn.entity.basic.Entities;
-import brooklyn.entity.basic.EntityFactory;
 import brooklyn.entity.basic.SoftwareProcess;
 import brooklyn.entity.basic.StartableApplication;
 import brooklyn.entity.database.postgresql.PostgreSqlNode;
@@ -41,9 +48,9 @@ import brooklyn.location.Location;
 import brooklyn.location.basic.LocalhostMachineProvisioningLocation;
 import brooklyn.location.basic.Locations;
 import brooklyn.location.basic.PortRanges;
-import brooklyn.location.jclouds.JcloudsLocationConfig;
 import brooklyn.util.CommandLineUtil;
 import brooklyn.util.collections.MutableMap;
+import brooklyn.util.text.Strings;
 
 import com.google.common.base.Functions;
 import com.google.common.collect.ImmutableList;
@@ -72,6 +79,10 @@ public class ElasticOpenGammaApplication extends AbstractApplication implements
         if (!allLocations.isEmpty() && Iterables.get(allLocations, 0).getDisplayName().startsWith("interoute-")) {
             EntityTypeRegistry typeRegistry = getManagementContext().getEntityManager().getEntityTypeRegistry();
             typeRegistry.registerImplementation(NginxController.class, CustomNginxControllerImpl.class);
+        } else if (getConfig(ENABLE_NGINX_EDGE_PROFILE)) {
+            // CustomNginxControllerImpl includes this profile
+            EntityTypeRegistry typeRegistry = getManagementContext().getEntityManager().getEntityTypeRegistry();
+            typeRegistry.registerImplementation(NginxController.class, OpenGammaNginxControllerImpl.class);
         }
         
         StringConfigMap config = getManagementContext().getConfig();
@@ -83,14 +94,25 @@ public class ElasticOpenGammaApplication extends AbstractApplication implements
         final ActiveMQBroker broker = backend.addChild(EntitySpec.create(ActiveMQBroker.class));
         final PostgreSqlNode database = backend.addChild(PostgreSqlSpecs.spec()
                 // make it a reasonably big DB instance
-                .configure(SoftwareProcess.PROVISIONING_PROPERTIES.subKey(JcloudsLocationConfig.MIN_RAM.getName()), "8192")
+                .configure(SoftwareProcess.PROVISIONING_PROPERTIES, HardwareProfile.parse(getConfig(DATABASE_HARDWARE_PROFILE)).toProvisioningProperties())
                 .configure(PostgreSqlNode.CREATION_SCRIPT_URL, "classpath:/io/cloudsoft/opengamma/config/create-brooklyn-db.sql")
                 .configure(PostgreSqlNode.DISCONNECT_ON_STOP, true));
 
         // Now add the server tier, either multi-region (fabric) or fixed single-region (cluster)
 
         // factory for creating the OG server cluster, passed to fabric, or used directly here to make a cluster   
-        EntityFactory<ControlledDynamicWebAppCluster> ogWebClusterFactory = new OpenGammaClusterFactory(this, broker, database);
+        OpenGammaClusterFactory ogWebClusterFactory = new OpenGammaClusterFactory(this, broker, database);
+
+        // optionally a single market-data server publishing ticks for all servers, rather than each simulating its own
+        if (getConfig(ENABLE_MARKET_DATA_SERVER)) {
+            OpenGammaMarketDataServer marketData = backend.addChild(EntitySpec.create(OpenGammaMarketDataServer.class)
+                    .displayName("OpenGamma Market Data Server")
+                    .configure(OpenGammaServer.BROKER, broker)
+                    .configure(OpenGammaServer.DATABASE, database)
+                    .configure(OpenGammaMarketDataServer.UNIVERSE_SIZE, getConfig(MARKET_DATA_UNIVERSE_SIZE))
+                    .configure(OpenGammaMarketDataServer.MAX_MILLIS_BETWEEN_TICKS, getConfig(MARKET_DATA_MAX_MILLIS_BETWEEN_TICKS)));
+            ogWebClusterFactory.setMarketDataServer(marketData);
+        }
 
         // use fabric by default, unless no password for geoscaling is set
         String geoscalingPassword = config.getFirst("brooklyn.geoscaling.password");
@@ -134,6 +156,37 @@ public class ElasticOpenGammaApplication extends AbstractApplication implements
             addEnricher(SensorPropagatingEnricher.newInstanceListeningTo(ogWebCluster,  
                     WebAppServiceConstants.ROOT_URL));
         }
+
+        // optionally drive load at whatever ROOT_URL we end up publishing, for benchmarking scaling policies
+        String loadProfile = getConfig(LOAD_GENERATOR_PROFILE);
+        if (Strings.isNonBlank(loadProfile)) {
+            addChild(EntitySpec.create(OpenGammaLoadGenerator.class)
+                    .displayName("OpenGamma Load Generator")
+                    .configure(OpenGammaLoadGenerator.TARGET, this)
+                    .configure(OpenGammaLoadGenerator.LOAD_PROFILE, loadProfile));
+        }
+
+        // optionally record sensor history (servers, clusters, fabric and this application) for capacity planning
+        if (getConfig(ENABLE_SENSOR_HISTORY)) {
+            addChild(EntitySpec.create(SensorHistory.class)
+                    .displayName("OpenGamma Sensor History")
+                    .configure(SensorHistory.DIRECTORY, getConfig(SENSOR_HISTORY_DIR)));
+        }
+
+        // optionally an effector for bulk-loading real historical time series, beyond the example data
+        if (getConfig(ENABLE_HTS_LOADER)) {
+            addChild(EntitySpec.create(HistoricalTimeSeriesLoader.class)
+                    .displayName("OpenGamma Time-Series Loader")
+                    .configure(HistoricalTimeSeriesLoader.DATABASE, database));
+        }
+
+        // optionally export KPIs to external monitoring
+        if (getConfig(METRICS_PROMETHEUS_PORT) != null || Strings.isNonBlank(getConfig(METRICS_GRAPHITE))) {
+            addChild(EntitySpec.create(MetricsExporter.class)
+                    .displayName("OpenGamma Metrics Exporter")
+                    .configure(MetricsExporter.PROMETHEUS_PORT, getConfig(METRICS_PROMETHEUS_PORT))
+                    .configure(MetricsExporter.GRAPHITE_ENDPOINT, getConfig(METRICS_GRAPHITE)));
+        }
     }
 
     public static void main(String[] argv) {
@@ -0,0 +1,108 @@
+package io.cloudsoft.opengamma.cluster;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.basic.Attributes;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
+import brooklyn.management.Task;
+import brooklyn.policy.basic.AbstractPolicy;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.task.ScheduledTask;
+import brooklyn.util.task.Tasks;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Base for policies which act on a timer rather than on sensor events.
+ * <p>
+ * Jobs are run as {@link ScheduledTask}s in the entity's execution context, as feeds' polls are, rather than on a thread
+ * of the policy's own: they show in the entity's activity, and stop when the policy is destroyed. They start once the
+ * entity is up (policies are attached before it is managed), and are skipped while the policy is suspended.
+ */
+public abstract class AbstractPeriodicPolicy extends AbstractPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractPeriodicPolicy.class);
+
+    private final List<ScheduledTask> pending = Lists.newArrayList();
+    private final List<Task<?>> submitted = Lists.newArrayList();
+
+    public AbstractPeriodicPolicy(Map<String,?> flags) {
+        super(flags);
+    }
+
+    @Override
+    public void setEntity(EntityLocal entity) {
+        super.setEntity(entity);
+        subscribe(entity, Attributes.SERVICE_UP, new SensorEventListener<Boolean>() {
+            @Override
+            public void onEvent(SensorEvent<Boolean> event) {
+                if (Boolean.TRUE.equals(event.getValue())) submitPending();
+            }
+        });
+    }
+
+    /** as {@link #schedulePeriodically(String, Duration, Duration, Runnable)}, first running a period after the entity is up */
+    protected void schedulePeriodically(String description, Duration period, Runnable job) {
+        schedulePeriodically(description, period, period, job);
+    }
+
+    /**
+     * runs the job every period, the first time the given delay after the entity is up, while the policy is running;
+     * the description, e.g. "checking members", names the task and is used when logging a failure
+     */
+    protected void schedulePeriodically(final String description, Duration delay, Duration period, final Runnable job) {
+        Callable<Task<?>> taskFactory = new Callable<Task<?>>() {
+            @Override
+            public Task<?> call() {
+                return Tasks.<Void>builder().name(description).body(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        try {
+                            if (isRunning()) job.run();
+                        } catch (Exception e) {
+                            Exceptions.propagateIfFatal(e);
+                            LOG.warn("Problem "+description+" for "+AbstractPeriodicPolicy.this+" on "+entity+": "+e, e);
+                        }
+                        return null;
+                    }
+                }).build();
+            }
+        };
+        synchronized (pending) {
+            pending.add(new ScheduledTask(MutableMap.of("displayName", description, "delay", delay, "period", period), taskFactory));
+        }
+        if (Boolean.TRUE.equals(entity.getAttribute(Attributes.SERVICE_UP))) submitPending();
+    }
+
+    private void submitPending() {
+        synchronized (pending) {
+            if (isDestroyed()) return;
+            for (ScheduledTask task : pending) {
+                submitted.add(Entities.submit(entity, task));
+            }
+            pending.clear();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (pending) {
+            for (Task<?> task : submitted) {
+                task.cancel(true);
+            }
+            submitted.clear();
+            pending.clear();
+        }
+        super.destroy();
+    }
+}
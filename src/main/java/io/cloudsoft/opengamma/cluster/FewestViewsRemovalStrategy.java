@@ -0,0 +1,39 @@
+package io.cloudsoft.opengamma.cluster;
+
+import io.cloudsoft.opengamma.server.OpenGammaServer;
+
+import java.util.Collection;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.group.DynamicCluster;
+
+import com.google.common.base.Function;
+
+/**
+ * {@link DynamicCluster#REMOVAL_STRATEGY} choosing the member with the fewest active
+ * {@link OpenGammaServer#VIEW_PROCESSES_COUNT view processes} (preferring members not yet up),
+ * so scale-in disturbs as few users' views as possible and drains quickest.
+ */
+public class FewestViewsRemovalStrategy implements Function<Collection<Entity>, Entity> {
+
+    @Override
+    public Entity apply(Collection<Entity> members) {
+        Entity best = null;
+        int bestViews = Integer.MAX_VALUE;
+        for (Entity member : members) {
+            int views = getViews(member);
+            // ties go to the newest member, as the default strategy does
+            if (views <= bestViews) {
+                best = member;
+                bestViews = views;
+            }
+        }
+        return best;
+    }
+
+    private int getViews(Entity member) {
+        if (!Boolean.TRUE.equals(member.getAttribute(OpenGammaServer.SERVICE_UP))) return -1;
+        Integer views = member.getAttribute(OpenGammaServer.VIEW_PROCESSES_COUNT);
+        return views == null ? 0 : views;
+    }
+}
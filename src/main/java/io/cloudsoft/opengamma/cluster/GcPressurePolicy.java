@@ -0,0 +1,180 @@
+package io.cloudsoft.opengamma.cluster;
+
+import io.cloudsoft.opengamma.server.OpenGammaMonitoringAggregation;
+import io.cloudsoft.opengamma.server.OpenGammaServer;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.Entity;
+import brooklyn.entity.Group;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.entity.trait.Resizable;
+import brooklyn.entity.trait.Startable;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.policy.Policy;
+import brooklyn.policy.autoscaling.AutoScalerPolicy;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Acts on garbage-collection overhead ({@link OpenGammaServer#GC_PAUSE_TIME_PER_SECOND}), which stretches view cycles
+ * long before CPU or heap-used metrics look alarming.
+ * <p>
+ * When the cluster's mean overhead stays above {@link #SCALE_OUT_OVERHEAD} for {@link #SUSTAIN} checks,
+ * a server is added (up to {@link #MAX_SIZE}); load spread over more servers means less allocation on each.
+ * The added server is kept by raising the minimum size of the cluster's {@link AutoScalerPolicy} (published as
+ * {@link #GC_MIN_SIZE}, which {@link ScheduledScalingPolicy} also respects), until the overhead has been back below
+ * the threshold for {@link #SUSTAIN} checks.
+ * When one member's overhead stays above {@link #RECYCLE_OVERHEAD} while its old generation is still
+ * above {@link #RECYCLE_OLD_GEN} full after collection (i.e. it is leaking or fragmented, rather than busy),
+ * that member is restarted (draining its views first), provided another member is up to take its views.
+ * Either action is followed by {@link #COOLDOWN}, counted from when it completes; each threshold is off when unset.
+ */
+public class GcPressurePolicy extends AbstractPeriodicPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GcPressurePolicy.class);
+
+    @SetFromFlag("scaleOutOverhead")
+    public static final ConfigKey<Double> SCALE_OUT_OVERHEAD = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.gc.scaleOut", "Mean GC millis per second across the cluster above which a server is added; none if unset");
+
+    @SetFromFlag("recycleOverhead")
+    public static final ConfigKey<Double> RECYCLE_OVERHEAD = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.gc.recycle", "GC millis per second of a member above which it is restarted (if its old generation is also full); none if unset");
+
+    @SetFromFlag("recycleOldGen")
+    public static final ConfigKey<Double> RECYCLE_OLD_GEN = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.gc.recycle.oldGen", "Fraction of the old generation used after collection above which a member with high GC overhead is restarted", 0.8d);
+
+    @SetFromFlag("sustain")
+    public static final ConfigKey<Integer> SUSTAIN = ConfigKeys.newIntegerConfigKey(
+            "opengamma.autoscaling.gc.sustain", "Consecutive checks a threshold must be exceeded before acting", 3);
+
+    @SetFromFlag("maxSize")
+    public static final ConfigKey<Integer> MAX_SIZE = ConfigKeys.newIntegerConfigKey(
+            "opengamma.autoscaling.gc.maxSize", "Size beyond which servers are not added", Integer.MAX_VALUE);
+
+    @SetFromFlag("period")
+    public static final ConfigKey<Duration> PERIOD = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.autoscaling.gc.period", "How often GC overhead is checked", Duration.THIRTY_SECONDS);
+
+    @SetFromFlag("cooldown")
+    public static final ConfigKey<Duration> COOLDOWN = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.autoscaling.gc.cooldown", "Time after an action before another is considered", Duration.minutes(10));
+
+    @SetFromFlag("baseMinSize")
+    public static final ConfigKey<Integer> BASE_MIN_SIZE = ConfigKeys.newIntegerConfigKey(
+            "opengamma.autoscaling.gc.baseMinSize", "Autoscaler minimum size restored once GC pressure has eased", 1);
+
+    public static final AttributeSensor<Integer> GC_MIN_SIZE = new BasicAttributeSensor<Integer>(Integer.class,
+            "opengamma.autoscaling.gc.minSize", "Minimum cluster size held while GC overhead is high; null when not");
+
+    @SetFromFlag("autoscaler")
+    private AutoScalerPolicy autoscaler;
+
+    private long lastAction;
+    private int clusterExceeded;
+    private int clusterEased;
+    /** member id to consecutive checks over the recycle thresholds */
+    private final Map<String,Integer> membersExceeded = Maps.newHashMap();
+
+    public GcPressurePolicy() {
+        this(MutableMap.<String,Object>of());
+    }
+
+    public GcPressurePolicy(Map<String,?> flags) {
+        super(flags);
+    }
+
+    @Override
+    public void setEntity(EntityLocal entity) {
+        if (!(entity instanceof Group) || !(entity instanceof Resizable)) throw new IllegalArgumentException("Cannot attach "+this+" to non-resizable-group "+entity);
+        super.setEntity(entity);
+        schedulePeriodically("checking GC overhead", getConfig(PERIOD), new Runnable() {
+            public void run() {
+                check();
+            }
+        });
+    }
+
+    protected synchronized void check() {
+        int sustain = getConfig(SUSTAIN);
+        Double scaleOut = getConfig(SCALE_OUT_OVERHEAD);
+        Double recycle = getConfig(RECYCLE_OVERHEAD);
+
+        Double mean = entity.getAttribute(OpenGammaMonitoringAggregation.GC_PAUSE_TIME_PER_SECOND_PER_NODE);
+        clusterExceeded = scaleOut != null && mean != null && mean > scaleOut ? clusterExceeded + 1 : 0;
+        clusterEased = clusterExceeded == 0 ? clusterEased + 1 : 0;
+
+        Entity worst = null;
+        double worstOverhead = 0;
+        int up = 0;
+        for (Entity member : ((Group) entity).getMembers()) {
+            if (!Boolean.TRUE.equals(member.getAttribute(OpenGammaServer.SERVICE_UP))) continue;
+            up++;
+            Double overhead = member.getAttribute(OpenGammaServer.GC_PAUSE_TIME_PER_SECOND);
+            Double oldGen = member.getAttribute(OpenGammaServer.OLD_GEN_AFTER_GC);
+            Integer exceeded = membersExceeded.get(member.getId());
+            if (recycle != null && overhead != null && overhead > recycle && oldGen != null && oldGen > getConfig(RECYCLE_OLD_GEN)) {
+                exceeded = (exceeded == null ? 0 : exceeded) + 1;
+                membersExceeded.put(member.getId(), exceeded);
+                if (exceeded >= sustain && overhead > worstOverhead) {
+                    worst = member;
+                    worstOverhead = overhead;
+                }
+            } else {
+                membersExceeded.remove(member.getId());
+            }
+        }
+
+        if (System.currentTimeMillis() - lastAction < getConfig(COOLDOWN).toMilliseconds()) return;
+        // a member which will not recover on its own comes first; more servers would not help it
+        if (worst != null && up > 1) {
+            LOG.info("{} restarting {} (GC {}ms/s, old generation {} after collection)",
+                    new Object[] {this, worst, worstOverhead, worst.getAttribute(OpenGammaServer.OLD_GEN_AFTER_GC)});
+            membersExceeded.remove(worst.getId());
+            try {
+                // the restart drains the member's views first
+                Entities.invokeEffector(entity, worst, Startable.RESTART).getUnchecked();
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.warn("Problem restarting "+worst+" for "+this+": "+e);
+            } finally {
+                lastAction = System.currentTimeMillis();
+            }
+        } else if (clusterExceeded >= sustain) {
+            Integer size = ((Resizable) entity).getCurrentSize();
+            if (size == null || size >= getConfig(MAX_SIZE)) return;
+            LOG.info("{} growing {} from {} (mean GC {}ms/s above {})", new Object[] {this, entity, size, mean, scaleOut});
+            clusterExceeded = 0;
+            // through the autoscaler's minimum, as its own metric (e.g. views per server) would otherwise shrink it straight back
+            entity.setAttribute(GC_MIN_SIZE, size + 1);
+            if (autoscaler != null) autoscaler.setMinPoolSize(size + 1);
+            ((Resizable) entity).resize(size + 1);
+            lastAction = System.currentTimeMillis();
+        } else if (clusterEased >= sustain && entity.getAttribute(GC_MIN_SIZE) != null) {
+            LOG.info("{} releasing minimum size {} of {} (mean GC {}ms/s)", new Object[] {this, entity.getAttribute(GC_MIN_SIZE), entity, mean});
+            entity.setAttribute(GC_MIN_SIZE, null);
+            // a scheduled scaling policy sets the minimum itself on its next check
+            if (autoscaler != null && !hasScheduledScaling()) autoscaler.setMinPoolSize(getConfig(BASE_MIN_SIZE));
+        }
+    }
+
+    private boolean hasScheduledScaling() {
+        for (Policy policy : entity.getPolicies()) {
+            if (policy instanceof ScheduledScalingPolicy) return true;
+        }
+        return false;
+    }
+}
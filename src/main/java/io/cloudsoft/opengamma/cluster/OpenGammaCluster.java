@@ -0,0 +1,82 @@
+package io.cloudsoft.opengamma.cluster;
+
+import java.util.Map;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.annotation.Effector;
+import brooklyn.entity.annotation.EffectorParam;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.proxying.ImplementedBy;
+import brooklyn.entity.webapp.ControlledDynamicWebAppCluster;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.time.Duration;
+
+import com.google.common.reflect.TypeToken;
+
+/**
+ * A load-balanced cluster of OpenGamma servers which can be upgraded to another OpenGamma version while serving.
+ * <p>
+ * {@link #upgradeVersion(String)} first adds {@link #CANARY_COUNT} servers on the new version alongside the current ones,
+ * so they take a share of the same traffic, and compares their endpoint latency, CPU and view cycle time with the current
+ * servers' over {@link #CANARY_DURATION}. If each is within its ratio, every current server is then replaced in turn
+ * (the canaries replacing the first ones), each being drained as it is removed; otherwise the canaries are removed.
+ * The canaries also fail if any of the metrics is never published (e.g. with endpoint probes disabled).
+ * Auto-scaling, scheduled, vertical and GC-pressure scaling are suspended meanwhile.
+ * <p>
+ * View processes already open stay on the servers they are on, so unless {@link #CANARY_LOAD_PROFILE} is set
+ * the canaries only see views opened (through the load balancer) during the comparison; with little such
+ * traffic they are compared largely idle.
+ */
+@ImplementedBy(OpenGammaClusterImpl.class)
+public interface OpenGammaCluster extends ControlledDynamicWebAppCluster {
+
+    @SetFromFlag("canaryCount")
+    ConfigKey<Integer> CANARY_COUNT = ConfigKeys.newIntegerConfigKey(
+            "opengamma.upgrade.canaries", "Servers started on the new version and compared before the rest are upgraded", 1);
+
+    @SetFromFlag("canaryWarmup")
+    ConfigKey<Duration> CANARY_WARMUP = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.upgrade.canary.warmup", "Time after the canaries are up before they are compared, while caches fill and views compile",
+            Duration.minutes(2));
+
+    @SetFromFlag("canaryDuration")
+    ConfigKey<Duration> CANARY_DURATION = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.upgrade.canary.duration", "Time over which the canaries are compared with the current servers", Duration.minutes(10));
+
+    @SetFromFlag("canarySamplePeriod")
+    ConfigKey<Duration> CANARY_SAMPLE_PERIOD = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.upgrade.canary.period", "How often the canaries' and current servers' sensors are sampled", Duration.THIRTY_SECONDS);
+
+    @SetFromFlag("canaryLoadProfile")
+    ConfigKey<String> CANARY_LOAD_PROFILE = ConfigKeys.newStringConfigKey(
+            "opengamma.upgrade.canary.loadProfile", "Load profile (as OpenGammaLoadGenerator's) driven at each canary, and at as many " +
+            "current servers, from the warm-up until the comparison ends; unset for no generated load");
+
+    @SetFromFlag("maxLatencyRatio")
+    ConfigKey<Double> MAX_LATENCY_RATIO = ConfigKeys.newDoubleConfigKey(
+            "opengamma.upgrade.canary.maxLatencyRatio", "Greatest ratio of the canaries' slowest-endpoint latency to the current servers' " +
+            "for the upgrade to continue", 1.25d);
+
+    @SetFromFlag("maxCpuRatio")
+    ConfigKey<Double> MAX_CPU_RATIO = ConfigKeys.newDoubleConfigKey(
+            "opengamma.upgrade.canary.maxCpuRatio", "Greatest ratio of the canaries' CPU use to the current servers' for the upgrade to continue", 1.25d);
+
+    @SetFromFlag("maxCycleTimeRatio")
+    ConfigKey<Double> MAX_CYCLE_TIME_RATIO = ConfigKeys.newDoubleConfigKey(
+            "opengamma.upgrade.canary.maxCycleTimeRatio", "Greatest ratio of the canaries' weighted 95th percentile of per-view mean cycle times to the current servers' " +
+            "for the upgrade to continue", 1.25d);
+
+    AttributeSensor<String> UPGRADE_STATUS =
+            new BasicAttributeSensor<String>(String.class, "opengamma.upgrade.status", "Progress or outcome of the latest version upgrade");
+
+    AttributeSensor<Map<String,Double>> CANARY_RATIOS = new BasicAttributeSensor<Map<String,Double>>(new TypeToken<Map<String,Double>>() { },
+            "opengamma.upgrade.canary.ratios", "Ratio of the canaries' latency, cpu and cycleTime to the current servers', in the latest upgrade");
+
+    @Effector(description="Upgrades the servers to another OpenGamma version, one at a time, if canary servers on that version " +
+            "perform comparably to the current ones; otherwise removes the canaries. Returns the outcome")
+    String upgradeVersion(
+            @EffectorParam(name="version", description="OpenGamma version to upgrade to (e.g. 2.2.0)") String version);
+
+}
@@ -1,6 +1,7 @@
 package io.cloudsoft.opengamma.cluster;
 
 import io.cloudsoft.opengamma.app.ClusteredOpenGammaApplication;
+import io.cloudsoft.opengamma.server.EndpointProbeEnricher;
 import io.cloudsoft.opengamma.server.OpenGammaMonitoringAggregation;
 import io.cloudsoft.opengamma.server.OpenGammaServer;
 
@@ -10,6 +11,7 @@ import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import brooklyn.config.ConfigKey;
 import brooklyn.enricher.HttpLatencyDetector;
 import brooklyn.entity.Entity;
 import brooklyn.entity.basic.EntityFactory;
@@ -23,25 +25,28 @@ import brooklyn.entity.webapp.ControlledDynamicWebAppCluster;
 import brooklyn.entity.webapp.WebAppService;
 import brooklyn.event.SensorEvent;
 import brooklyn.event.SensorEventListener;
-import brooklyn.policy.Policy;
 import brooklyn.policy.autoscaling.AutoScalerPolicy;
 import brooklyn.policy.ha.ServiceFailureDetector;
 import brooklyn.policy.ha.ServiceReplacer;
 import brooklyn.policy.ha.ServiceRestarter;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.text.Strings;
 
 public class OpenGammaClusterFactory implements EntityFactory<ControlledDynamicWebAppCluster> {
     public static final Logger LOG = LoggerFactory.getLogger(OpenGammaClusterFactory.class);
 
+    final ClusteredOpenGammaApplication owningApplication;
     final ActiveMQBroker broker;
     final PostgreSqlNode database;
     final boolean scalingEnabled;
     final double viewsPerServerScalingTarget;
     final int minSize;
     final int maxSize;
+    Entity marketDataServer;
 
     public OpenGammaClusterFactory(ClusteredOpenGammaApplication owningApplication,
             ActiveMQBroker broker, PostgreSqlNode database) {
-        this(broker, database,
+        this(owningApplication, broker, database,
                 owningApplication.getConfig(ClusteredOpenGammaApplication.ENABLE_AUTOSCALING),
                 owningApplication.getConfig(ClusteredOpenGammaApplication.VIEWS_PER_SERVER_SCALING_TARGET),
                 owningApplication.getConfig(ClusteredOpenGammaApplication.MIN_SIZE),
@@ -49,6 +54,11 @@ public class OpenGammaClusterFactory implements EntityFactory<ControlledDynamicW
     }
     public OpenGammaClusterFactory(ActiveMQBroker broker, PostgreSqlNode database, boolean scalingEnabled,
             double viewsPerServerScalingTarget, int minSize, int maxSize) {
+        this(null, broker, database, scalingEnabled, viewsPerServerScalingTarget, minSize, maxSize);
+    }
+    protected OpenGammaClusterFactory(ClusteredOpenGammaApplication owningApplication, ActiveMQBroker broker, PostgreSqlNode database,
+            boolean scalingEnabled, double viewsPerServerScalingTarget, int minSize, int maxSize) {
+        this.owningApplication = owningApplication;
         this.broker = broker;
         this.database = database;
         this.scalingEnabled = scalingEnabled;
@@ -57,6 +67,16 @@ public class OpenGammaClusterFactory implements EntityFactory<ControlledDynamicW
         this.maxSize = maxSize;
     }
 
+    /** servers created by this factory subscribe to the given market-data server rather than simulating live data themselves */
+    public void setMarketDataServer(Entity marketDataServer) {
+        this.marketDataServer = marketDataServer;
+    }
+
+    /** config from the owning application, or the key's default if this factory was created without one */
+    protected <T> T getApplicationConfig(ConfigKey<T> key) {
+        return owningApplication != null ? owningApplication.getConfig(key) : key.getDefaultValue();
+    }
+
     @Override
     public ControlledDynamicWebAppCluster newEntity(@SuppressWarnings("rawtypes") Map flags, Entity parent) {
         ControlledDynamicWebAppCluster ogWebCluster = parent.addChild(getClusterSpec());
@@ -68,12 +88,21 @@ public class OpenGammaClusterFactory implements EntityFactory<ControlledDynamicW
 
     public EntitySpec<ControlledDynamicWebAppCluster> getClusterSpec() {
         return EntitySpec.create(ControlledDynamicWebAppCluster.class)
+                .impl(OpenGammaClusterImpl.class)
+                .additionalInterfaces(OpenGammaCluster.class)
                 .displayName("Load-Balanced Cluster")
                 .configure(ControlledDynamicWebAppCluster.INITIAL_SIZE, 2)
+                .configure(DynamicCluster.REMOVAL_STRATEGY, new FewestViewsRemovalStrategy())
                 .configure(ControlledDynamicWebAppCluster.MEMBER_SPEC,
                         EntitySpec.create(OpenGammaServer.class).displayName("OpenGamma Server")
                                 .configure(OpenGammaServer.BROKER, broker)
-                                .configure(OpenGammaServer.DATABASE, database));
+                                .configure(OpenGammaServer.DATABASE, database)
+                                .configure(OpenGammaServer.MARKET_DATA_SERVER, marketDataServer)
+                                .configure(OpenGammaServer.CACHE_MODE, getApplicationConfig(ClusteredOpenGammaApplication.CACHE_MODE))
+                                .configure(OpenGammaServer.HARDWARE_PROFILE, getApplicationConfig(ClusteredOpenGammaApplication.SERVER_HARDWARE_PROFILE))
+                                .configure(OpenGammaServer.STARTUP_ACCELERATION, getApplicationConfig(ClusteredOpenGammaApplication.ENABLE_STARTUP_ACCELERATION))
+                                .configure(OpenGammaServer.DATABASE_SNAPSHOT, getApplicationConfig(ClusteredOpenGammaApplication.ENABLE_DATABASE_SNAPSHOT))
+                                .configure(OpenGammaServer.HEAP_FRACTION, getApplicationConfig(ClusteredOpenGammaApplication.ENABLE_VERTICAL_SCALING) ? 0.6d : null));
     }
 
     /** aggregate metrics and selected KPIs */
@@ -103,24 +132,97 @@ public class OpenGammaClusterFactory implements EntityFactory<ControlledDynamicW
     protected void initSoftwareProcess(SoftwareProcess p) {
         p.addPolicy(new ServiceFailureDetector());
         p.addPolicy(new ServiceRestarter(ServiceFailureDetector.ENTITY_FAILED));
+        if (p instanceof OpenGammaServer && getApplicationConfig(ClusteredOpenGammaApplication.ENABLE_ENDPOINT_PROBES)) {
+            p.addEnricher(new EndpointProbeEnricher());
+        }
     }
 
     /** configures scale-out and scale-back; in this case based on number of view processes active,
      * allowing an (artificially low) max of 1.2 per node,
-     * so as soon as you have 3 view processes a scale-out is forced */
+     * so as soon as you have 3 view processes a scale-out is forced;
+     * or, if a cycle-time SLA is configured, based on the weighted p95 of per-view mean cycle times across the cluster */
     protected void initElasticity(ControlledDynamicWebAppCluster web) {
-        Policy policy = AutoScalerPolicy.builder()
-                .metric(OpenGammaMonitoringAggregation.VIEW_PROCESSES_COUNT_PER_NODE)
-                .metricRange(viewsPerServerScalingTarget * 0.9, viewsPerServerScalingTarget + 0.1)
-                .sizeRange(minSize, maxSize)
-                .build();
+        Double cycleTimeSla = getApplicationConfig(ClusteredOpenGammaApplication.CYCLE_TIME_SLA);
+        AutoScalerPolicy policy;
+        if (cycleTimeSla != null) {
+            policy = AutoScalerPolicy.builder()
+                    .metric(OpenGammaMonitoringAggregation.VIEW_MEAN_CYCLE_TIME_P95_PER_NODE)
+                    .metricRange(cycleTimeSla * 0.5, cycleTimeSla)
+                    .sizeRange(minSize, maxSize)
+                    .build();
+        } else {
+            policy = AutoScalerPolicy.builder()
+                    .metric(OpenGammaMonitoringAggregation.VIEW_PROCESSES_COUNT_PER_NODE)
+                    .metricRange(viewsPerServerScalingTarget * 0.9, viewsPerServerScalingTarget + 0.1)
+                    .sizeRange(minSize, maxSize)
+                    .build();
+        }
         web.getCluster().addPolicy(policy);
         if (!scalingEnabled) {
             policy.suspend();
             LOG.info("AutoScaler policy disabled when creating "+web);
+        } else if (cycleTimeSla != null) {
+            LOG.info("AutoScaler policy (weighted p95 mean cycle time SLA "+cycleTimeSla+"ms) created for "+web);
         } else {
             LOG.info("AutoScaler policy (target "+viewsPerServerScalingTarget+") created for "+web);
         }
+        // the learned target only makes sense when scaling on views per server
+        if (cycleTimeSla == null) initTargetTuning(web, policy);
+        initScheduledScaling(web, policy);
+        initVerticalScaling(web);
+        initGcPressure(web, policy);
+    }
+
+    /** adds servers when the cluster spends too long in GC, and restarts servers whose old generation stays full */
+    protected void initGcPressure(ControlledDynamicWebAppCluster web, AutoScalerPolicy autoscaler) {
+        Double scaleOut = getApplicationConfig(ClusteredOpenGammaApplication.GC_SCALE_OUT_OVERHEAD);
+        Double recycle = getApplicationConfig(ClusteredOpenGammaApplication.GC_RECYCLE_OVERHEAD);
+        if (scaleOut == null && recycle == null) return;
+        web.getCluster().addPolicy(new GcPressurePolicy(MutableMap.<String,Object>builder()
+                .put("scaleOutOverhead", scaleOut)
+                .put("recycleOverhead", recycle)
+                .put("maxSize", maxSize)
+                .put("baseMinSize", minSize)
+                .put("autoscaler", autoscaler)
+                .build()));
+        LOG.info("GC pressure policy (scale out above "+scaleOut+"ms/s, recycle above "+recycle+"ms/s) created for "+web);
+    }
+
+    /** moves memory-bound servers to larger instances (CPU-bound load is left to the autoscaler adding servers) */
+    protected void initVerticalScaling(ControlledDynamicWebAppCluster web) {
+        if (!getApplicationConfig(ClusteredOpenGammaApplication.ENABLE_VERTICAL_SCALING)) return;
+        web.getCluster().addPolicy(new VerticalScalingPolicy());
+        LOG.info("Vertical scaling policy created for "+web);
+    }
+
+    /** replaces the fixed views-per-server target with one learned from the CPU used by members' view processes */
+    protected void initTargetTuning(ControlledDynamicWebAppCluster web, AutoScalerPolicy autoscaler) {
+        if (!getApplicationConfig(ClusteredOpenGammaApplication.ENABLE_SELF_TUNING_SCALING)) return;
+        web.getCluster().addPolicy(new ViewsPerServerTuningPolicy(MutableMap.<String,Object>builder()
+                .put("autoscaler", autoscaler)
+                .put("initialTarget", viewsPerServerScalingTarget)
+                .put("targetCpu", getApplicationConfig(ClusteredOpenGammaApplication.TARGET_CPU_UTILISATION))
+                .build()));
+        LOG.info("Views-per-server tuning policy (target cpu "+getApplicationConfig(ClusteredOpenGammaApplication.TARGET_CPU_UTILISATION)+") created for "+web);
+    }
+
+    /** raises the cluster's minimum size ahead of known busy periods (e.g. market open),
+     * from a weekly schedule and/or a learned profile of view processes */
+    protected void initScheduledScaling(ControlledDynamicWebAppCluster web, AutoScalerPolicy autoscaler) {
+        String schedule = getApplicationConfig(ClusteredOpenGammaApplication.SCALING_SCHEDULE);
+        boolean predictive = getApplicationConfig(ClusteredOpenGammaApplication.ENABLE_PREDICTIVE_SCALING);
+        if (Strings.isBlank(schedule) && !predictive) return;
+        web.getCluster().addPolicy(new ScheduledScalingPolicy(MutableMap.<String,Object>builder()
+                .put("autoscaler", autoscaler)
+                .put("schedule", Strings.isBlank(schedule) ? "" : schedule)
+                .put("timeZone", getApplicationConfig(ClusteredOpenGammaApplication.SCALING_SCHEDULE_TIME_ZONE))
+                .put("baseMinSize", minSize)
+                .put("maxSize", maxSize)
+                .put("predictive", predictive)
+                .put("viewsPerServer", viewsPerServerScalingTarget)
+                .put("historyDir", getApplicationConfig(ClusteredOpenGammaApplication.PREDICTIVE_SCALING_HISTORY_DIR))
+                .build()));
+        LOG.info("Scheduled scaling policy (schedule "+schedule+", predictive "+predictive+") created for "+web);
     }
 
 }
@@ -0,0 +1,275 @@
+package io.cloudsoft.opengamma.cluster;
+
+import io.cloudsoft.opengamma.load.OpenGammaLoadGenerator;
+import io.cloudsoft.opengamma.server.EndpointProbeEnricher;
+import io.cloudsoft.opengamma.server.OpenGammaMonitoringAggregation;
+import io.cloudsoft.opengamma.server.OpenGammaServer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.EntityInternal;
+import brooklyn.entity.basic.SoftwareProcess;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.entity.trait.Startable;
+import brooklyn.entity.webapp.ControlledDynamicWebAppClusterImpl;
+import brooklyn.entity.webapp.DynamicWebAppCluster;
+import brooklyn.event.AttributeSensor;
+import brooklyn.location.Location;
+import brooklyn.policy.Policy;
+import brooklyn.policy.autoscaling.AutoScalerPolicy;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.text.Strings;
+import brooklyn.util.time.Duration;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class OpenGammaClusterImpl extends ControlledDynamicWebAppClusterImpl implements OpenGammaCluster {
+
+    private static final Logger log = LoggerFactory.getLogger(OpenGammaClusterImpl.class);
+
+    /** the per-server sensors compared between canaries and current servers, by the names used in {@link #CANARY_RATIOS} */
+    private static final Map<String,AttributeSensor<? extends Number>> CANARY_METRICS = ImmutableMap.<String,AttributeSensor<? extends Number>>of(
+            "latency", EndpointProbeEnricher.PROBE_LATENCY_MAX,
+            "cpu", OpenGammaMonitoringAggregation.PROCESS_CPU_TIME_FRACTION_IN_WINDOW,
+            "cycleTime", OpenGammaServer.VIEW_MEAN_CYCLE_TIME_P95);
+
+    private final AtomicBoolean upgrading = new AtomicBoolean();
+
+    @Override
+    public String upgradeVersion(String version) {
+        Preconditions.checkArgument(Strings.isNonBlank(version), "Version must be set");
+        if (!upgrading.compareAndSet(false, true)) throw new IllegalStateException("An upgrade of "+this+" is already in progress");
+        List<Policy> suspended = Lists.newArrayList();
+        try {
+            // these might otherwise remove or replace canaries, or resize against a half-upgraded cluster
+            for (Policy policy : getCluster().getPolicies()) {
+                if (isSuspendedForUpgrade(policy) && !policy.isSuspended()) {
+                    policy.suspend();
+                    suspended.add(policy);
+                }
+            }
+            return upgrade(version.trim());
+        } finally {
+            for (Policy policy : suspended) policy.resume();
+            upgrading.set(false);
+        }
+    }
+
+    protected String upgrade(String version) {
+        DynamicWebAppCluster cluster = getCluster();
+        List<OpenGammaServer> current = Lists.newArrayList();
+        for (Entity member : cluster.getMembers()) {
+            if (!(member instanceof OpenGammaServer)) continue;
+            String running = getRunningVersion(member);
+            if (version.equals(running)) continue;
+            // pinned, as members otherwise inherit the cluster's version, so a restart before this one is replaced keeps it
+            ((EntityInternal) member).setConfig(OpenGammaServer.SUGGESTED_VERSION, running);
+            current.add((OpenGammaServer) member);
+        }
+        if (current.isEmpty()) return setStatus("all servers already at "+version);
+        String currentVersion = getRunningVersion(current.get(0));
+
+        int canaryCount = Math.max(1, Math.min(getConfig(CANARY_COUNT), current.size()));
+        setStatus("starting "+canaryCount+" canaries on "+version);
+        List<OpenGammaServer> canaries = Lists.newArrayList();
+        try {
+            for (int i = 0; i < canaryCount; i++) {
+                canaries.add(startMember(cluster, current.get(i), version));
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to start canary on "+version+" in "+this+"; keeping "+currentVersion+": "+e);
+            removeMembers(cluster, canaries);
+            setStatus("rolled back to "+currentVersion+": canary failed to start");
+            throw e;
+        }
+
+        List<OpenGammaLoadGenerator> load = startLoad(canaries, current.subList(0, canaryCount));
+        String failure;
+        try {
+            setStatus("comparing "+canaryCount+" canaries on "+version+" with servers on "+currentVersion);
+            failure = compare(canaries, current);
+        } finally {
+            stopLoad(load);
+        }
+        if (failure != null) {
+            log.warn("Canaries on {} in {} did not perform comparably ({}); keeping {}", new Object[] {version, this, failure, currentVersion});
+            removeMembers(cluster, canaries);
+            return setStatus("rolled back to "+currentVersion+": "+failure);
+        }
+
+        for (int i = 0; i < current.size(); i++) {
+            setStatus("upgrading to "+version+": "+i+" of "+current.size()+" servers replaced");
+            // a failure here leaves the remaining servers on the current version, still serving, for a retry to pick up
+            if (i >= canaryCount) startMember(cluster, current.get(i), version);
+            removeMembers(cluster, ImmutableList.of(current.get(i)));
+        }
+        // only now do servers added by scaling out or replacing failures get the new version
+        ((EntityInternal) cluster).setConfig(SoftwareProcess.SUGGESTED_VERSION, version);
+        log.info("Upgraded {} from {} to {}", new Object[] {this, currentVersion, version});
+        return setStatus("upgraded from "+currentVersion+" to "+version);
+    }
+
+    /** starts a server configured as the given one but on the given version, and adds it to the cluster (and so the load balancer) */
+    protected OpenGammaServer startMember(DynamicWebAppCluster cluster, OpenGammaServer template, String version) {
+        Location location = Iterables.getOnlyElement(cluster.getLocations());
+        OpenGammaServer server = cluster.addChild(EntitySpec.create(OpenGammaServer.class)
+                .displayName(template.getDisplayName())
+                .configure(((EntityInternal) template).getConfigMap().getLocalConfig())
+                .configure(OpenGammaServer.SUGGESTED_VERSION, version));
+        Entities.manage(server);
+        try {
+            Entities.invokeEffector(this, server, Startable.START, MutableMap.of("locations", ImmutableList.of(location))).getUnchecked();
+        } catch (RuntimeException e) {
+            Entities.unmanage(server);
+            throw e;
+        }
+        cluster.addMember(server);
+        return server;
+    }
+
+    /**
+     * starts a load generator driving {@link #CANARY_LOAD_PROFILE} at each canary and at as many current servers,
+     * so both are compared under the same new views; none if no profile is set
+     */
+    protected List<OpenGammaLoadGenerator> startLoad(List<OpenGammaServer> canaries, List<OpenGammaServer> peers) {
+        List<OpenGammaLoadGenerator> result = Lists.newArrayList();
+        String profile = getConfig(CANARY_LOAD_PROFILE);
+        if (Strings.isBlank(profile)) return result;
+        try {
+            for (OpenGammaServer server : Iterables.concat(canaries, peers)) {
+                OpenGammaLoadGenerator generator = addChild(EntitySpec.create(OpenGammaLoadGenerator.class)
+                        .displayName("Canary load on "+server.getDisplayName())
+                        .configure(OpenGammaLoadGenerator.TARGET, server)
+                        .configure(OpenGammaLoadGenerator.LOAD_PROFILE, profile)
+                        .configure(OpenGammaLoadGenerator.STOP_WHEN_PROFILE_COMPLETES, false));
+                Entities.manage(generator);
+                result.add(generator);
+                Entities.invokeEffector(this, generator, Startable.START, MutableMap.of("locations", ImmutableList.of())).getUnchecked();
+            }
+        } catch (RuntimeException e) {
+            stopLoad(result);
+            throw e;
+        }
+        return result;
+    }
+
+    protected void stopLoad(List<OpenGammaLoadGenerator> generators) {
+        for (OpenGammaLoadGenerator generator : generators) {
+            try {
+                Entities.invokeEffector(this, generator, Startable.STOP).getUnchecked();
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                log.warn("Problem stopping canary load "+generator+" in "+this+": "+e);
+            }
+            Entities.unmanage(generator);
+        }
+    }
+
+    /** stops (draining view processes, as the cluster is running) and removes each server */
+    protected void removeMembers(DynamicWebAppCluster cluster, List<OpenGammaServer> servers) {
+        for (OpenGammaServer server : servers) {
+            Entities.invokeEffector(this, server, Startable.STOP).getUnchecked();
+            cluster.removeMember(server);
+            Entities.unmanage(server);
+        }
+    }
+
+    /**
+     * Samples the canaries' and current servers' mean of each of {@link #CANARY_METRICS} after the warm-up,
+     * publishing the ratio of their totals over the whole period; returns why the canaries fail, or null if they pass.
+     * The canaries fail if any metric was never published by both the canaries and the current servers.
+     */
+    protected String compare(List<OpenGammaServer> canaries, List<OpenGammaServer> current) {
+        Time.sleep(getConfig(CANARY_WARMUP));
+        Map<String,double[]> totals = Maps.newLinkedHashMap();
+        Map<String,Integer> samples = Maps.newLinkedHashMap();
+        for (String metric : CANARY_METRICS.keySet()) {
+            totals.put(metric, new double[2]);
+            samples.put(metric, 0);
+        }
+
+        long end = System.currentTimeMillis() + getConfig(CANARY_DURATION).toMilliseconds();
+        Duration period = getConfig(CANARY_SAMPLE_PERIOD);
+        while (System.currentTimeMillis() < end) {
+            for (OpenGammaServer canary : canaries) {
+                if (!Boolean.TRUE.equals(canary.getAttribute(SERVICE_UP))) return "canary "+canary+" went down";
+            }
+            for (Map.Entry<String,AttributeSensor<? extends Number>> metric : CANARY_METRICS.entrySet()) {
+                Double canaryMean = mean(canaries, metric.getValue());
+                Double currentMean = mean(current, metric.getValue());
+                if (canaryMean == null || currentMean == null) continue;
+                totals.get(metric.getKey())[0] += canaryMean;
+                totals.get(metric.getKey())[1] += currentMean;
+                samples.put(metric.getKey(), samples.get(metric.getKey()) + 1);
+            }
+            Time.sleep(period);
+        }
+
+        Map<String,Double> ratios = Maps.newLinkedHashMap();
+        for (Map.Entry<String,double[]> total : totals.entrySet()) {
+            double canaryTotal = total.getValue()[0], currentTotal = total.getValue()[1];
+            if (samples.get(total.getKey()) == 0) continue;
+            ratios.put(total.getKey(), currentTotal > 0 ? canaryTotal / currentTotal : canaryTotal > 0 ? Double.POSITIVE_INFINITY : 1d);
+        }
+        setAttribute(CANARY_RATIOS, ratios);
+        for (Map.Entry<String,Integer> count : samples.entrySet()) {
+            // no evidence either way is not a pass
+            if (count.getValue() == 0) return "no samples of "+count.getKey()+" from both the canaries and the current servers";
+        }
+        Map<String,Double> limits = ImmutableMap.of(
+                "latency", getConfig(MAX_LATENCY_RATIO),
+                "cpu", getConfig(MAX_CPU_RATIO),
+                "cycleTime", getConfig(MAX_CYCLE_TIME_RATIO));
+        for (Map.Entry<String,Double> ratio : ratios.entrySet()) {
+            Double limit = limits.get(ratio.getKey());
+            if (limit != null && ratio.getValue() > limit) {
+                return String.format("%s %.2fx that of the current servers (limit %.2fx)", ratio.getKey(), ratio.getValue(), limit);
+            }
+        }
+        return null;
+    }
+
+    /** scaling and replacement policies, which must not act on the cluster while it is being upgraded */
+    private static boolean isSuspendedForUpgrade(Policy policy) {
+        return policy instanceof AutoScalerPolicy || policy instanceof GcPressurePolicy
+                || policy instanceof VerticalScalingPolicy || policy instanceof ScheduledScalingPolicy;
+    }
+
+    /** the version the server last launched, or that it is configured with if it has not launched */
+    private static String getRunningVersion(Entity server) {
+        String running = server.getAttribute(OpenGammaServer.RUNNING_VERSION);
+        return running != null ? running : server.getConfig(OpenGammaServer.SUGGESTED_VERSION);
+    }
+
+    /** mean of the sensor across the servers which are up and publishing it, or null if none are */
+    private static Double mean(List<OpenGammaServer> servers, AttributeSensor<? extends Number> sensor) {
+        double sum = 0;
+        int count = 0;
+        for (OpenGammaServer server : servers) {
+            Number value = server.getAttribute(sensor);
+            if (value == null || !Boolean.TRUE.equals(server.getAttribute(SERVICE_UP))) continue;
+            sum += value.doubleValue();
+            count++;
+        }
+        return count == 0 ? null : sum / count;
+    }
+
+    private String setStatus(String status) {
+        setAttribute(UPGRADE_STATUS, status);
+        return status;
+    }
+}
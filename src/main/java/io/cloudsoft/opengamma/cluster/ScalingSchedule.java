@@ -0,0 +1,146 @@
+package io.cloudsoft.opengamma.cluster;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import brooklyn.util.text.Strings;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * A weekly, cron-like calendar of minimum cluster sizes.
+ * <p>
+ * Entries are separated by {@code ;} and take the form {@code DAYS HH:MM [region=GLOB] min=N}, e.g.
+ * <pre>
+ * MON-FRI 07:15 region=*eu-west* min=4; MON-FRI 18:30 min=2; SAT,SUN 00:00 min=1
+ * </pre>
+ * where DAYS is {@code *}, a day ({@code MON}), a range ({@code MON-FRI}) or a comma-separated list.
+ * At any instant the entry in force is the most recent one (cycling through the week) which applies to the region;
+ * entries without a region filter apply everywhere.
+ */
+public class ScalingSchedule {
+
+    static final int MINUTES_PER_DAY = 24*60;
+    static final int MINUTES_PER_WEEK = 7*MINUTES_PER_DAY;
+    private static final List<String> DAYS = ImmutableList.of("MON", "TUE", "WED", "THU", "FRI", "SAT", "SUN");
+
+    static class Entry {
+        final boolean[] days;
+        final int minuteOfDay;
+        final String regionGlob;
+        final int minSize;
+        Entry(boolean[] days, int minuteOfDay, String regionGlob, int minSize) {
+            this.days = days;
+            this.minuteOfDay = minuteOfDay;
+            this.regionGlob = regionGlob;
+            this.minSize = minSize;
+        }
+        boolean appliesTo(String region) {
+            return regionGlob == null || (region != null && region.matches(globToRegex(regionGlob)));
+        }
+    }
+
+    private final List<Entry> entries;
+    private final TimeZone timeZone;
+
+    private ScalingSchedule(List<Entry> entries, TimeZone timeZone) {
+        this.entries = ImmutableList.copyOf(entries);
+        this.timeZone = timeZone;
+    }
+
+    public static ScalingSchedule parse(String schedule, String timeZone) {
+        List<Entry> entries = Lists.newArrayList();
+        for (String entry : Splitter.on(';').trimResults().omitEmptyStrings().split(schedule)) {
+            entries.add(parseEntry(entry));
+        }
+        return new ScalingSchedule(entries, TimeZone.getTimeZone(timeZone));
+    }
+
+    private static Entry parseEntry(String entry) {
+        List<String> parts = Lists.newArrayList(Splitter.on(' ').trimResults().omitEmptyStrings().split(entry));
+        if (parts.size() < 3) throw new IllegalArgumentException("Invalid scaling schedule entry '"+entry+"'; expected DAYS HH:MM [region=GLOB] min=N");
+        boolean[] days = parseDays(parts.get(0));
+        String[] time = parts.get(1).split(":");
+        if (time.length != 2) throw new IllegalArgumentException("Invalid time in scaling schedule entry '"+entry+"'");
+        int minuteOfDay = Integer.parseInt(time[0])*60 + Integer.parseInt(time[1]);
+        String region = null;
+        Integer minSize = null;
+        for (String part : parts.subList(2, parts.size())) {
+            if (part.startsWith("region=")) region = Strings.removeFromStart(part, "region=");
+            else if (part.startsWith("min=")) minSize = Integer.parseInt(Strings.removeFromStart(part, "min="));
+            else throw new IllegalArgumentException("Unknown token '"+part+"' in scaling schedule entry '"+entry+"'");
+        }
+        if (minSize == null) throw new IllegalArgumentException("Missing min=N in scaling schedule entry '"+entry+"'");
+        return new Entry(days, minuteOfDay, region, minSize);
+    }
+
+    private static boolean[] parseDays(String spec) {
+        boolean[] days = new boolean[7];
+        for (String part : Splitter.on(',').trimResults().split(spec.toUpperCase())) {
+            if ("*".equals(part)) {
+                for (int i=0; i<7; i++) days[i] = true;
+            } else if (part.contains("-")) {
+                int from = dayIndex(part.substring(0, part.indexOf('-')));
+                int to = dayIndex(part.substring(part.indexOf('-')+1));
+                for (int i=from; ; i=(i+1)%7) {
+                    days[i] = true;
+                    if (i == to) break;
+                }
+            } else {
+                days[dayIndex(part)] = true;
+            }
+        }
+        return days;
+    }
+
+    private static int dayIndex(String day) {
+        int result = DAYS.indexOf(day);
+        if (result < 0) throw new IllegalArgumentException("Unknown day '"+day+"' in scaling schedule; expected one of "+DAYS);
+        return result;
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder result = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*') result.append(".*");
+            else if (c == '?') result.append('.');
+            else if (Character.isLetterOrDigit(c)) result.append(c);
+            else result.append('\\').append(c);
+        }
+        return result.toString();
+    }
+
+    /** minute within the week (Monday 00:00 being 0) of the given time, in this schedule's time zone */
+    public int minuteOfWeek(long timeMillis) {
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(timeMillis);
+        int day = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+        return day*MINUTES_PER_DAY + calendar.get(Calendar.HOUR_OF_DAY)*60 + calendar.get(Calendar.MINUTE);
+    }
+
+    /** the minimum size in force at the given time for the given region, or null if no entry applies */
+    public Integer getMinSize(long timeMillis, String region) {
+        int now = minuteOfWeek(timeMillis);
+        Entry best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        for (Entry entry : entries) {
+            if (!entry.appliesTo(region)) continue;
+            for (int day=0; day<7; day++) {
+                if (!entry.days[day]) continue;
+                int distance = (now - (day*MINUTES_PER_DAY + entry.minuteOfDay) + MINUTES_PER_WEEK) % MINUTES_PER_WEEK;
+                if (distance < bestDistance) {
+                    best = entry;
+                    bestDistance = distance;
+                }
+            }
+        }
+        return best == null ? null : best.minSize;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+}
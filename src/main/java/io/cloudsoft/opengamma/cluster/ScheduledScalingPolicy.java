@@ -0,0 +1,242 @@
+package io.cloudsoft.opengamma.cluster;
+
+import io.cloudsoft.opengamma.server.OpenGammaMonitoringAggregation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.entity.trait.Resizable;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
+import brooklyn.location.Location;
+import brooklyn.policy.autoscaling.AutoScalerPolicy;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.text.Strings;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * Sets the minimum size of a cluster (and its {@link AutoScalerPolicy}) from a weekly {@link ScalingSchedule},
+ * and optionally from a learned weekly profile of {@link OpenGammaMonitoringAggregation#VIEW_PROCESSES_COUNT},
+ * pre-scaling the cluster so capacity is in place before load arrives (e.g. at market open)
+ * rather than only reacting once view processes have risen.
+ * <p>
+ * Attach to the {@link Resizable} cluster; the region used to match schedule entries is the
+ * display name of the cluster's (first) location.
+ */
+public class ScheduledScalingPolicy extends AbstractPeriodicPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScheduledScalingPolicy.class);
+
+    static final int SLOT_MINUTES = 15;
+    static final int SLOTS = ScalingSchedule.MINUTES_PER_WEEK / SLOT_MINUTES;
+
+    @SetFromFlag("schedule")
+    public static final ConfigKey<String> SCHEDULE = ConfigKeys.newStringConfigKey(
+            "opengamma.scaling.schedule", "Weekly calendar of minimum sizes (see ScalingSchedule)", "");
+
+    @SetFromFlag("timeZone")
+    public static final ConfigKey<String> TIME_ZONE = ConfigKeys.newStringConfigKey(
+            "opengamma.scaling.schedule.timeZone", "Time zone in which the schedule is interpreted", "Europe/London");
+
+    @SetFromFlag("baseMinSize")
+    public static final ConfigKey<Integer> BASE_MIN_SIZE = ConfigKeys.newIntegerConfigKey(
+            "opengamma.scaling.schedule.baseMinSize", "Minimum size when neither the schedule nor the prediction requires more", 1);
+
+    @SetFromFlag("maxSize")
+    public static final ConfigKey<Integer> MAX_SIZE = ConfigKeys.newIntegerConfigKey(
+            "opengamma.scaling.schedule.maxSize", "Upper bound for any scheduled or predicted minimum size", Integer.MAX_VALUE);
+
+    @SetFromFlag("predictive")
+    public static final ConfigKey<Boolean> PREDICTIVE = ConfigKeys.newBooleanConfigKey(
+            "opengamma.scaling.predictive", "Whether to learn a weekly profile of view processes and pre-scale to it", false);
+
+    @SetFromFlag("viewsPerServer")
+    public static final ConfigKey<Double> VIEWS_PER_SERVER = ConfigKeys.newDoubleConfigKey(
+            "opengamma.scaling.predictive.viewsPerServer", "Views per server used to turn predicted views into a size", 1.0d);
+
+    @SetFromFlag("leadTime")
+    public static final ConfigKey<Duration> LEAD_TIME = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.scaling.predictive.leadTime", "How far ahead to look when pre-scaling (should cover server boot time)", Duration.minutes(15));
+
+    @SetFromFlag("smoothing")
+    public static final ConfigKey<Double> SMOOTHING = ConfigKeys.newDoubleConfigKey(
+            "opengamma.scaling.predictive.smoothing", "Weight given to the latest week when updating the learned profile (0-1)", 0.5d);
+
+    @SetFromFlag("historyDir")
+    public static final ConfigKey<String> HISTORY_DIR = ConfigKeys.newStringConfigKey(
+            "opengamma.scaling.predictive.historyDir", "Directory on the management node where learned profiles are kept " +
+            "across restarts, one file per region");
+
+    @SetFromFlag("checkPeriod")
+    public static final ConfigKey<Duration> CHECK_PERIOD = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.scaling.schedule.checkPeriod", "How often the schedule and prediction are evaluated", Duration.ONE_MINUTE);
+
+    @SetFromFlag("autoscaler")
+    private AutoScalerPolicy autoscaler;
+
+    private final double[] history = new double[SLOTS];
+    private boolean historyLoaded = false;
+    private int currentSlot = -1;
+    private double currentSlotPeak = 0;
+    private long lastRecorded = 0;
+    private transient ScalingSchedule schedule;
+
+    public ScheduledScalingPolicy() {
+        this(MutableMap.<String,Object>of());
+    }
+
+    public ScheduledScalingPolicy(Map<String,?> flags) {
+        super(flags);
+        Arrays.fill(history, Double.NaN);
+    }
+
+    @Override
+    public void setEntity(EntityLocal entity) {
+        if (!(entity instanceof Resizable)) throw new IllegalArgumentException("Cannot attach "+this+" to non-resizable "+entity);
+        super.setEntity(entity);
+        schedule = ScalingSchedule.parse(getConfig(SCHEDULE), getConfig(TIME_ZONE));
+        if (getConfig(PREDICTIVE)) {
+            subscribe(entity, OpenGammaMonitoringAggregation.VIEW_PROCESSES_COUNT, new SensorEventListener<Integer>() {
+                @Override
+                public void onEvent(SensorEvent<Integer> event) {
+                    if (event.getValue() != null) recordViews(event.getTimestamp(), event.getValue());
+                }
+            });
+        }
+        schedulePeriodically("applying scaling schedule", Duration.ZERO, getConfig(CHECK_PERIOD), new Runnable() {
+            public void run() {
+                apply();
+            }
+        });
+    }
+
+    protected String getRegion() {
+        Location location = Iterables.getFirst(entity.getLocations(), null);
+        return location == null ? null : location.getDisplayName();
+    }
+
+    protected synchronized void apply() {
+        long now = System.currentTimeMillis();
+        if (getConfig(PREDICTIVE) && !historyLoaded && getRegion() != null) {
+            // region is only known once the cluster has been given its location
+            loadHistory();
+            historyLoaded = true;
+        }
+        if (getConfig(PREDICTIVE)) {
+            // sampled on each check as well as on change, as the count can stay the same for whole slots,
+            // which must still be learned (and closed on time, rather than at the next change)
+            Integer views = entity.getAttribute(OpenGammaMonitoringAggregation.VIEW_PROCESSES_COUNT);
+            if (views != null) recordViews(now, views);
+        }
+        int target = getConfig(BASE_MIN_SIZE);
+        Integer scheduled = schedule.getMinSize(now, getRegion());
+        if (scheduled != null) target = scheduled;
+        Integer predicted = getPredictedSize(now);
+        if (predicted != null) target = Math.max(target, predicted);
+        // servers added for GC pressure are kept until it eases
+        Integer gcMinSize = entity.getAttribute(GcPressurePolicy.GC_MIN_SIZE);
+        if (gcMinSize != null) target = Math.max(target, gcMinSize);
+        target = Math.min(target, getConfig(MAX_SIZE));
+
+        if (autoscaler != null) autoscaler.setMinPoolSize(target);
+        Integer currentSize = ((Resizable)entity).getCurrentSize();
+        if (currentSize != null && currentSize < target) {
+            LOG.info("{} pre-scaling {} from {} to {} (scheduled {}, predicted {})", new Object[] {this, entity, currentSize, target, scheduled, predicted});
+            ((Resizable)entity).resize(target);
+        }
+    }
+
+    /** size needed for the highest learned view count between now and the lead time, or null if nothing learned */
+    protected Integer getPredictedSize(long now) {
+        if (!getConfig(PREDICTIVE)) return null;
+        int from = slotFor(now);
+        int to = slotFor(now + getConfig(LEAD_TIME).toMilliseconds());
+        double peak = Double.NaN;
+        for (int slot=from; ; slot=(slot+1)%SLOTS) {
+            if (!Double.isNaN(history[slot])) peak = Double.isNaN(peak) ? history[slot] : Math.max(peak, history[slot]);
+            if (slot == to) break;
+        }
+        if (Double.isNaN(peak)) return null;
+        // prefer the target learned from CPU use, if the cluster is tuning it
+        Double viewsPerServer = entity.getAttribute(ViewsPerServerTuningPolicy.VIEWS_PER_SERVER_TARGET);
+        if (viewsPerServer == null) viewsPerServer = getConfig(VIEWS_PER_SERVER);
+        return (int) Math.ceil(peak / viewsPerServer);
+    }
+
+    /** records the view count at the given time, first closing the slot being learned if the time is past it */
+    protected synchronized void recordViews(long timestamp, int views) {
+        // a change event delivered after a check has moved on to the next slot belongs to the closed one
+        if (timestamp < lastRecorded) return;
+        lastRecorded = timestamp;
+        int slot = slotFor(timestamp);
+        if (slot != currentSlot) {
+            if (currentSlot >= 0) {
+                double alpha = getConfig(SMOOTHING);
+                history[currentSlot] = Double.isNaN(history[currentSlot]) ? currentSlotPeak :
+                        alpha * currentSlotPeak + (1 - alpha) * history[currentSlot];
+                saveHistory();
+            }
+            currentSlot = slot;
+            currentSlotPeak = 0;
+        }
+        currentSlotPeak = Math.max(currentSlotPeak, views);
+    }
+
+    private int slotFor(long timeMillis) {
+        return schedule.minuteOfWeek(timeMillis) / SLOT_MINUTES;
+    }
+
+    private String getHistoryFile() {
+        String dir = getConfig(HISTORY_DIR);
+        String region = getRegion();
+        if (Strings.isBlank(dir) || region == null) return null;
+        return new File(dir, "opengamma-views-"+region.replaceAll("[^A-Za-z0-9._-]", "_")+".csv").getPath();
+    }
+
+    /** fills any slots not yet learned in this run from the saved profile */
+    private void loadHistory() {
+        String path = getHistoryFile();
+        if (path == null || !new File(path).exists()) return;
+        try {
+            List<String> values = Lists.newArrayList(Splitter.on(',').trimResults().split(Files.toString(new File(path), Charsets.UTF_8).trim()));
+            for (int i=0; i<Math.min(values.size(), SLOTS); i++) {
+                if (Double.isNaN(history[i]) && Strings.isNonBlank(values.get(i))) history[i] = Double.parseDouble(values.get(i));
+            }
+            LOG.debug("{} loaded learned view profile from {}", this, path);
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.warn("Unable to load learned view profile from "+path+" for "+this+"; starting afresh: "+e);
+        }
+    }
+
+    private void saveHistory() {
+        String path = getHistoryFile();
+        if (path == null) return;
+        String[] values = new String[SLOTS];
+        for (int i=0; i<SLOTS; i++) values[i] = Double.isNaN(history[i]) ? "" : String.valueOf(history[i]);
+        try {
+            Files.createParentDirs(new File(path));
+            Files.write(Joiner.on(',').join(values), new File(path), Charsets.UTF_8);
+        } catch (IOException e) {
+            LOG.warn("Unable to save learned view profile to "+path+" for "+this+": "+e);
+        }
+    }
+}
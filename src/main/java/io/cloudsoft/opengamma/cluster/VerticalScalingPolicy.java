@@ -0,0 +1,165 @@
+package io.cloudsoft.opengamma.cluster;
+
+import io.cloudsoft.opengamma.server.HardwareProfile;
+import io.cloudsoft.opengamma.server.OpenGammaServer;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.Entity;
+import brooklyn.entity.Group;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.entity.java.UsesJavaMXBeans;
+import brooklyn.policy.autoscaling.AutoScalerPolicy;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Moves cluster members to larger instances when their view processes are memory-bound,
+ * and back to smaller ones when they have memory to spare, using {@link OpenGammaServer#replaceWithProfile(String)}.
+ * <p>
+ * A member is memory-bound when its heap is above {@link #HIGH_HEAP} while its CPU is below {@link #MAX_CPU};
+ * when CPU is high too, more members (the cluster's {@link AutoScalerPolicy}) are the better fix.
+ * A member is moved down only once its heap has stayed below {@link #LOW_HEAP} and its CPU below {@link #LOW_CPU}
+ * for {@link #LOW_CHECKS} consecutive checks (so a single sample taken just after a collection is not enough),
+ * and only if there is a smaller profile in its {@link OpenGammaServer#HARDWARE_PROFILES}.
+ * At most one member is replaced per check, and none for {@link #COOLDOWN} after a replacement.
+ * Members need {@link OpenGammaServer#HEAP_FRACTION} set for larger instances to get larger heaps.
+ */
+public class VerticalScalingPolicy extends AbstractPeriodicPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VerticalScalingPolicy.class);
+
+    @SetFromFlag("highHeap")
+    public static final ConfigKey<Double> HIGH_HEAP = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.vertical.highHeap", "Used fraction of the maximum heap above which a member is moved to a larger instance", 0.85d);
+
+    @SetFromFlag("lowHeap")
+    public static final ConfigKey<Double> LOW_HEAP = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.vertical.lowHeap", "Used fraction of the maximum heap below which a member is moved to a smaller instance", 0.3d);
+
+    @SetFromFlag("maxCpu")
+    public static final ConfigKey<Double> MAX_CPU = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.vertical.maxCpu", "CPU utilisation (0-1, of all the member's cores) above which a member is " +
+            "considered CPU-bound and left to horizontal scaling", 0.6d);
+
+    @SetFromFlag("lowCpu")
+    public static final ConfigKey<Double> LOW_CPU = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.vertical.lowCpu", "CPU utilisation (0-1, of all the member's cores) below which a member with " +
+            "spare heap is moved to a smaller instance", 0.3d);
+
+    @SetFromFlag("lowChecks")
+    public static final ConfigKey<Integer> LOW_CHECKS = ConfigKeys.newIntegerConfigKey(
+            "opengamma.autoscaling.vertical.lowChecks", "Consecutive checks a member's heap and CPU must be low for before it is " +
+            "moved to a smaller instance", 5);
+
+    @SetFromFlag("period")
+    public static final ConfigKey<Duration> PERIOD = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.autoscaling.vertical.period", "How often members are checked", Duration.ONE_MINUTE);
+
+    @SetFromFlag("cooldown")
+    public static final ConfigKey<Duration> COOLDOWN = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.autoscaling.vertical.cooldown", "Time after a replacement before another is considered", Duration.minutes(15));
+
+    private long lastReplacement;
+    /** ids of members to the number of consecutive checks their heap and CPU have been low */
+    private final Map<String,Integer> lowChecks = Maps.newConcurrentMap();
+
+    public VerticalScalingPolicy() {
+        this(MutableMap.<String,Object>of());
+    }
+
+    public VerticalScalingPolicy(Map<String,?> flags) {
+        super(flags);
+    }
+
+    @Override
+    public void setEntity(EntityLocal entity) {
+        if (!(entity instanceof Group)) throw new IllegalArgumentException("Cannot attach "+this+" to non-group "+entity);
+        super.setEntity(entity);
+        schedulePeriodically("checking members", getConfig(PERIOD), new Runnable() {
+            public void run() {
+                check();
+            }
+        });
+    }
+
+    protected void check() {
+        OpenGammaServer fullest = null, emptiest = null;
+        double fullestHeap = getConfig(HIGH_HEAP), emptiestHeap = getConfig(LOW_HEAP);
+        Map<String,Integer> stillLow = Maps.newHashMap();
+        for (Entity member : ((Group) entity).getMembers()) {
+            if (!(member instanceof OpenGammaServer) || !Boolean.TRUE.equals(member.getAttribute(OpenGammaServer.SERVICE_UP))) continue;
+            Double heap = getHeapFraction(member);
+            if (heap == null) continue;
+            Double cpu = getCpuUtilisation(member);
+            if (heap > fullestHeap && (cpu == null || cpu < getConfig(MAX_CPU))) {
+                fullest = (OpenGammaServer) member;
+                fullestHeap = heap;
+            }
+            // counted through the cooldown too, so a member idle throughout can move down as soon as it ends
+            if (heap >= getConfig(LOW_HEAP) || cpu == null || cpu >= getConfig(LOW_CPU)) continue;
+            Integer checks = lowChecks.get(member.getId());
+            checks = (checks == null ? 0 : checks) + 1;
+            stillLow.put(member.getId(), checks);
+            if (checks >= getConfig(LOW_CHECKS) && heap < emptiestHeap && hasSmallerProfile(member)) {
+                emptiest = (OpenGammaServer) member;
+                emptiestHeap = heap;
+            }
+        }
+        lowChecks.clear();
+        lowChecks.putAll(stillLow);
+
+        if (System.currentTimeMillis() - lastReplacement < getConfig(COOLDOWN).toMilliseconds()) return;
+        // growing a struggling member matters more than shrinking an idle one
+        if (fullest != null) {
+            replace(fullest, "up", "heap "+fullestHeap);
+        } else if (emptiest != null) {
+            lowChecks.remove(emptiest.getId());
+            replace(emptiest, "down", "heap "+emptiestHeap+" and CPU low for "+getConfig(LOW_CHECKS)+" checks");
+        }
+    }
+
+    protected void replace(OpenGammaServer member, String direction, String reason) {
+        LOG.info("{} moving {} {} a hardware profile ({})", new Object[] {this, member, direction, reason});
+        lastReplacement = System.currentTimeMillis();
+        try {
+            member.replaceWithProfile(direction);
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            // typically already at the end of the profiles
+            LOG.debug("Unable to move "+member+" "+direction+" a hardware profile: "+e);
+        }
+    }
+
+    /** whether the member's {@link OpenGammaServer#HARDWARE_PROFILES} has one smaller than the profile it is on */
+    private static boolean hasSmallerProfile(Entity member) {
+        HardwareProfile current = HardwareProfile.parse(member.getConfig(OpenGammaServer.HARDWARE_PROFILE));
+        for (HardwareProfile candidate : HardwareProfile.parseList(member.getConfig(OpenGammaServer.HARDWARE_PROFILES))) {
+            if (candidate.isSmallerThan(current)) return true;
+        }
+        return false;
+    }
+
+    private static Double getHeapFraction(Entity member) {
+        Long used = member.getAttribute(UsesJavaMXBeans.USED_HEAP_MEMORY);
+        Long max = member.getAttribute(UsesJavaMXBeans.MAX_HEAP_MEMORY);
+        if (used == null || max == null || max <= 0) return null;
+        return (double) used / max;
+    }
+
+    private static Double getCpuUtilisation(Entity member) {
+        Double cpu = member.getAttribute(UsesJavaMXBeans.PROCESS_CPU_TIME_FRACTION_IN_WINDOW);
+        Integer processors = member.getAttribute(UsesJavaMXBeans.AVAILABLE_PROCESSORS);
+        if (cpu == null || cpu.isNaN()) return null;
+        return processors != null && processors > 0 ? cpu / processors : cpu;
+    }
+}
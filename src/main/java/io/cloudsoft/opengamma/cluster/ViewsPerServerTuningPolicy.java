@@ -0,0 +1,179 @@
+package io.cloudsoft.opengamma.cluster;
+
+import io.cloudsoft.opengamma.server.OpenGammaMonitoringAggregation;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.enricher.HttpLatencyDetector;
+import brooklyn.entity.Entity;
+import brooklyn.entity.Group;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.entity.java.UsesJavaMXBeans;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.policy.autoscaling.AutoScalerPolicy;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.time.Duration;
+
+/**
+ * Learns how CPU use grows with the number of view processes on the members of a cluster,
+ * and from that sets the views-per-server band of the cluster's {@link AutoScalerPolicy}
+ * so members run close to a target CPU utilisation, rather than at a guessed number of views.
+ * <p>
+ * Each sample period, every member with view processes contributes a point (views, cpu) to a linear fit
+ * {@code cpu = intercept + slope * views}, weighted so older points decay with the configured half-life.
+ * Each adjust period, the views giving the target CPU are computed from the fit and applied,
+ * moving at most {@link #MAX_STEP} from the current target and staying within the configured bounds.
+ * If request latency exceeds {@link #MAX_LATENCY} the target is instead lowered by that step.
+ * <p>
+ * Attach to the cluster (the group whose members are the servers); the learned target is published
+ * on it as {@link #VIEWS_PER_SERVER_TARGET}.
+ */
+public class ViewsPerServerTuningPolicy extends AbstractPeriodicPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ViewsPerServerTuningPolicy.class);
+
+    public static final AttributeSensor<Double> VIEWS_PER_SERVER_TARGET =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.autoscaling.viewsPerServer.learned", "Views-per-server scaling target learned from CPU use");
+
+    public static final AttributeSensor<Double> CPU_PER_VIEW =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.autoscaling.cpuPerView", "Learned CPU fraction used by each additional view process");
+
+    @SetFromFlag("initialTarget")
+    public static final ConfigKey<Double> INITIAL_TARGET = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.tuning.initialTarget", "Views-per-server target to use until enough has been learned", 1.0d);
+
+    @SetFromFlag("targetCpu")
+    public static final ConfigKey<Double> TARGET_CPU = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.tuning.targetCpu", "CPU utilisation (0-1, of all the server's cores) at which members should run", 0.7d);
+
+    @SetFromFlag("minTarget")
+    public static final ConfigKey<Double> MIN_TARGET = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.tuning.minTarget", "Lowest views-per-server target which may be set", 0.5d);
+
+    @SetFromFlag("maxTarget")
+    public static final ConfigKey<Double> MAX_TARGET = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.tuning.maxTarget", "Highest views-per-server target which may be set", 20d);
+
+    @SetFromFlag("maxStep")
+    public static final ConfigKey<Double> MAX_STEP = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.tuning.maxStep", "Largest change to the target in one adjustment, as a fraction of the current target", 0.25d);
+
+    @SetFromFlag("maxLatency")
+    public static final ConfigKey<Double> MAX_LATENCY = ConfigKeys.newDoubleConfigKey(
+            "opengamma.autoscaling.tuning.maxLatency", "Request latency (seconds) above which the target is lowered regardless of CPU; none if unset");
+
+    @SetFromFlag("minSamples")
+    public static final ConfigKey<Integer> MIN_SAMPLES = ConfigKeys.newIntegerConfigKey(
+            "opengamma.autoscaling.tuning.minSamples", "Samples needed (across members) before the target is adjusted", 30);
+
+    @SetFromFlag("samplePeriod")
+    public static final ConfigKey<Duration> SAMPLE_PERIOD = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.autoscaling.tuning.samplePeriod", "How often members' views and CPU are sampled", Duration.THIRTY_SECONDS);
+
+    @SetFromFlag("adjustPeriod")
+    public static final ConfigKey<Duration> ADJUST_PERIOD = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.autoscaling.tuning.adjustPeriod", "How often the target is recomputed and applied", Duration.FIVE_MINUTES);
+
+    @SetFromFlag("halfLife")
+    public static final ConfigKey<Duration> HALF_LIFE = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.autoscaling.tuning.halfLife", "Age at which a sample counts half as much in the fit", Duration.hours(6));
+
+    @SetFromFlag("autoscaler")
+    private AutoScalerPolicy autoscaler;
+
+    // exponentially-weighted sums for the least-squares fit of cpu against views
+    private double n, sumX, sumY, sumXX, sumXY;
+    private int samples;
+
+    public ViewsPerServerTuningPolicy() {
+        this(MutableMap.<String,Object>of());
+    }
+
+    public ViewsPerServerTuningPolicy(Map<String,?> flags) {
+        super(flags);
+    }
+
+    @Override
+    public void setEntity(EntityLocal entity) {
+        if (!(entity instanceof Group)) throw new IllegalArgumentException("Cannot attach "+this+" to non-group "+entity);
+        super.setEntity(entity);
+        entity.setAttribute(VIEWS_PER_SERVER_TARGET, getConfig(INITIAL_TARGET));
+        schedulePeriodically("sampling members", getConfig(SAMPLE_PERIOD), new Runnable() {
+            public void run() {
+                sample();
+            }
+        });
+        schedulePeriodically("adjusting scaling target", getConfig(ADJUST_PERIOD), new Runnable() {
+            public void run() {
+                adjust();
+            }
+        });
+    }
+
+    protected synchronized void sample() {
+        double decay = Math.pow(0.5, (double) getConfig(SAMPLE_PERIOD).toMilliseconds() / getConfig(HALF_LIFE).toMilliseconds());
+        n *= decay; sumX *= decay; sumY *= decay; sumXX *= decay; sumXY *= decay;
+        for (Entity member : ((Group) entity).getMembers()) {
+            Integer views = member.getAttribute(OpenGammaMonitoringAggregation.VIEW_PROCESSES_COUNT);
+            Double cpu = member.getAttribute(OpenGammaMonitoringAggregation.PROCESS_CPU_TIME_FRACTION_IN_WINDOW);
+            Integer processors = member.getAttribute(UsesJavaMXBeans.AVAILABLE_PROCESSORS);
+            // idle members say nothing about the cost of a view
+            if (views == null || views <= 0 || cpu == null || cpu.isNaN()) continue;
+            double utilisation = processors != null && processors > 0 ? cpu / processors : cpu;
+            n += 1; sumX += views; sumY += utilisation; sumXX += views * views; sumXY += views * utilisation;
+            samples++;
+        }
+    }
+
+    protected synchronized void adjust() {
+        double current = entity.getAttribute(VIEWS_PER_SERVER_TARGET);
+        double step = getConfig(MAX_STEP) * current;
+        Double maxLatency = getConfig(MAX_LATENCY);
+        Double latency = getLatency();
+
+        double wanted;
+        String reason;
+        if (maxLatency != null && latency != null && latency > maxLatency) {
+            wanted = current - step;
+            reason = "latency "+latency+"s above "+maxLatency+"s";
+        } else {
+            if (samples < getConfig(MIN_SAMPLES)) return;
+            double variance = n * sumXX - sumX * sumX;
+            // need members at different view counts to tell the per-view cost from the baseline
+            if (variance <= 1e-9) return;
+            double slope = (n * sumXY - sumX * sumY) / variance;
+            double intercept = (sumY - slope * sumX) / n;
+            entity.setAttribute(CPU_PER_VIEW, slope);
+            if (slope <= 0) return;
+            wanted = (getConfig(TARGET_CPU) - intercept) / slope;
+            reason = "cpu = "+intercept+" + "+slope+" * views";
+        }
+
+        double target = Math.max(current - step, Math.min(current + step, wanted));
+        target = Math.max(getConfig(MIN_TARGET), Math.min(getConfig(MAX_TARGET), target));
+        if (Math.abs(target - current) < 0.01) return;
+        LOG.info("{} changing views-per-server target of {} from {} to {} ({})", new Object[] {this, entity, current, target, reason});
+        entity.setAttribute(VIEWS_PER_SERVER_TARGET, target);
+        if (autoscaler != null) {
+            // same band around the target as OpenGammaClusterFactory.initElasticity
+            autoscaler.setMetricLowerBound(target * 0.9);
+            autoscaler.setMetricUpperBound(target + 0.1);
+        }
+    }
+
+    /** request latency published on the cluster, or on its parent (where the load-balanced cluster's detector puts it) */
+    protected Double getLatency() {
+        Double latency = entity.getAttribute(HttpLatencyDetector.REQUEST_LATENCY_IN_SECONDS_IN_WINDOW);
+        if (latency == null && entity.getParent() != null) {
+            latency = entity.getParent().getAttribute(HttpLatencyDetector.REQUEST_LATENCY_IN_SECONDS_IN_WINDOW);
+        }
+        return latency;
+    }
+}
@@ -0,0 +1,96 @@
+package io.cloudsoft.opengamma.history;
+
+import io.cloudsoft.opengamma.server.OpenGammaMonitoringAggregation;
+
+import java.util.List;
+import java.util.Map;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.enricher.HttpLatencyDetector;
+import brooklyn.entity.Entity;
+import brooklyn.entity.annotation.Effector;
+import brooklyn.entity.annotation.EffectorParam;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.proxying.ImplementedBy;
+import brooklyn.entity.trait.Changeable;
+import brooklyn.entity.trait.Startable;
+import brooklyn.entity.webapp.DynamicWebAppCluster;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.reflect.TypeToken;
+
+/**
+ * Records the history of selected numeric sensors of every entity in its application (servers, clusters,
+ * fabric and the application itself) in a {@link SensorHistoryStore} on the Brooklyn management node,
+ * and answers range and aggregate queries over it through effectors, for capacity planning.
+ * <p>
+ * Runs in the Brooklyn management node; it needs no location of its own.
+ */
+@ImplementedBy(SensorHistoryImpl.class)
+public interface SensorHistory extends Entity, Startable {
+
+    @SetFromFlag("sensors")
+    ConfigKey<List<String>> SENSORS = ConfigKeys.newConfigKey(new TypeToken<List<String>>() { },
+            "opengamma.history.sensors", "Names of the sensors to record, wherever they are published in the application",
+            ImmutableList.of(
+                    OpenGammaMonitoringAggregation.VIEW_PROCESSES_COUNT.getName(),
+                    OpenGammaMonitoringAggregation.VIEW_PROCESSES_COUNT_PER_NODE.getName(),
+                    OpenGammaMonitoringAggregation.PROCESSING_TIME_PER_SECOND_IN_WINDOW.getName(),
+                    OpenGammaMonitoringAggregation.PROCESS_CPU_TIME_FRACTION_IN_WINDOW.getName(),
+                    OpenGammaMonitoringAggregation.CACHE_HIT_RATIO.getName(),
+                    OpenGammaMonitoringAggregation.OG_SERVER_COUNT.getName(),
+                    DynamicWebAppCluster.REQUESTS_PER_SECOND_IN_WINDOW.getName(),
+                    HttpLatencyDetector.REQUEST_LATENCY_IN_SECONDS_IN_WINDOW.getName(),
+                    Changeable.GROUP_SIZE.getName()));
+
+    @SetFromFlag("directory")
+    ConfigKey<String> DIRECTORY = ConfigKeys.newStringConfigKey(
+            "opengamma.history.dir", "Directory on the management node in which the history is kept " +
+            "(defaults to opengamma-history-<applicationId> in the temp dir)");
+
+    @SetFromFlag("rawRetention")
+    ConfigKey<Duration> RAW_RETENTION = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.history.retention.raw", "How long every recorded value is kept", Duration.days(2));
+
+    @SetFromFlag("minuteRetention")
+    ConfigKey<Duration> MINUTE_RETENTION = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.history.retention.minute", "How long per-minute min/max/mean values are kept", Duration.days(35));
+
+    @SetFromFlag("hourRetention")
+    ConfigKey<Duration> HOUR_RETENTION = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.history.retention.hour", "How long per-hour min/max/mean values are kept", Duration.days(400));
+
+    @SetFromFlag("segmentSize")
+    ConfigKey<Integer> SEGMENT_SIZE = ConfigKeys.newIntegerConfigKey(
+            "opengamma.history.segmentSize", "Size in bytes of each memory-mapped segment file", 64*1024);
+
+    @SetFromFlag("flushPeriod")
+    ConfigKey<Duration> FLUSH_PERIOD = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.history.flushPeriod", "How often segments are flushed to disk and expired ones deleted", Duration.FIVE_MINUTES);
+
+    AttributeSensor<Integer> SERIES_COUNT =
+            new BasicAttributeSensor<Integer>(Integer.class, "opengamma.history.series.count", "Number of entity/sensor series being recorded");
+
+    AttributeSensor<String> DIRECTORY_PATH =
+            new BasicAttributeSensor<String>(String.class, "opengamma.history.dir.path", "Directory on the management node in which the history is kept");
+
+    @Effector(description="Values of a sensor over a time range, as min/max/mean/sum/count per interval")
+    List<Map<String,Object>> querySensorHistory(
+            @EffectorParam(name="entity", description="Id of the entity publishing the sensor") String entityId,
+            @EffectorParam(name="sensor", description="Name of the sensor") String sensor,
+            @EffectorParam(name="from", description="Start, as epoch millis or a duration before now (e.g. 7d); default 1h") String from,
+            @EffectorParam(name="to", description="End, as epoch millis or a duration before now; default now") String to,
+            @EffectorParam(name="resolution", description="Interval to aggregate over (e.g. 15m); default 1m") String resolution);
+
+    @Effector(description="Min/max/mean/sum/count of a sensor over a time range")
+    Map<String,Object> summarizeSensorHistory(
+            @EffectorParam(name="entity", description="Id of the entity publishing the sensor") String entityId,
+            @EffectorParam(name="sensor", description="Name of the sensor") String sensor,
+            @EffectorParam(name="from", description="Start, as epoch millis or a duration before now (e.g. 7d); default 1h") String from,
+            @EffectorParam(name="to", description="End, as epoch millis or a duration before now; default now") String to);
+
+}
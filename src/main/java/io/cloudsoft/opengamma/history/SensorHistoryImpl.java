@@ -0,0 +1,145 @@
+package io.cloudsoft.opengamma.history;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.basic.AbstractEntity;
+import brooklyn.entity.basic.Attributes;
+import brooklyn.entity.basic.Lifecycle;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.event.feed.function.FunctionFeed;
+import brooklyn.event.feed.function.FunctionPollConfig;
+import brooklyn.location.Location;
+import brooklyn.management.SubscriptionHandle;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.text.Strings;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class SensorHistoryImpl extends AbstractEntity implements SensorHistory {
+
+    private static final Logger log = LoggerFactory.getLogger(SensorHistoryImpl.class);
+
+    private final List<SubscriptionHandle> subscriptions = Lists.newCopyOnWriteArrayList();
+    private volatile SensorHistoryStore store;
+    private volatile FunctionFeed maintenanceFeed;
+
+    @Override
+    public void start(Collection<? extends Location> locations) {
+        setAttribute(Attributes.SERVICE_STATE, Lifecycle.STARTING);
+        try {
+            File dir = new File(Strings.isNonBlank(getConfig(DIRECTORY)) ? getConfig(DIRECTORY) :
+                    new File(System.getProperty("java.io.tmpdir"), "opengamma-history-"+getApplicationId()).getPath());
+            store = new SensorHistoryStore(dir, ImmutableList.of(
+                    new SensorHistoryStore.Tier("raw", 0, getConfig(RAW_RETENTION).toMilliseconds()),
+                    new SensorHistoryStore.Tier("minute", Duration.ONE_MINUTE.toMilliseconds(), getConfig(MINUTE_RETENTION).toMilliseconds()),
+                    new SensorHistoryStore.Tier("hour", Duration.ONE_HOUR.toMilliseconds(), getConfig(HOUR_RETENTION).toMilliseconds())),
+                    getConfig(SEGMENT_SIZE));
+            setAttribute(DIRECTORY_PATH, dir.getAbsolutePath());
+
+            SensorEventListener<Object> recorder = new SensorEventListener<Object>() {
+                @Override
+                public void onEvent(SensorEvent<Object> event) {
+                    record(event);
+                }
+            };
+            for (String sensor : getConfig(SENSORS)) {
+                // a null producer subscribes to the sensor on every entity; events from other applications are ignored
+                subscriptions.add(subscribe(null, new BasicAttributeSensor<Object>(Object.class, sensor), recorder));
+            }
+
+            maintenanceFeed = FunctionFeed.builder()
+                    .entity(this)
+                    .poll(new FunctionPollConfig<Integer,Integer>(SERIES_COUNT)
+                            .period(getConfig(FLUSH_PERIOD))
+                            .callable(new Callable<Integer>() {
+                                @Override
+                                public Integer call() throws Exception {
+                                    SensorHistoryStore current = store;
+                                    if (current == null) return null;
+                                    current.flush();
+                                    current.expire(System.currentTimeMillis());
+                                    return current.getSeriesCount();
+                                }
+                            }))
+                    .build();
+
+            setAttribute(SERVICE_UP, true);
+            setAttribute(Attributes.SERVICE_STATE, Lifecycle.RUNNING);
+        } catch (Exception e) {
+            setAttribute(Attributes.SERVICE_STATE, Lifecycle.ON_FIRE);
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        setAttribute(Attributes.SERVICE_STATE, Lifecycle.STOPPING);
+        for (SubscriptionHandle subscription : subscriptions) {
+            getManagementContext().getSubscriptionManager().unsubscribe(subscription);
+        }
+        subscriptions.clear();
+        if (maintenanceFeed != null) maintenanceFeed.stop();
+        maintenanceFeed = null;
+        if (store != null) store.close();
+        store = null;
+        setAttribute(SERVICE_UP, false);
+        setAttribute(Attributes.SERVICE_STATE, Lifecycle.STOPPED);
+    }
+
+    @Override
+    public void restart() {
+        stop();
+        start(getLocations());
+    }
+
+    protected void record(SensorEvent<Object> event) {
+        SensorHistoryStore s = store;
+        if (s == null || event.getSource() == null || !getApplicationId().equals(event.getSource().getApplicationId())) return;
+        Object value = event.getValue();
+        if (value instanceof Number) {
+            s.record(event.getSource().getId(), event.getSensor().getName(), event.getTimestamp(), ((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            s.record(event.getSource().getId(), event.getSensor().getName(), event.getTimestamp(), (Boolean) value ? 1 : 0);
+        }
+    }
+
+    @Override
+    public List<Map<String,Object>> querySensorHistory(String entityId, String sensor, String from, String to, String resolution) {
+        long now = System.currentTimeMillis();
+        long resolutionMillis = Strings.isBlank(resolution) ? Duration.ONE_MINUTE.toMilliseconds() : Duration.of(resolution).toMilliseconds();
+        List<Map<String,Object>> result = Lists.newArrayList();
+        for (SensorHistoryStore.Bucket bucket : getStore().query(entityId, sensor, parseTime(from, now, Duration.ONE_HOUR), parseTime(to, now, Duration.ZERO), resolutionMillis)) {
+            result.add(bucket.toMap());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String,Object> summarizeSensorHistory(String entityId, String sensor, String from, String to) {
+        long now = System.currentTimeMillis();
+        return getStore().summarize(entityId, sensor, parseTime(from, now, Duration.ONE_HOUR), parseTime(to, now, Duration.ZERO)).toMap();
+    }
+
+    private SensorHistoryStore getStore() {
+        if (store == null) throw new IllegalStateException("Sensor history "+this+" is not running");
+        return store;
+    }
+
+    /** epoch millis if numeric, otherwise a duration before now (the default if blank) */
+    private static long parseTime(String time, long now, Duration defaultBeforeNow) {
+        if (Strings.isBlank(time)) return now - defaultBeforeNow.toMilliseconds();
+        if (time.trim().matches("\\d{10,}")) return Long.parseLong(time.trim());
+        return now - Duration.of(time).toMilliseconds();
+    }
+}
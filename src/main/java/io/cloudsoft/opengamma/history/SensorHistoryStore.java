@@ -0,0 +1,333 @@
+package io.cloudsoft.opengamma.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * An append-only store of numeric sensor values, one series per entity and sensor, kept on local disk
+ * as {@link TimeSeriesSegment}s in three tiers: the raw values, and per-minute and per-hour
+ * downsampled buckets (min, max, sum and count), each tier with its own retention.
+ * <p>
+ * Laid out as {@code <dir>/<entityId>/<sensor>/<tier>/<firstTime>.seg}; segments are deleted once
+ * all their records are older than their tier's retention. Segments read by queries are kept open (mapped),
+ * up to {@link #MAX_OPEN_SEGMENTS}, least recently read first to be released; the segment each series is
+ * appending to is read through its writer.
+ */
+public class SensorHistoryStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SensorHistoryStore.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /** read-only segments kept open for queries; each is a mapping of up to the segment size */
+    static final int MAX_OPEN_SEGMENTS = 256;
+
+    public static class Tier {
+        private final String name;
+        private final long resolutionMillis;
+        private final long retentionMillis;
+
+        public Tier(String name, long resolutionMillis, long retentionMillis) {
+            this.name = name;
+            this.resolutionMillis = resolutionMillis;
+            this.retentionMillis = retentionMillis;
+        }
+
+        public String getName() { return name; }
+        public long getResolutionMillis() { return resolutionMillis; }
+        public long getRetentionMillis() { return retentionMillis; }
+        boolean isRaw() { return resolutionMillis == 0; }
+    }
+
+    /** an aggregate of the values in an interval starting at {@link #getTime()} */
+    public static class Bucket {
+        private final long time;
+        private long count = 0;
+        private double sum = 0;
+        private double min = Double.NaN;
+        private double max = Double.NaN;
+
+        Bucket(long time) {
+            this.time = time;
+        }
+
+        void add(double value) {
+            add(value, value, value, 1);
+        }
+
+        void add(double min, double max, double sum, long count) {
+            if (count == 0) return;
+            this.min = this.count == 0 ? min : Math.min(this.min, min);
+            this.max = this.count == 0 ? max : Math.max(this.max, max);
+            this.sum += sum;
+            this.count += count;
+        }
+
+        public long getTime() { return time; }
+        public long getCount() { return count; }
+        public double getSum() { return sum; }
+        public double getMin() { return min; }
+        public double getMax() { return max; }
+        public double getMean() { return count == 0 ? Double.NaN : sum / count; }
+
+        public Map<String,Object> toMap() {
+            Map<String,Object> result = new LinkedHashMap<String,Object>();
+            result.put("time", time);
+            result.put("count", count);
+            result.put("min", min);
+            result.put("max", max);
+            result.put("mean", getMean());
+            result.put("sum", sum);
+            return result;
+        }
+    }
+
+    /** writer for one tier of one series, accumulating the current bucket for a downsampled tier */
+    private class TierWriter {
+        private final Tier tier;
+        private final File dir;
+        private TimeSeriesSegment segment;
+        private Bucket pending;
+
+        TierWriter(Tier tier, File dir) {
+            this.tier = tier;
+            this.dir = dir;
+        }
+
+        void add(long time, double value) throws IOException {
+            if (tier.isRaw()) {
+                append(time, value);
+                return;
+            }
+            long bucketTime = time - time % tier.resolutionMillis;
+            if (pending != null && pending.time != bucketTime) flush();
+            if (pending == null) pending = new Bucket(bucketTime);
+            pending.add(value);
+        }
+
+        void flush() throws IOException {
+            if (pending != null && pending.count > 0) {
+                append(pending.time, pending.min, pending.max, pending.sum, pending.count);
+            }
+            pending = null;
+        }
+
+        private void append(long time, double... values) throws IOException {
+            if (segment == null) {
+                File latest = Iterables.getLast(listSegments(dir), null);
+                segment = latest != null ? TimeSeriesSegment.open(latest) : newSegment(time, values.length);
+            }
+            if (!segment.append(time, values)) {
+                segment.force();
+                segment = newSegment(time, values.length);
+                segment.append(time, values);
+            }
+        }
+
+        private TimeSeriesSegment newSegment(long time, int fields) throws IOException {
+            dir.mkdirs();
+            return TimeSeriesSegment.create(new File(dir, time+SEGMENT_SUFFIX), segmentSize, fields, time);
+        }
+    }
+
+    private final File dir;
+    private final List<Tier> tiers;
+    private final int segmentSize;
+    private final Map<String,List<TierWriter>> writers = Maps.newLinkedHashMap();
+    /** read-only segments by file, least recently read first; unmapped once released and collected */
+    private final Map<File,TimeSeriesSegment> openSegments = new LinkedHashMap<File,TimeSeriesSegment>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File,TimeSeriesSegment> eldest) {
+            return size() > MAX_OPEN_SEGMENTS;
+        }
+    };
+
+    /** tiers must be given finest first, the first being raw (resolution zero) */
+    public SensorHistoryStore(File dir, List<Tier> tiers, int segmentSize) {
+        if (tiers.isEmpty() || !tiers.get(0).isRaw()) throw new IllegalArgumentException("First tier must be raw (resolution zero)");
+        this.dir = dir;
+        this.tiers = ImmutableList.copyOf(tiers);
+        this.segmentSize = segmentSize;
+    }
+
+    public synchronized void record(String entityId, String sensor, long time, double value) {
+        try {
+            for (TierWriter writer : getWriters(entityId, sensor)) {
+                writer.add(time, value);
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to record "+sensor+" for "+entityId+" in "+dir+": "+e);
+        }
+    }
+
+    public synchronized int getSeriesCount() {
+        return writers.size();
+    }
+
+    /**
+     * The values of a sensor aggregated into buckets of the given resolution, from the finest tier which has
+     * that resolution or finer and which still retains the start of the range (failing that, from the finest
+     * tier which retains it, or the coarsest tier).
+     */
+    public synchronized List<Bucket> query(String entityId, String sensor, long from, long to, long resolutionMillis) {
+        Tier tier = chooseTier(from, resolutionMillis);
+        long resolution = Math.max(resolutionMillis, Math.max(tier.resolutionMillis, 1));
+        TreeMap<Long,Bucket> buckets = new TreeMap<Long,Bucket>();
+        for (TimeSeriesSegment.Record record : read(entityId, sensor, tier, from, to)) {
+            long bucketTime = record.getTime() - record.getTime() % resolution;
+            Bucket bucket = buckets.get(bucketTime);
+            if (bucket == null) buckets.put(bucketTime, bucket = new Bucket(bucketTime));
+            double[] v = record.getValues();
+            if (tier.isRaw()) bucket.add(v[0]);
+            else bucket.add(v[0], v[1], v[2], (long) v[3]);
+        }
+        return Lists.newArrayList(buckets.values());
+    }
+
+    /** all values of a sensor in the range aggregated into one bucket, from the finest tier retaining the start of the range */
+    public synchronized Bucket summarize(String entityId, String sensor, long from, long to) {
+        Bucket result = new Bucket(from);
+        for (Bucket bucket : query(entityId, sensor, from, to, 0)) {
+            result.add(bucket.min, bucket.max, bucket.sum, bucket.count);
+        }
+        return result;
+    }
+
+    /** deletes segments whose records are all older than their tier's retention */
+    public synchronized void expire(long now) {
+        File[] entityDirs = dir.listFiles();
+        if (entityDirs == null) return;
+        for (File entityDir : entityDirs) {
+            File[] sensorDirs = entityDir.listFiles();
+            if (sensorDirs == null) continue;
+            for (File sensorDir : sensorDirs) {
+                for (Tier tier : tiers) {
+                    List<File> segments = listSegments(new File(sensorDir, tier.name));
+                    // a segment runs until the next one starts, so never delete the last
+                    for (int i=0; i<segments.size()-1; i++) {
+                        if (firstTimeOf(segments.get(i+1)) < now - tier.retentionMillis) {
+                            openSegments.remove(segments.get(i));
+                            if (!segments.get(i).delete()) LOG.debug("Unable to delete expired {}", segments.get(i));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** writes out all partially-filled buckets and flushes segments to disk */
+    public synchronized void flush() {
+        for (List<TierWriter> series : writers.values()) {
+            for (TierWriter writer : series) {
+                try {
+                    writer.flush();
+                    if (writer.segment != null) writer.segment.force();
+                } catch (IOException e) {
+                    LOG.warn("Unable to flush sensor history in "+writer.dir+": "+e);
+                }
+            }
+        }
+    }
+
+    public synchronized void close() {
+        flush();
+        writers.clear();
+        openSegments.clear();
+    }
+
+    private List<TierWriter> getWriters(String entityId, String sensor) {
+        String key = entityId+"/"+sensor;
+        List<TierWriter> result = writers.get(key);
+        if (result == null) {
+            result = Lists.newArrayList();
+            for (Tier tier : tiers) result.add(new TierWriter(tier, getTierDir(entityId, sensor, tier)));
+            writers.put(key, result);
+        }
+        return result;
+    }
+
+    private Tier chooseTier(long from, long resolutionMillis) {
+        long now = System.currentTimeMillis();
+        for (Tier tier : tiers) {
+            if (tier.resolutionMillis <= resolutionMillis && now - tier.retentionMillis <= from) return tier;
+        }
+        for (Tier tier : tiers) {
+            if (now - tier.retentionMillis <= from) return tier;
+        }
+        return tiers.get(tiers.size()-1);
+    }
+
+    private List<TimeSeriesSegment.Record> read(String entityId, String sensor, Tier tier, long from, long to) {
+        List<TimeSeriesSegment.Record> result = Lists.newArrayList();
+        List<File> segments = listSegments(getTierDir(entityId, sensor, tier));
+        List<TierWriter> series = writers.get(entityId+"/"+sensor);
+        TierWriter writer = series == null ? null : series.get(tiers.indexOf(tier));
+        for (int i=0; i<segments.size(); i++) {
+            if (firstTimeOf(segments.get(i)) > to) break;
+            if (i+1 < segments.size() && firstTimeOf(segments.get(i+1)) < from) continue;
+            try {
+                result.addAll(getSegment(segments.get(i), writer).read(from, to));
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.warn("Unable to read sensor history from "+segments.get(i)+"; skipping: "+e);
+            }
+        }
+        // include the bucket still being accumulated, so recent values show at coarse resolutions
+        if (writer != null) {
+            Bucket pending = writer.pending;
+            if (pending != null && pending.count > 0 && pending.time >= from && pending.time <= to) {
+                result.add(new TimeSeriesSegment.Record(pending.time, new double[] { pending.min, pending.max, pending.sum, pending.count }));
+            }
+        }
+        return result;
+    }
+
+    /** the writer's segment if it is appending to the file, else the file opened read-only (and kept open) */
+    private TimeSeriesSegment getSegment(File file, TierWriter writer) throws IOException {
+        if (writer != null && writer.segment != null && writer.segment.getFile().equals(file)) return writer.segment;
+        TimeSeriesSegment result = openSegments.get(file);
+        if (result == null) openSegments.put(file, result = TimeSeriesSegment.openReadOnly(file));
+        return result;
+    }
+
+    private File getTierDir(String entityId, String sensor, Tier tier) {
+        return new File(new File(new File(dir, entityId), sensor.replaceAll("[^A-Za-z0-9._-]", "_")), tier.name);
+    }
+
+    /** segment files in the directory, oldest first */
+    private static List<File> listSegments(File tierDir) {
+        File[] files = tierDir.listFiles();
+        if (files == null) return ImmutableList.of();
+        List<File> result = Lists.newArrayList();
+        for (File file : files) {
+            if (file.getName().endsWith(SEGMENT_SUFFIX)) result.add(file);
+        }
+        Collections.sort(result, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.valueOf(firstTimeOf(a)).compareTo(firstTimeOf(b));
+            }
+        });
+        return result;
+    }
+
+    private static long firstTimeOf(File segment) {
+        return Long.parseLong(segment.getName().substring(0, segment.getName().length() - SEGMENT_SUFFIX.length()));
+    }
+}
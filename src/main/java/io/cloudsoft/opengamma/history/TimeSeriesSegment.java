@@ -0,0 +1,192 @@
+package io.cloudsoft.opengamma.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A fixed-size, memory-mapped, append-only file of time-stamped records, each holding a fixed number of values.
+ * <p>
+ * Records are delta-encoded: the time as a varint of the millis since the previous record, and each value
+ * as a varint of its bits XOR those of the previous record's value, bit-reversed so that repeated and
+ * integral values (the common case for counts) take one or two bytes rather than eight.
+ * The record count in the header is only updated once a record is complete, so a crash mid-write loses at most that record.
+ * <p>
+ * Segments opened read-only do not replay their records, and re-read the count from the header on each read,
+ * so they see records appended meanwhile through a writable mapping of the same file.
+ */
+public class TimeSeriesSegment {
+
+    private static final int MAGIC = 0x4f475453;
+    private static final int HEADER_SIZE = 4+4+4+8;
+    private static final int MAX_VARINT_SIZE = 10;
+
+    public static class Record {
+        private final long time;
+        private final double[] values;
+
+        Record(long time, double[] values) {
+            this.time = time;
+            this.values = values;
+        }
+
+        public long getTime() { return time; }
+        public double[] getValues() { return values; }
+    }
+
+    /** decodes records in turn, tracking the previous record to apply the deltas to */
+    private static class Cursor {
+        private final ByteBuffer buffer;
+        private long time;
+        private final long[] bits;
+
+        Cursor(ByteBuffer buffer, long firstTime, int fields) {
+            this.buffer = buffer;
+            this.time = firstTime;
+            this.bits = new long[fields];
+            buffer.position(HEADER_SIZE);
+        }
+
+        Record next() {
+            time += readVarint();
+            double[] values = new double[bits.length];
+            for (int i=0; i<bits.length; i++) {
+                bits[i] ^= Long.reverse(readVarint());
+                values[i] = Double.longBitsToDouble(bits[i]);
+            }
+            return new Record(time, values);
+        }
+
+        private long readVarint() {
+            long result = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+            }
+        }
+    }
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int fields;
+    private final long firstTime;
+    private final boolean writable;
+    private final long[] lastBits;
+    private long lastTime;
+    private int count;
+
+    private TimeSeriesSegment(File file, MappedByteBuffer buffer, boolean writable) {
+        this.file = file;
+        this.buffer = buffer;
+        this.writable = writable;
+        if (buffer.getInt(0) != MAGIC) throw new IllegalStateException("Not a time series segment: "+file);
+        this.fields = buffer.getInt(4);
+        this.count = buffer.getInt(8);
+        this.firstTime = buffer.getLong(12);
+        if (writable) {
+            // replay the records to find where to append and what to delta against
+            Cursor cursor = new Cursor(buffer, firstTime, fields);
+            for (int i=0; i<count; i++) cursor.next();
+            this.lastTime = cursor.time;
+            this.lastBits = cursor.bits;
+        } else {
+            // not known without replaying; reads check each record's time instead
+            this.lastTime = Long.MAX_VALUE;
+            this.lastBits = null;
+        }
+    }
+
+    /** creates a new segment of the given size in bytes, for records of the given number of values from the given time */
+    public static TimeSeriesSegment create(File file, int size, int fields, long firstTime) throws IOException {
+        MappedByteBuffer buffer = map(file, size, true);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, fields);
+        buffer.putInt(8, 0);
+        buffer.putLong(12, firstTime);
+        return new TimeSeriesSegment(file, buffer, true);
+    }
+
+    /** opens a segment to append to, replaying its records */
+    public static TimeSeriesSegment open(File file) throws IOException {
+        return new TimeSeriesSegment(file, map(file, file.length(), true), true);
+    }
+
+    /** opens a segment only to read, without replaying its records */
+    public static TimeSeriesSegment openReadOnly(File file) throws IOException {
+        return new TimeSeriesSegment(file, map(file, file.length(), false), false);
+    }
+
+    private static MappedByteBuffer map(File file, long size, boolean writable) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            // the mapping remains valid once the file is closed
+            return raf.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public File getFile() { return file; }
+    public long getFirstTime() { return firstTime; }
+    /** the time of the last record, or {@link Long#MAX_VALUE} if opened read-only */
+    public long getLastTime() { return lastTime; }
+    public int getCount() { return writable ? count : buffer.getInt(8); }
+
+    /**
+     * Appends a record, returning false (and writing nothing) if the segment is full.
+     * Times earlier than the last record are recorded as at the last record.
+     */
+    public synchronized boolean append(long time, double... values) {
+        if (!writable) throw new IllegalStateException("Cannot append to "+file+": opened read-only");
+        if (values.length != fields) throw new IllegalArgumentException("Expected "+fields+" values for "+file+", got "+values.length);
+        if (buffer.position() + (fields+1)*MAX_VARINT_SIZE > buffer.capacity()) return false;
+        time = Math.max(time, lastTime);
+        writeVarint(time - lastTime);
+        lastTime = time;
+        for (int i=0; i<fields; i++) {
+            long bits = Double.doubleToLongBits(values[i]);
+            writeVarint(Long.reverse(bits ^ lastBits[i]));
+            lastBits[i] = bits;
+        }
+        buffer.putInt(8, ++count);
+        return true;
+    }
+
+    /** the records with times in the given range (inclusive) */
+    public synchronized List<Record> read(long from, long to) {
+        List<Record> result = Lists.newArrayList();
+        if (lastTime < from || firstTime > to) return result;
+        Cursor cursor = new Cursor(buffer.duplicate(), firstTime, fields);
+        for (int i=0, n=getCount(); i<n; i++) {
+            Record record = cursor.next();
+            if (record.time > to) break;
+            if (record.time >= from) result.add(record);
+        }
+        return result;
+    }
+
+    /** flushes written records to disk */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    @Override
+    public String toString() {
+        return "TimeSeriesSegment["+file+", "+getCount()+" records]";
+    }
+}
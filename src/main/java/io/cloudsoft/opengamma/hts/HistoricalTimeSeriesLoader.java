@@ -0,0 +1,59 @@
+package io.cloudsoft.opengamma.hts;
+
+import io.cloudsoft.opengamma.server.OpenGammaServer;
+
+import java.util.Map;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.Entity;
+import brooklyn.entity.annotation.Effector;
+import brooklyn.entity.annotation.EffectorParam;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.database.postgresql.PostgreSqlNode;
+import brooklyn.entity.proxying.ImplementedBy;
+import brooklyn.entity.trait.Startable;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.util.flags.SetFromFlag;
+
+/**
+ * Bulk-loads historical time-series points into the HTS tables of the OpenGamma database,
+ * for series whose documents already exist (e.g. years of real data for the example series).
+ * <p>
+ * Each source file (a block of series) is streamed into an unindexed staging table with {@code COPY},
+ * several files at once; the points are then merged into {@code hts_point} in one sorted insert,
+ * so its index is maintained once rather than row by row. Points for unknown series, and for dates a
+ * series already has, are skipped, so a load can safely be repeated; those of the latter with a different
+ * value are reported as rejected, as they are not applied as corrections.
+ * <p>
+ * Runs in the Brooklyn management node; the load itself runs on the database machine.
+ */
+@ImplementedBy(HistoricalTimeSeriesLoaderImpl.class)
+public interface HistoricalTimeSeriesLoader extends Entity, Startable {
+
+    ConfigKey<PostgreSqlNode> DATABASE = OpenGammaServer.DATABASE;
+
+    @SetFromFlag("parallelism")
+    ConfigKey<Integer> PARALLELISM = ConfigKeys.newIntegerConfigKey(
+            "opengamma.hts.load.parallelism", "Number of files copied into the database at once", 4);
+
+    AttributeSensor<Long> ROWS_LOADED =
+            new BasicAttributeSensor<Long>(Long.class, "opengamma.hts.load.rows", "Points added to the HTS tables by all loads");
+
+    AttributeSensor<Double> ROWS_PER_SECOND =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.hts.load.rowsPerSec", "Points per second copied so far in the " +
+            "current load, or added overall (copy and merge) in the last one");
+
+    AttributeSensor<Boolean> LOADING =
+            new BasicAttributeSensor<Boolean>(Boolean.class, "opengamma.hts.load.active", "Whether a load is in progress");
+
+    @Effector(description="Loads time-series points into the HTS tables with COPY, several files at once, then merges them into hts_point; " +
+            "returns the rows copied, added and rejected (existing dates with a different value), and the time taken")
+    Map<String,Object> loadTimeSeries(
+            @EffectorParam(name="source", description="Files on the database machine, or http(s) URLs, separated by commas; " +
+                    "directories are loaded file by file and globs are expanded; .gz files are decompressed") String source,
+            @EffectorParam(name="format", description="'csv' (rows of series object id, date, value) or 'binary' " +
+                    "(COPY BINARY of the same columns); default csv") String format,
+            @EffectorParam(name="parallelism", description="Files copied at once; default PARALLELISM") Integer parallelism);
+
+}
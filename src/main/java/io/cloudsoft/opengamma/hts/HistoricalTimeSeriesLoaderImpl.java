@@ -0,0 +1,201 @@
+package io.cloudsoft.opengamma.hts;
+
+import io.cloudsoft.opengamma.server.DatabaseCommands;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.basic.AbstractEntity;
+import brooklyn.entity.basic.Attributes;
+import brooklyn.entity.basic.Lifecycle;
+import brooklyn.entity.database.postgresql.PostgreSqlNode;
+import brooklyn.location.Location;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.text.Strings;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.net.HostAndPort;
+
+public class HistoricalTimeSeriesLoaderImpl extends AbstractEntity implements HistoricalTimeSeriesLoader {
+
+    private static final Logger log = LoggerFactory.getLogger(HistoricalTimeSeriesLoaderImpl.class);
+
+    /** paths, globs and URLs; nothing the shell would treat as more than words to expand */
+    private static final Pattern SOURCE = Pattern.compile("[\\w./:*?\\[\\]~%=+-]+(\\s*,\\s*[\\w./:*?\\[\\]~%=+-]+)*");
+    private static final Pattern COPIED = Pattern.compile("^COPY (\\d+)$");
+    private static final Pattern INSERTED = Pattern.compile("^INSERT \\d+ (\\d+)$", Pattern.MULTILINE);
+    private static final Pattern REJECTED = Pattern.compile("^REJECTED (\\d+)$", Pattern.MULTILINE);
+
+    @Override
+    public void start(Collection<? extends Location> locations) {
+        setAttribute(ROWS_LOADED, 0L);
+        setAttribute(LOADING, false);
+        setAttribute(SERVICE_UP, true);
+        setAttribute(Attributes.SERVICE_STATE, Lifecycle.RUNNING);
+    }
+
+    @Override
+    public void stop() {
+        setAttribute(SERVICE_UP, false);
+        setAttribute(Attributes.SERVICE_STATE, Lifecycle.STOPPED);
+    }
+
+    @Override
+    public void restart() {
+        stop();
+        start(getLocations());
+    }
+
+    @Override
+    public synchronized Map<String,Object> loadTimeSeries(String source, String format, Integer parallelism) {
+        Preconditions.checkArgument(Strings.isNonBlank(source) && SOURCE.matcher(source.trim()).matches(),
+                "Source must be paths, globs or URLs separated by commas: %s", source);
+        String copyFormat = Strings.isBlank(format) ? "csv" : format.trim().toLowerCase();
+        Preconditions.checkArgument(copyFormat.equals("csv") || copyFormat.equals("binary"), "Format must be csv or binary: %s", format);
+        int jobs = parallelism != null && parallelism > 0 ? parallelism : getConfig(PARALLELISM);
+
+        PostgreSqlNode database = Preconditions.checkNotNull(getConfig(DATABASE), "database");
+        Preconditions.checkState(Boolean.TRUE.equals(database.getAttribute(PostgreSqlNode.SERVICE_UP)), "Database %s is not up", database);
+        SshMachineLocation machine = (SshMachineLocation) Iterables.find(database.getLocations(), Predicates.instanceOf(SshMachineLocation.class));
+        String psql = DatabaseCommands.psql(HostAndPort.fromParts(database.getAttribute(PostgreSqlNode.ADDRESS), database.getAttribute(PostgreSqlNode.POSTGRESQL_PORT)));
+        String staging = "hts_point_load_"+System.currentTimeMillis();
+        String workDir = "/tmp/"+staging;
+
+        log.info("{}: loading time series from {} into {} ({} files at once)", new Object[] {this, source, database, jobs});
+        setAttribute(LOADING, true);
+        long start = System.currentTimeMillis();
+        try {
+            CopyProgress progress = new CopyProgress(start);
+            int result = machine.execScript(MutableMap.of("out", progress), "copying HTS points", getCopyCommands(source, copyFormat, jobs, psql, staging, workDir));
+            if (result != 0) throw new IllegalStateException("Failed to copy time series from "+source+" into "+database+" (exit code "+result+")");
+            long copied = progress.getRows();
+            long copyMillis = System.currentTimeMillis() - start;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            result = machine.execScript(MutableMap.of("out", out), "merging HTS points", getMergeCommands(psql, staging));
+            if (result != 0) throw new IllegalStateException("Failed to merge time series copied from "+source+" into "+database+" (exit code "+result+")");
+            String merged = new String(out.toByteArray(), Charsets.UTF_8);
+            Matcher inserted = INSERTED.matcher(merged);
+            long added = inserted.find() ? Long.parseLong(inserted.group(1)) : 0;
+            Matcher rejected = REJECTED.matcher(merged);
+            long conflicting = rejected.find() ? Long.parseLong(rejected.group(1)) : 0;
+            long totalMillis = System.currentTimeMillis() - start;
+
+            setAttribute(ROWS_LOADED, getAttribute(ROWS_LOADED) + added);
+            setAttribute(ROWS_PER_SECOND, totalMillis > 0 ? added * 1000d / totalMillis : null);
+            log.info("{}: loaded {} points from {} ({} copied; others were for unknown series or existing dates) in {}",
+                    new Object[] {this, added, source, copied, Time.makeTimeStringRounded(totalMillis)});
+            if (conflicting > 0) {
+                log.warn("{}: rejected {} points from {} whose dates already have a different value; correct them through OpenGamma",
+                        new Object[] {this, conflicting, source});
+            }
+            Map<String,Object> result = MutableMap.<String,Object>of(
+                    "rowsCopied", copied,
+                    "rowsAdded", added,
+                    "rowsSkipped", copied - added,
+                    "rowsRejected", conflicting,
+                    "copyMillis", copyMillis);
+            result.put("mergeMillis", totalMillis - copyMillis);
+            return result;
+        } finally {
+            machine.execScript("removing HTS staging", ImmutableList.<String>builder()
+                    .addAll(DatabaseCommands.setup())
+                    .add(psql+" -c \"DROP TABLE IF EXISTS "+staging+"\"")
+                    .add("rm -rf "+workDir)
+                    .build());
+            setAttribute(LOADING, false);
+        }
+    }
+
+    /**
+     * Commands (run on the database machine) to create the staging table, list the files (or URLs) to load,
+     * and stream each into the staging table with COPY, {@code jobs} at a time; psql prints {@code COPY <rows>} as each completes.
+     */
+    protected List<String> getCopyCommands(String source, String format, int jobs, String psql, String staging, String workDir) {
+        String block = Joiner.on('\n').join(
+                "set -o pipefail",
+                "case \"$1\" in http://*|https://*) fetch=\"curl -sSfL\" ;; *) fetch=\"cat\" ;; esac",
+                "case \"$1\" in *.gz) decompress=\"gunzip -c\" ;; *) decompress=\"cat\" ;; esac",
+                "$fetch \"$1\" | $decompress | "+psql+" -c \"COPY "+staging+" FROM STDIN WITH (FORMAT "+format+")\" || { echo \"Failed to load $1\" >&2; exit 255; }");
+        return ImmutableList.<String>builder()
+                .addAll(DatabaseCommands.setup())
+                .add("export PG_BIN")
+                .add("mkdir -p "+workDir)
+                // unlogged and unindexed, so COPY only appends
+                .add(psql+" -c \"CREATE UNLOGGED TABLE "+staging+" (doc_oid bigint NOT NULL, point_date date NOT NULL, point_value double precision)\"")
+                .add("cat > "+workDir+"/block.sh <<'END_OF_BLOCK'\n"+block+"\nEND_OF_BLOCK")
+                .add("for s in "+source.replace(',', ' ')+"; do if [ -d \"$s\" ]; then find \"$s\" -type f | sort; else echo \"$s\"; fi; done > "+workDir+"/blocks")
+                .add("echo \"Loading $(wc -l < "+workDir+"/blocks) files\"")
+                .add("xargs -P "+jobs+" -I {} bash "+workDir+"/block.sh {} < "+workDir+"/blocks")
+                .build();
+    }
+
+    /**
+     * Commands (run on the database machine) to add the staged points to hts_point in one insert, sorted by its key,
+     * as a new version of each series (as OpenGamma does when points are added), then update the planner statistics.
+     * Points for dates a series already has are not loaded; first prints {@code REJECTED <n>}, the number of those
+     * whose value differs from the current one (i.e. would be corrections).
+     */
+    protected List<String> getMergeCommands(String psql, String staging) {
+        return ImmutableList.<String>builder()
+                .addAll(DatabaseCommands.setup())
+                .add(psql+" -c \"ANALYZE "+staging+"\"")
+                .add(psql+" -t -A -c \"SELECT 'REJECTED ' || count(*) FROM " +
+                        "(SELECT DISTINCT ON (doc_oid, point_date) doc_oid, point_date, point_value FROM "+staging+" ORDER BY doc_oid, point_date) l " +
+                        "WHERE l.point_value IS DISTINCT FROM (SELECT p.point_value FROM hts_point p " +
+                        "WHERE p.doc_oid = l.doc_oid AND p.point_date = l.point_date ORDER BY p.ver_instant DESC, p.corr_instant DESC LIMIT 1) " +
+                        "AND EXISTS (SELECT 1 FROM hts_point p WHERE p.doc_oid = l.doc_oid AND p.point_date = l.point_date)\"")
+                .add(psql+" -c \"INSERT INTO hts_point (doc_oid, point_date, ver_instant, corr_instant, point_value) " +
+                        "SELECT DISTINCT ON (l.doc_oid, l.point_date) l.doc_oid, l.point_date, now() AT TIME ZONE 'UTC', now() AT TIME ZONE 'UTC', l.point_value " +
+                        "FROM "+staging+" l " +
+                        "WHERE EXISTS (SELECT 1 FROM hts_document d WHERE d.oid = l.doc_oid) " +
+                        "AND NOT EXISTS (SELECT 1 FROM hts_point p WHERE p.doc_oid = l.doc_oid AND p.point_date = l.point_date) " +
+                        "ORDER BY l.doc_oid, l.point_date\"")
+                .add(psql+" -c \"ANALYZE hts_point\"")
+                .build();
+    }
+
+    /** Counts the rows reported by each completed COPY, publishing the rate as they complete. */
+    private class CopyProgress extends OutputStream {
+        private final long start;
+        private final StringBuilder line = new StringBuilder();
+        private long rows;
+
+        CopyProgress(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (b != '\n') {
+                line.append((char) b);
+                return;
+            }
+            Matcher copied = COPIED.matcher(line.toString().trim());
+            line.setLength(0);
+            if (!copied.matches()) return;
+            rows += Long.parseLong(copied.group(1));
+            long elapsed = System.currentTimeMillis() - start;
+            if (elapsed > 0) setAttribute(ROWS_PER_SECOND, rows * 1000d / elapsed);
+        }
+
+        synchronized long getRows() {
+            return rows;
+        }
+    }
+}
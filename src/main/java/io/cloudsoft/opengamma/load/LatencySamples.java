@@ -0,0 +1,52 @@
+package io.cloudsoft.opengamma.load;
+
+import java.util.Arrays;
+
+/**
+ * Thread-safe collector of latency samples, drained periodically to compute percentiles.
+ * Bounded: once {@code capacity} samples have been recorded in a window, further samples
+ * overwrite the oldest (so a very busy window is still represented by recent samples).
+ */
+public class LatencySamples {
+
+    private final long[] samples;
+    private int next = 0;
+    private int size = 0;
+
+    public LatencySamples(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (size < samples.length) size++;
+    }
+
+    /** returns the samples recorded since the last drain, sorted ascending, and resets */
+    public synchronized long[] drain() {
+        long[] result = new long[size];
+        int start = (next - size + samples.length) % samples.length;
+        for (int i=0; i<size; i++) {
+            result[i] = samples[(start + i) % samples.length];
+        }
+        next = 0;
+        size = 0;
+        Arrays.sort(result);
+        return result;
+    }
+
+    /** nearest-rank percentile of an already sorted array; null if empty */
+    public static Double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) return null;
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return (double) sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    /** nearest-rank percentile of an already sorted array; null if empty */
+    public static Double percentile(double[] sorted, double percentile) {
+        if (sorted.length == 0) return null;
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}
@@ -0,0 +1,78 @@
+package io.cloudsoft.opengamma.load;
+
+import java.util.List;
+
+import brooklyn.util.text.Strings;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Piecewise-linear ramp of the number of concurrently open views over time.
+ * <p>
+ * Parsed from a comma-separated list of {@code time=views} steps, e.g.
+ * {@code "0s=1, 2m=4, 10m=12, 15m=0"}; between steps the target is interpolated,
+ * and after the last step the last value is held.
+ */
+public class LoadProfile {
+
+    public static class Step {
+        final long offsetMillis;
+        final int views;
+        Step(long offsetMillis, int views) {
+            this.offsetMillis = offsetMillis;
+            this.views = views;
+        }
+        @Override
+        public String toString() { return Duration.millis(offsetMillis)+"="+views; }
+    }
+
+    private final List<Step> steps;
+
+    private LoadProfile(List<Step> steps) {
+        this.steps = ImmutableList.copyOf(steps);
+    }
+
+    public static LoadProfile parse(String profile) {
+        if (Strings.isBlank(profile)) throw new IllegalArgumentException("Load profile must not be blank");
+        List<Step> steps = Lists.newArrayList();
+        long last = -1;
+        for (String step : Splitter.on(',').trimResults().omitEmptyStrings().split(profile)) {
+            int eq = step.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Invalid load profile step '"+step+"' in '"+profile+"'; expected time=views");
+            long offset = Duration.of(step.substring(0, eq).trim()).toMilliseconds();
+            int views = Integer.parseInt(step.substring(eq + 1).trim());
+            if (offset < last) throw new IllegalArgumentException("Load profile steps must be in time order: '"+profile+"'");
+            if (views < 0) throw new IllegalArgumentException("Load profile views must not be negative: '"+profile+"'");
+            steps.add(new Step(offset, views));
+            last = offset;
+        }
+        return new LoadProfile(steps);
+    }
+
+    /** target number of open views at the given time since the start of the run */
+    public int getTargetViews(long elapsedMillis) {
+        Step previous = null;
+        for (Step step : steps) {
+            if (elapsedMillis < step.offsetMillis) {
+                if (previous == null) return 0;
+                double fraction = (double) (elapsedMillis - previous.offsetMillis) / (step.offsetMillis - previous.offsetMillis);
+                return (int) Math.round(previous.views + fraction * (step.views - previous.views));
+            }
+            previous = step;
+        }
+        return previous == null ? 0 : previous.views;
+    }
+
+    /** time of the last step, after which the load is held constant */
+    public long getDurationMillis() {
+        return steps.isEmpty() ? 0 : steps.get(steps.size() - 1).offsetMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "LoadProfile"+steps;
+    }
+}
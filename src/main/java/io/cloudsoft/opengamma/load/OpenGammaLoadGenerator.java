@@ -0,0 +1,114 @@
+package io.cloudsoft.opengamma.load;
+
+import java.util.List;
+import java.util.Map;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.proxying.ImplementedBy;
+import brooklyn.entity.trait.Startable;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.reflect.TypeToken;
+
+/**
+ * Drives load against the OpenGamma web/REST API behind a target's {@code ROOT_URL},
+ * opening and closing view processes according to a {@link LoadProfile} and issuing
+ * UI requests for each open view, so scaling policies and JVM settings can be benchmarked repeatably.
+ * <p>
+ * Runs in the Brooklyn management node; it needs no location of its own.
+ */
+@ImplementedBy(OpenGammaLoadGeneratorImpl.class)
+public interface OpenGammaLoadGenerator extends Entity, Startable {
+
+    @SetFromFlag("target")
+    ConfigKey<Entity> TARGET = ConfigKeys.newConfigKey(Entity.class,
+            "opengamma.load.target", "Entity whose ROOT_URL is the OpenGamma endpoint to drive (e.g. the application, fabric or cluster)");
+
+    @SetFromFlag("profile")
+    ConfigKey<String> LOAD_PROFILE = ConfigKeys.newStringConfigKey(
+            "opengamma.load.profile", "Ramp of concurrently open views, as comma-separated time=views steps",
+            "0s=1, 2m=4, 10m=8, 15m=0");
+
+    @SetFromFlag("viewDefinitions")
+    ConfigKey<List<String>> VIEW_DEFINITION_NAMES = ConfigKeys.newConfigKey(new TypeToken<List<String>>() { },
+            "opengamma.load.viewDefinitions", "Names of view definitions to open (round-robin); " +
+            "if empty, all view definitions listed by the server are used", ImmutableList.<String>of());
+
+    @SetFromFlag("uiRequestsPerViewPerSecond")
+    ConfigKey<Double> UI_REQUESTS_PER_VIEW_PER_SECOND = ConfigKeys.newDoubleConfigKey(
+            "opengamma.load.uiRequestsPerViewPerSecond", "Rate of UI requests issued for each open view", 0.5d);
+
+    @SetFromFlag("uiRequestPaths")
+    ConfigKey<List<String>> UI_REQUEST_PATHS = ConfigKeys.newConfigKey(new TypeToken<List<String>>() { },
+            "opengamma.load.uiRequestPaths", "Paths requested round-robin to simulate UI browsing alongside open views",
+            ImmutableList.of("/jax/viewdefinitions", "/jax/portfolios", "/jax/securities", "/jax/timeseries"));
+
+    @SetFromFlag("restPaths")
+    ConfigKey<Map<String,String>> REST_PATHS = ConfigKeys.newConfigKey(new TypeToken<Map<String,String>>() { },
+            "opengamma.load.restPaths", "REST paths for the analytics API (keys: viewDefinitions, clients, views, updates)",
+            ImmutableMap.of(
+                    "viewDefinitions", "/jax/viewdefinitions",
+                    "clients", "/jax/clients",
+                    "views", "/jax/views",
+                    "updates", "/jax/updates"));
+
+    @SetFromFlag("marketDataProviders")
+    ConfigKey<String> MARKET_DATA_PROVIDERS = ConfigKeys.newStringConfigKey(
+            "opengamma.load.marketDataProviders", "JSON market data providers passed when opening a view",
+            "[{\"marketDataType\":\"live\",\"source\":\"Simulated\"}]");
+
+    @SetFromFlag("requestTimeout")
+    ConfigKey<Duration> REQUEST_TIMEOUT = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.load.requestTimeout", "Timeout for each HTTP request", Duration.THIRTY_SECONDS);
+
+    @SetFromFlag("samplePeriod")
+    ConfigKey<Duration> SAMPLE_PERIOD = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.load.samplePeriod", "Period over which throughput, latency and errors are computed and published", Duration.FIVE_SECONDS);
+
+    @SetFromFlag("reportFile")
+    ConfigKey<String> REPORT_FILE = ConfigKeys.newStringConfigKey(
+            "opengamma.load.reportFile", "CSV file on the Brooklyn management node to which samples are appended " +
+            "(defaults to opengamma-load-<id>.csv in the temp dir)");
+
+    @SetFromFlag("stopWhenProfileCompletes")
+    ConfigKey<Boolean> STOP_WHEN_PROFILE_COMPLETES = ConfigKeys.newBooleanConfigKey(
+            "opengamma.load.stopWhenProfileCompletes", "Whether to stop driving load (and write the summary) once the last profile step is reached", true);
+
+    AttributeSensor<Integer> TARGET_VIEWS =
+            new BasicAttributeSensor<Integer>(Integer.class, "opengamma.load.views.target", "Number of open views the profile currently calls for");
+
+    AttributeSensor<Integer> OPEN_VIEWS =
+            new BasicAttributeSensor<Integer>(Integer.class, "opengamma.load.views.open", "Number of views currently held open by the load generator");
+
+    AttributeSensor<Double> REQUESTS_PER_SECOND =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.load.requests.perSec", "Requests completed per second (last sample period)");
+
+    AttributeSensor<Double> ERROR_RATE =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.load.errors.fraction", "Fraction of requests failing (last sample period)");
+
+    AttributeSensor<Double> REQUEST_LATENCY_P95 =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.load.requests.latency.p95", "95th percentile request latency in millis (last sample period)");
+
+    AttributeSensor<Double> VIEW_CYCLE_LATENCY_P50 =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.load.views.cycleLatency.p50", "Median end-to-end view-cycle latency in millis (last sample period)");
+
+    AttributeSensor<Double> VIEW_CYCLE_LATENCY_P95 =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.load.views.cycleLatency.p95", "95th percentile end-to-end view-cycle latency in millis (last sample period)");
+
+    AttributeSensor<Double> VIEW_CYCLE_LATENCY_P99 =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.load.views.cycleLatency.p99", "99th percentile end-to-end view-cycle latency in millis (last sample period)");
+
+    AttributeSensor<Double> VIEW_FIRST_RESULT_LATENCY_P95 =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.load.views.firstResultLatency.p95", "95th percentile time from opening a view to its first result, in millis (last sample period)");
+
+    AttributeSensor<String> REPORT_FILE_PATH =
+            new BasicAttributeSensor<String>(String.class, "opengamma.load.report.path", "Path of the CSV report on the Brooklyn management node");
+
+}
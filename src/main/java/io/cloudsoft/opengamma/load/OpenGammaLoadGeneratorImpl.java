@@ -0,0 +1,345 @@
+package io.cloudsoft.opengamma.load;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.AbstractEntity;
+import brooklyn.entity.basic.Attributes;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.Lifecycle;
+import brooklyn.entity.webapp.WebAppServiceConstants;
+import brooklyn.event.basic.DependentConfiguration;
+import brooklyn.location.Location;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.text.Identifiers;
+import brooklyn.util.text.Strings;
+import brooklyn.util.time.Duration;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+
+public class OpenGammaLoadGeneratorImpl extends AbstractEntity implements OpenGammaLoadGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(OpenGammaLoadGeneratorImpl.class);
+
+    private static final Pattern JSON_OBJECT = Pattern.compile("\\{[^{}]*\\}");
+    private static final Pattern JSON_ID = Pattern.compile("\"id\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern JSON_NAME = Pattern.compile("\"name\"\\s*:\\s*\"([^\"]+)\"");
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong totalRequests = new AtomicLong();
+    private final AtomicLong totalErrors = new AtomicLong();
+    private final AtomicInteger nextViewDefinition = new AtomicInteger();
+    private final AtomicInteger nextUiPath = new AtomicInteger();
+    private final LatencySamples requestLatency = new LatencySamples(10000);
+    private final LatencySamples cycleLatency = new LatencySamples(10000);
+    private final LatencySamples firstResultLatency = new LatencySamples(1000);
+    private final List<ViewSession> sessions = new CopyOnWriteArrayList<ViewSession>();
+
+    private volatile ScheduledExecutorService scheduler;
+    private volatile ExecutorService viewPollers;
+    private volatile OpenGammaRestClient client;
+    private volatile LoadProfile profile;
+    private volatile List<String> viewDefinitionIds;
+    private volatile long startTime;
+    private volatile long lastSampleTime;
+    private double uiRequestBacklog = 0;
+    private File reportFile;
+
+    @Override
+    public void start(Collection<? extends Location> locations) {
+        setAttribute(Attributes.SERVICE_STATE, Lifecycle.STARTING);
+        try {
+            profile = LoadProfile.parse(getConfig(LOAD_PROFILE));
+            Entity target = Preconditions.checkNotNull(getConfig(TARGET), "target");
+            String rootUrl = Entities.submit(this, DependentConfiguration.attributeWhenReady(target, WebAppServiceConstants.ROOT_URL)).getUnchecked();
+            client = new OpenGammaRestClient(rootUrl, (int) getConfig(REQUEST_TIMEOUT).toMilliseconds());
+            viewDefinitionIds = lookupViewDefinitions();
+            log.info("Load generator {} driving {} with {} across view definitions {}", new Object[] {this, rootUrl, profile, viewDefinitionIds});
+
+            reportFile = new File(Strings.isNonBlank(getConfig(REPORT_FILE)) ? getConfig(REPORT_FILE) :
+                    new File(System.getProperty("java.io.tmpdir"), "opengamma-load-"+getId()+".csv").getPath());
+            appendToReport("timestamp,elapsedSeconds,targetViews,openViews,requestsPerSec,errorRate,requestLatencyP95," +
+                    "cycleLatencyP50,cycleLatencyP95,cycleLatencyP99,firstResultLatencyP95");
+            setAttribute(REPORT_FILE_PATH, reportFile.getAbsolutePath());
+
+            scheduler = Executors.newScheduledThreadPool(4);
+            viewPollers = Executors.newCachedThreadPool();
+            startTime = lastSampleTime = System.currentTimeMillis();
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() { adjustOpenViews(); }
+            }, 0, 1, TimeUnit.SECONDS);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() { issueUiRequests(); }
+            }, 1, 1, TimeUnit.SECONDS);
+            long samplePeriod = getConfig(SAMPLE_PERIOD).toMilliseconds();
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() { sample(); }
+            }, samplePeriod, samplePeriod, TimeUnit.MILLISECONDS);
+
+            setAttribute(SERVICE_UP, true);
+            setAttribute(Attributes.SERVICE_STATE, Lifecycle.RUNNING);
+        } catch (Exception e) {
+            setAttribute(Attributes.SERVICE_STATE, Lifecycle.ON_FIRE);
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        setAttribute(Attributes.SERVICE_STATE, Lifecycle.STOPPING);
+        if (scheduler != null) scheduler.shutdownNow();
+        for (ViewSession session : sessions) {
+            session.close();
+        }
+        sessions.clear();
+        if (viewPollers != null) viewPollers.shutdownNow();
+        if (reportFile != null && startTime > 0) {
+            sample();
+            appendToReport("# total requests "+totalRequests.get()+", total errors "+totalErrors.get()+
+                    ", duration "+Time.makeTimeStringRounded(System.currentTimeMillis() - startTime)+", profile "+profile);
+        }
+        setAttribute(OPEN_VIEWS, 0);
+        setAttribute(SERVICE_UP, false);
+        setAttribute(Attributes.SERVICE_STATE, Lifecycle.STOPPED);
+    }
+
+    @Override
+    public void restart() {
+        stop();
+        start(getLocations());
+    }
+
+    protected List<String> lookupViewDefinitions() {
+        List<String> wanted = getConfig(VIEW_DEFINITION_NAMES);
+        String path = getConfig(REST_PATHS).get("viewDefinitions");
+        // server may still be loading its components; allow a generous number of attempts
+        for (int attempt=1; ; attempt++) {
+            try {
+                OpenGammaRestClient.Response response = client.get(path);
+                if (response.isSuccess()) {
+                    List<String> ids = Lists.newArrayList();
+                    Matcher objects = JSON_OBJECT.matcher(response.getBody());
+                    while (objects.find()) {
+                        Matcher id = JSON_ID.matcher(objects.group());
+                        Matcher name = JSON_NAME.matcher(objects.group());
+                        if (id.find() && (wanted.isEmpty() || (name.find() && wanted.contains(name.group(1))))) {
+                            ids.add(id.group(1));
+                        }
+                    }
+                    if (!ids.isEmpty()) return ids;
+                    log.debug("Load generator {} found no matching view definitions yet at {}", this, path);
+                } else {
+                    log.debug("Load generator {} got {} listing view definitions at {}", new Object[] {this, response, path});
+                }
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                log.debug("Load generator "+this+" failed listing view definitions (attempt "+attempt+"): "+e);
+            }
+            if (attempt >= 60) throw new IllegalStateException("No view definitions "+(wanted.isEmpty() ? "" : wanted+" ")+"available at "+client.resolve(path));
+            Time.sleep(Duration.TEN_SECONDS);
+        }
+    }
+
+    protected void adjustOpenViews() {
+        try {
+            long elapsed = System.currentTimeMillis() - startTime;
+            if (getConfig(STOP_WHEN_PROFILE_COMPLETES) && elapsed > profile.getDurationMillis() && profile.getTargetViews(elapsed) == 0 && sessions.isEmpty()) {
+                log.info("Load generator {} completed profile {}", this, profile);
+                scheduler.shutdown();
+                sample();
+                return;
+            }
+            int target = profile.getTargetViews(elapsed);
+            setAttribute(TARGET_VIEWS, target);
+            while (sessions.size() < target) {
+                ViewSession session = new ViewSession(viewDefinitionIds.get(nextViewDefinition.getAndIncrement() % viewDefinitionIds.size()));
+                if (!session.open()) break;
+                sessions.add(session);
+                viewPollers.submit(session);
+            }
+            while (sessions.size() > target) {
+                ViewSession session = sessions.remove(sessions.size() - 1);
+                session.close();
+            }
+            setAttribute(OPEN_VIEWS, sessions.size());
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            log.warn("Load generator "+this+" failed adjusting open views: "+e, e);
+        }
+    }
+
+    protected synchronized void issueUiRequests() {
+        List<String> paths = getConfig(UI_REQUEST_PATHS);
+        if (paths.isEmpty()) return;
+        uiRequestBacklog += sessions.size() * getConfig(UI_REQUESTS_PER_VIEW_PER_SECOND);
+        while (uiRequestBacklog >= 1) {
+            uiRequestBacklog--;
+            final String path = paths.get(nextUiPath.getAndIncrement() % paths.size());
+            viewPollers.submit(new Runnable() {
+                public void run() { timedRequest("GET", path, null); }
+            });
+        }
+    }
+
+    /** makes a request, recording its latency and outcome; returns null on failure */
+    protected OpenGammaRestClient.Response timedRequest(String method, String path, Map<String,String> form) {
+        requests.incrementAndGet();
+        totalRequests.incrementAndGet();
+        try {
+            OpenGammaRestClient.Response response = "POST".equals(method) ? client.post(path, form) :
+                    "DELETE".equals(method) ? client.delete(path) : client.get(path);
+            requestLatency.record(response.getLatencyMillis());
+            if (!response.isSuccess()) {
+                recordError(method+" "+path+" returned "+response.getCode());
+                return null;
+            }
+            return response;
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            recordError(method+" "+path+" failed: "+e);
+            return null;
+        }
+    }
+
+    private void recordError(String message) {
+        errors.incrementAndGet();
+        totalErrors.incrementAndGet();
+        if (log.isTraceEnabled()) log.trace("Load generator {}: {}", this, message);
+    }
+
+    protected void sample() {
+        long now = System.currentTimeMillis();
+        double periodSeconds = Math.max(1, now - lastSampleTime) / 1000.0;
+        lastSampleTime = now;
+        long count = requests.getAndSet(0);
+        long failed = errors.getAndSet(0);
+        long[] latencies = requestLatency.drain();
+        long[] cycles = cycleLatency.drain();
+        long[] firsts = firstResultLatency.drain();
+
+        Double rate = count / periodSeconds;
+        Double errorRate = count == 0 ? 0d : (double) failed / count;
+        Double requestP95 = LatencySamples.percentile(latencies, 95);
+        Double cycleP50 = LatencySamples.percentile(cycles, 50);
+        Double cycleP95 = LatencySamples.percentile(cycles, 95);
+        Double cycleP99 = LatencySamples.percentile(cycles, 99);
+        Double firstP95 = LatencySamples.percentile(firsts, 95);
+
+        setAttribute(REQUESTS_PER_SECOND, rate);
+        setAttribute(ERROR_RATE, errorRate);
+        setAttribute(REQUEST_LATENCY_P95, requestP95);
+        setAttribute(VIEW_CYCLE_LATENCY_P50, cycleP50);
+        setAttribute(VIEW_CYCLE_LATENCY_P95, cycleP95);
+        setAttribute(VIEW_CYCLE_LATENCY_P99, cycleP99);
+        setAttribute(VIEW_FIRST_RESULT_LATENCY_P95, firstP95);
+
+        appendToReport(Time.makeDateString(now)+","+((now - startTime) / 1000)+","+
+                getAttribute(TARGET_VIEWS)+","+sessions.size()+","+
+                csv(rate)+","+csv(errorRate)+","+csv(requestP95)+","+
+                csv(cycleP50)+","+csv(cycleP95)+","+csv(cycleP99)+","+csv(firstP95));
+    }
+
+    private static String csv(Double value) {
+        return value == null ? "" : String.format("%.3f", value);
+    }
+
+    protected synchronized void appendToReport(String line) {
+        Writer out = null;
+        try {
+            out = new FileWriter(reportFile, true);
+            out.write(line);
+            out.write("\n");
+        } catch (IOException e) {
+            log.warn("Load generator "+this+" unable to write report "+reportFile+": "+e);
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+    }
+
+    /**
+     * One open view: a client registered with the analytics API, a view opened for it,
+     * and a long-poll loop on the client's update stream, each update marking a completed calculation cycle.
+     */
+    private class ViewSession implements Runnable {
+        private final String viewDefinitionId;
+        private volatile String clientId;
+        private volatile String viewUrl;
+        private volatile boolean closed = false;
+        private long openedAt;
+
+        ViewSession(String viewDefinitionId) {
+            this.viewDefinitionId = viewDefinitionId;
+        }
+
+        boolean open() {
+            Map<String,String> paths = getConfig(REST_PATHS);
+            OpenGammaRestClient.Response clientResponse = timedRequest("POST", paths.get("clients"), MutableMap.<String,String>of());
+            if (clientResponse == null || clientResponse.getLocation() == null) return false;
+            clientId = clientResponse.getLocation().substring(clientResponse.getLocation().lastIndexOf('/') + 1);
+
+            openedAt = System.currentTimeMillis();
+            OpenGammaRestClient.Response viewResponse = timedRequest("POST", paths.get("views"), ImmutableMap.of(
+                    "requestId", Identifiers.makeRandomId(8),
+                    "clientId", clientId,
+                    "viewDefinitionId", viewDefinitionId,
+                    "aggregators", "[]",
+                    "marketDataProviders", getConfig(MARKET_DATA_PROVIDERS)));
+            if (viewResponse == null || viewResponse.getLocation() == null) {
+                timedRequest("DELETE", paths.get("clients")+"/"+clientId, null);
+                return false;
+            }
+            viewUrl = viewResponse.getLocation();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            String updates = getConfig(REST_PATHS).get("updates")+"/"+clientId;
+            long lastCycle = -1;
+            while (!closed && !Thread.currentThread().isInterrupted()) {
+                OpenGammaRestClient.Response response = timedRequest("GET", updates, null);
+                if (closed) break;
+                if (response == null) {
+                    Time.sleep(Duration.ONE_SECOND);
+                    continue;
+                }
+                String body = response.getBody().trim();
+                if (body.length() == 0 || "[]".equals(body) || "{}".equals(body)) continue;
+                long now = System.currentTimeMillis();
+                if (lastCycle < 0) firstResultLatency.record(now - openedAt);
+                else cycleLatency.record(now - lastCycle);
+                lastCycle = now;
+            }
+        }
+
+        void close() {
+            closed = true;
+            if (viewUrl != null) timedRequest("DELETE", viewUrl, null);
+            if (clientId != null) timedRequest("DELETE", getConfig(REST_PATHS).get("clients")+"/"+clientId, null);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package io.cloudsoft.opengamma.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.net.Urls;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+
+/**
+ * Minimal HTTP client for the OpenGamma REST/web API, timing each call.
+ * <p>
+ * Deliberately dependency-free (plain {@link HttpURLConnection}) so it can be used
+ * from policies and feeds in the Brooklyn management node without extra jars.
+ */
+public class OpenGammaRestClient {
+
+    public static class Response {
+        private final int code;
+        private final String body;
+        private final String location;
+        private final long latencyMillis;
+
+        Response(int code, String body, String location, long latencyMillis) {
+            this.code = code;
+            this.body = body;
+            this.location = location;
+            this.latencyMillis = latencyMillis;
+        }
+        public int getCode() { return code; }
+        public String getBody() { return body; }
+        /** the Location header, typically set on 201 responses when creating clients and views */
+        public String getLocation() { return location; }
+        public long getLatencyMillis() { return latencyMillis; }
+        public boolean isSuccess() { return code >= 200 && code < 300; }
+        @Override
+        public String toString() { return "Response["+code+", "+latencyMillis+"ms]"; }
+    }
+
+    private final String rootUrl;
+    private final int timeoutMillis;
+
+    public OpenGammaRestClient(String rootUrl, int timeoutMillis) {
+        this.rootUrl = Preconditions.checkNotNull(rootUrl, "rootUrl");
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public String getRootUrl() {
+        return rootUrl;
+    }
+
+    /** resolves a path against the root URL; absolute URLs (e.g. from a Location header) are returned unchanged */
+    public String resolve(String pathOrUrl) {
+        if (pathOrUrl.startsWith("http://") || pathOrUrl.startsWith("https://")) return pathOrUrl;
+        return Urls.mergePaths(rootUrl, pathOrUrl);
+    }
+
+    public Response get(String path) {
+        return execute("GET", path, null);
+    }
+
+    public Response delete(String path) {
+        return execute("DELETE", path, null);
+    }
+
+    public Response post(String path, Map<String,String> form) {
+        return execute("POST", path, form);
+    }
+
+    protected Response execute(String method, String path, Map<String,String> form) {
+        HttpURLConnection connection = null;
+        long start = System.currentTimeMillis();
+        try {
+            connection = (HttpURLConnection) new URL(resolve(path)).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setInstanceFollowRedirects(false);
+            connection.setRequestProperty("Accept", "application/json");
+            if (form != null) {
+                byte[] payload = encodeForm(form).getBytes(Charsets.UTF_8);
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                connection.setFixedLengthStreamingMode(payload.length);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(payload);
+                } finally {
+                    Closeables.closeQuietly(out);
+                }
+            }
+            int code = connection.getResponseCode();
+            String body = readFully(code >= 400 ? connection.getErrorStream() : connection.getInputStream());
+            return new Response(code, body, connection.getHeaderField("Location"), System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    static String encodeForm(Map<String,String> form) {
+        StringBuilder result = new StringBuilder();
+        try {
+            for (Map.Entry<String,String> entry : form.entrySet()) {
+                if (result.length() > 0) result.append('&');
+                result.append(URLEncoder.encode(entry.getKey(), "UTF-8"))
+                        .append('=')
+                        .append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw Exceptions.propagate(e);
+        }
+        return result.toString();
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        if (in == null) return "";
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), Charsets.UTF_8);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+}
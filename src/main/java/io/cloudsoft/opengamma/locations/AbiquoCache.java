@@ -0,0 +1,151 @@
+package io.cloudsoft.opengamma.locations;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.abiquo.AbiquoContext;
+import org.jclouds.abiquo.domain.cloud.VirtualMachine;
+import org.jclouds.abiquo.domain.enterprise.Enterprise;
+import org.jclouds.abiquo.domain.infrastructure.Datacenter;
+import org.jclouds.abiquo.domain.network.ExternalIp;
+import org.jclouds.abiquo.domain.network.ExternalNetwork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Abiquo state shared by all provisioning against one endpoint and account: the context,
+ * an index of virtual machines by name, and the external networks and their unused IPs of each datacenter.
+ * The context is built once and kept for the life of the management node (one per endpoint and account,
+ * so its threads and connections are not leaked by rebuilding it). The rest is re-read once older than
+ * the time-to-live, and the VM index also when a name is not found
+ * (as when a VM has been created since), so parallel provisioning does not each make the same full scans.
+ * <p>
+ * Unused IPs are handed out by {@link #reserveExternalIp(ExternalNetwork)}, so parallel obtains never
+ * pick the same address; reservations lapse after the time-to-live, by when the IP is either attached
+ * (and so no longer listed as unused) or was never used.
+ */
+public class AbiquoCache {
+
+    private static final Logger log = LoggerFactory.getLogger(AbiquoCache.class);
+
+    private static final ConcurrentMap<String,AbiquoCache> INSTANCES = Maps.newConcurrentMap();
+
+    /** the cache for the given endpoint and identity, created if needed */
+    public static AbiquoCache get(String endpoint, String identity, String credential, Duration timeToLive) {
+        String key = endpoint+"#"+identity;
+        AbiquoCache result = INSTANCES.get(key);
+        if (result == null) {
+            INSTANCES.putIfAbsent(key, new AbiquoCache(endpoint, identity, credential));
+            result = INSTANCES.get(key);
+        }
+        result.timeToLive = timeToLive;
+        return result;
+    }
+
+    private final String endpoint;
+    private final String identity;
+    private final String credential;
+    private volatile Duration timeToLive;
+
+    private AbiquoContext context;
+
+    private Map<String,VirtualMachine> virtualMachines = Maps.newHashMap();
+    private long virtualMachinesRead;
+
+    private final Map<String,List<ExternalNetwork>> externalNetworks = Maps.newHashMap();
+    private final Map<String,Long> externalNetworksRead = Maps.newHashMap();
+    private final Map<String,List<ExternalIp>> unusedIps = Maps.newHashMap();
+    private final Map<String,Long> unusedIpsRead = Maps.newHashMap();
+    /** IP address to when it was reserved */
+    private final Map<String,Long> reservedIps = Maps.newHashMap();
+
+    private AbiquoCache(String endpoint, String identity, String credential) {
+        this.endpoint = endpoint;
+        this.identity = identity;
+        this.credential = credential;
+    }
+
+    private boolean isStale(long read) {
+        return System.currentTimeMillis() - read > timeToLive.toMilliseconds();
+    }
+
+    public synchronized AbiquoContext getContext() {
+        if (context == null) {
+            context = ContextBuilder.newBuilder("abiquo").endpoint(endpoint)
+                    .credentials(identity, credential).buildView(AbiquoContext.class);
+        }
+        return context;
+    }
+
+    /** the named virtual machine, re-reading the list of VMs if stale or it is not (yet) in the index; null if none */
+    public VirtualMachine findVirtualMachine(String name) {
+        long requested = System.currentTimeMillis();
+        synchronized (this) {
+            VirtualMachine result = virtualMachines.get(name);
+            if (result != null && !isStale(virtualMachinesRead)) return result;
+            // another thread may have re-read since this request began; only re-read if not
+            if (virtualMachinesRead < requested || isStale(virtualMachinesRead)) {
+                Map<String,VirtualMachine> index = Maps.newHashMap();
+                for (VirtualMachine vm : getContext().getCloudService().listVirtualMachines()) {
+                    index.put(vm.getNameLabel(), vm);
+                }
+                virtualMachines = index;
+                virtualMachinesRead = System.currentTimeMillis();
+                log.debug("Read {} virtual machines from {}", index.size(), endpoint);
+            }
+            return virtualMachines.get(name);
+        }
+    }
+
+    public synchronized List<ExternalNetwork> getExternalNetworks(Datacenter datacenter) {
+        String key = String.valueOf(datacenter.getId());
+        if (!externalNetworks.containsKey(key) || isStale(externalNetworksRead.get(key))) {
+            Enterprise enterprise = getContext().getAdministrationService().getCurrentEnterprise();
+            externalNetworks.put(key, ImmutableList.copyOf(enterprise.listExternalNetworks(datacenter)));
+            externalNetworksRead.put(key, System.currentTimeMillis());
+        }
+        return externalNetworks.get(key);
+    }
+
+    /** an unused IP of the given network not reserved by another caller, now reserved; null if none */
+    public synchronized ExternalIp reserveExternalIp(ExternalNetwork network) {
+        String key = network.getId()+"";
+        for (Iterator<Map.Entry<String,Long>> i = reservedIps.entrySet().iterator(); i.hasNext(); ) {
+            if (isStale(i.next().getValue())) i.remove();
+        }
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (attempt > 0 || !unusedIps.containsKey(key) || isStale(unusedIpsRead.get(key))) {
+                unusedIps.put(key, Lists.newArrayList(network.listUnusedIps()));
+                unusedIpsRead.put(key, System.currentTimeMillis());
+            }
+            for (ExternalIp ip : unusedIps.get(key)) {
+                if (!reservedIps.containsKey(ip.getIp())) {
+                    reservedIps.put(ip.getIp(), System.currentTimeMillis());
+                    return ip;
+                }
+            }
+            // all cached unused IPs are reserved; others may have been released since the list was read
+        }
+        return null;
+    }
+
+    /** releases an IP which was reserved but could not be attached */
+    public synchronized void releaseExternalIp(ExternalIp ip) {
+        reservedIps.remove(ip.getIp());
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("endpoint", endpoint).add("identity", identity).toString();
+    }
+}
@@ -1,20 +1,16 @@
 package io.cloudsoft.opengamma.locations;
 
 import static brooklyn.util.GroovyJavaMethods.truth;
-import static com.google.common.base.Preconditions.checkNotNull;
 import static org.jclouds.compute.options.RunScriptOptions.Builder.overrideLoginCredentials;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
 
-import org.jclouds.ContextBuilder;
 import org.jclouds.abiquo.AbiquoContext;
 import org.jclouds.abiquo.domain.cloud.VirtualMachine;
-import org.jclouds.abiquo.domain.enterprise.Enterprise;
 import org.jclouds.abiquo.domain.infrastructure.Datacenter;
 import org.jclouds.abiquo.domain.network.ExternalIp;
 import org.jclouds.abiquo.domain.network.ExternalNetwork;
@@ -26,15 +22,17 @@ import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.domain.ExecResponse;
 import org.jclouds.compute.domain.NodeMetadata;
 import org.jclouds.domain.LoginCredentials;
-import org.jclouds.scriptbuilder.domain.Statement;
 import org.jclouds.scriptbuilder.domain.Statements;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.basic.ConfigKeys;
 import brooklyn.location.jclouds.JcloudsLocation;
 import brooklyn.location.jclouds.JcloudsSshMachineLocation;
 import brooklyn.util.collections.MutableMap;
 import brooklyn.util.config.ConfigBag;
+import brooklyn.util.time.Duration;
 
 import com.abiquo.server.core.cloud.VirtualMachineState;
 import com.abiquo.server.core.task.enums.TaskState;
@@ -52,6 +50,16 @@ public class JcloudsInteroutePublicIpLocation extends JcloudsLocation {
 
     private static final String EXTERNAL_NETWORK_NAME_PREFIX = "CLPU0_IPAC";
 
+    public static final ConfigKey<Duration> ABIQUO_CACHE_TTL = ConfigKeys.newConfigKey(Duration.class,
+            "interoute.abiquo.cacheTtl", "How long the Abiquo context, VM index and external network and IP lists are reused " +
+            "across provisioning before being re-read", Duration.FIVE_MINUTES);
+
+    public static final ConfigKey<Boolean> ATTACH_EXTERNAL_NIC = ConfigKeys.newBooleanConfigKey(
+            "interoute.externalNic", "Whether to attach a NIC on the public external network (which needs the VM powered off and on); " +
+            "not needed where the template's network is already public", true);
+
+    private static final String SELINUX_PERMISSIVE = "sed -i.brooklyn.bak 's/^SELINUX=enforcing/SELINUX=permissive/' /etc/sysconfig/selinux";
+
     /**
      * Expect caller to use:
      * {@code LocationSpec.create(JcloudsInteroutePublicIpLocation.class).configure(jcloudsLocation.getAllConfig(true)));}
@@ -211,9 +219,11 @@ public class JcloudsInteroutePublicIpLocation extends JcloudsLocation {
 
     @Override
     protected JcloudsSshMachineLocation registerJcloudsSshMachineLocation(ComputeService computeService, NodeMetadata node, LoginCredentials initialCredentials, Optional<HostAndPort> sshHostAndPort, ConfigBag setup) throws IOException {
-        // FIXME turning off selinux!
-        Statement statement = Statements.exec("sed -i.brooklyn.bak 's/^SELINUX=enforcing/SELINUX=permissive/' /etc/sysconfig/selinux");
-        ExecResponse response = computeService.runScriptOnNode(node.getId(), statement, 
+        // FIXME turning off selinux! setenforce so it applies now, whether or not the VM is power-cycled to attach the NIC
+        // (not from the template's runScript, which jclouds replaces with the script creating the login user)
+        ExecResponse response = computeService.runScriptOnNode(node.getId(), Statements.newStatementList(
+                Statements.exec(SELINUX_PERMISSIVE),
+                Statements.exec("setenforce 0 || true")),
             overrideLoginCredentials(initialCredentials).runAsRoot(true));
         if (response.getExitStatus() == 0) {
             log.info(">>> For VM {} in {}, set SELINUX to permissive", new Object[] {node.getName(), this});
@@ -223,9 +233,11 @@ public class JcloudsInteroutePublicIpLocation extends JcloudsLocation {
         }
 
         // attach 2nd NIC
-        Optional<AbiquoContext> abiquoContext = abiquoContext();
-        if (abiquoContext.isPresent()) {
-            ExternalIp externalIp = attachSecondNic(node, abiquoContext.get());
+        Optional<AbiquoCache> abiquo = abiquoCache(setup);
+        if (!setup.get(ATTACH_EXTERNAL_NIC)) {
+            log.info(">>> For VM {} in {}, skipping external NIC as configured", new Object[] {node.getName(), this});
+        } else if (abiquo.isPresent()) {
+            ExternalIp externalIp = attachSecondNic(node, abiquo.get());
             String vmHostname = externalIp.getIp();
             log.info(">>> For VM {} in {}, using IP {}", new Object[] {node.getName(), this, vmHostname});
         } else {
@@ -235,40 +247,36 @@ public class JcloudsInteroutePublicIpLocation extends JcloudsLocation {
         return super.registerJcloudsSshMachineLocation(computeService, node, initialCredentials, sshHostAndPort, setup);
     }
 
-    private ExternalIp attachSecondNic(NodeMetadata node, AbiquoContext context) {
+    private ExternalIp attachSecondNic(NodeMetadata node, AbiquoCache abiquo) {
         String machineName = node.getName();
         log.info(">>> Attaching second NIC to " + machineName + " ...");
+        VirtualMachine virtualMachine = abiquo.findVirtualMachine(machineName);
+        if (virtualMachine == null) {
+            throw new IllegalStateException("Cannot find a virtual machine with same JcloudsSshMachineLocation name \""+machineName+"\" in "+abiquo);
+        }
+        Datacenter datacenter = virtualMachine.getVirtualDatacenter().getDatacenter();
+        ExternalNetwork externalNetwork = tryFindExternalNetwork(abiquo.getExternalNetworks(datacenter), EXTERNAL_NETWORK_NAME_PREFIX);
+        log.info(">>> Found externalNetwork " + externalNetwork + " in datacenter " + datacenter);
+        // reconfigure NICs on that virtualMachine
+        ExternalIp externalIp = abiquo.reserveExternalIp(externalNetwork);
+        if (externalIp == null) {
+            throw new IllegalStateException("Cannot find an available externalIp in external network " + externalNetwork);
+        }
         try {
-            Iterable<VirtualMachine> vms = context.getCloudService().listVirtualMachines();
-            Optional<VirtualMachine> optionalVirtualMachine = Iterables.tryFind(vms,
-                    VirtualMachinePredicates.name(machineName));
-            if (!optionalVirtualMachine.isPresent()) {
-            	String msg = "Cannot find a virtual machine with same JcloudsSshMachineLocation name \""+machineName+"\"";
-            	log.error(msg + ". The available virtual machines are: " + Iterables.toString(vms));
-                throw new IllegalStateException(msg);
-            }
-            VirtualMachine virtualMachine = optionalVirtualMachine.get();
-            Enterprise enterprise = context.getAdministrationService().getCurrentEnterprise();
-            Datacenter datacenter = virtualMachine.getVirtualDatacenter().getDatacenter();
-            Iterable<ExternalNetwork> externalNetworks = listExternalNetworks(enterprise, datacenter);
-            ExternalNetwork externalNetwork = tryFindExternalNetwork(externalNetworks, EXTERNAL_NETWORK_NAME_PREFIX);
-            log.info(">>> Found externalNetwork " + externalNetwork + " in datacenter " + datacenter);
-            // reconfigure NICs on that virtualMachine
-            ExternalIp externalIp = tryFindExternalIp(externalNetwork);
             List<Ip<?, ?>> nics = ImmutableList.<Ip<?, ?>> builder().addAll(virtualMachine.listAttachedNics())
                     .add(externalIp).build();
-            reconfigureNICsOnVirtualMachine(context, externalNetwork, nics, virtualMachine);
+            reconfigureNICsOnVirtualMachine(abiquo.getContext(), externalNetwork, nics, virtualMachine);
             return externalIp;
-        } finally {
-            context.close();
+        } catch (RuntimeException e) {
+            abiquo.releaseExternalIp(externalIp);
+            throw e;
         }
     }
 
-    private Optional<AbiquoContext> abiquoContext() {
+    private Optional<AbiquoCache> abiquoCache(ConfigBag setup) {
         log.info(">>> Provider " + this.getProvider());
         if ("abiquo".equals(this.getProvider())) {
-            return Optional.of(ContextBuilder.newBuilder(this.getProvider()).endpoint(this.getEndpoint())
-                    .credentials(this.getIdentity(), this.getCredential()).buildView(AbiquoContext.class));
+            return Optional.of(AbiquoCache.get(this.getEndpoint(), this.getIdentity(), this.getCredential(), setup.get(ABIQUO_CACHE_TTL)));
         }
         return Optional.absent();
     }
@@ -311,21 +319,6 @@ public class JcloudsInteroutePublicIpLocation extends JcloudsLocation {
         log.info("virtualMachine(" + virtualMachine.getNameLabel() + ") is " + virtualMachine.getState());
     }
 
-    private ExternalIp tryFindExternalIp(ExternalNetwork externalNetwork) {
-        Iterable<ExternalIp> listUnusedIps = externalNetwork.listUnusedIps();
-        if (listUnusedIps == null || !listUnusedIps.iterator().hasNext()) {
-            throw new IllegalStateException("Cannot find an available externalIp in external network "
-                    + externalNetwork);
-        }
-        Optional<ExternalIp> optionalExternalIp = Optional.of(listUnusedIps.iterator().next());
-        if (optionalExternalIp.isPresent()) {
-            return optionalExternalIp.get();
-        } else {
-            throw new IllegalStateException("Cannot find an available externalIp in external network "
-                    + externalNetwork);
-        }
-    }
-
     private ExternalNetwork tryFindExternalNetwork(Iterable<ExternalNetwork> externalNetworks,
             final String externalNetworkName) {
         Optional<ExternalNetwork> optionalExternalNetwork = Iterables.tryFind(externalNetworks,
@@ -339,10 +332,6 @@ public class JcloudsInteroutePublicIpLocation extends JcloudsLocation {
         }
     }
 
-    private Iterable<ExternalNetwork> listExternalNetworks(Enterprise enterprise, Datacenter datacenter) {
-        return enterprise.listExternalNetworks(datacenter);
-    }
-
     private final class ExternalNetworkPredicate implements Predicate<Network<ExternalIp>> {
         private final String externalNetworkPrefix;
 
@@ -354,18 +343,4 @@ public class JcloudsInteroutePublicIpLocation extends JcloudsLocation {
             return input != null && input.getName().startsWith(externalNetworkPrefix);
         }
     }
-
-    private final static class VirtualMachinePredicates {
-
-        public static Predicate<VirtualMachine> name(final String machineName) {
-            checkNotNull(machineName, "machineName must be defined");
-
-            return new Predicate<VirtualMachine>() {
-                @Override
-                public boolean apply(final VirtualMachine virtualMachine) {
-                    return Arrays.asList(machineName).contains(virtualMachine.getNameLabel());
-                }
-            };
-        }
-    }
 }
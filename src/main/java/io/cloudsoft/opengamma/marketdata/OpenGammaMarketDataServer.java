@@ -0,0 +1,41 @@
+package io.cloudsoft.opengamma.marketdata;
+
+import io.cloudsoft.opengamma.server.OpenGammaServer;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.proxying.ImplementedBy;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.util.flags.SetFromFlag;
+
+/**
+ * A standalone OpenGamma process running only the simulated live data server, publishing ticks
+ * on the {@code OpenGamma.LiveData.example.*} topics of the shared broker, so that
+ * {@link OpenGammaServer}s configured with {@link OpenGammaServer#MARKET_DATA_SERVER} see
+ * consistent prices and spend no CPU generating ticks themselves.
+ * <p>
+ * The universe size and tick rate are configurable to stress-test tick fan-out.
+ */
+@ImplementedBy(OpenGammaMarketDataServerImpl.class)
+public interface OpenGammaMarketDataServer extends OpenGammaServer {
+
+    @SetFromFlag("universeSize")
+    ConfigKey<Integer> UNIVERSE_SIZE = ConfigKeys.newIntegerConfigKey(
+            "opengamma.marketdata.universeSize", "Number of tickers to simulate; the example market data is " +
+            "truncated or repeated (with suffixed tickers) to this size; if unset it is used as is");
+
+    @SetFromFlag("maxMillisBetweenTicks")
+    ConfigKey<Integer> MAX_MILLIS_BETWEEN_TICKS = ConfigKeys.newIntegerConfigKey(
+            "opengamma.marketdata.maxMillisBetweenTicks", "Maximum interval between simulated ticks (lower for a higher tick rate); " +
+            "if unset the OpenGamma default is used");
+
+    @SetFromFlag("marketDataIni")
+    ConfigKey<String> INI_TEMPLATE_URL = ConfigKeys.newStringConfigKey(
+            "opengamma.marketdata.ini", "Ini file in freemarker format for the market-data server components",
+            "classpath:/io/cloudsoft/opengamma/config/brooklyn/marketdata.ini");
+
+    AttributeSensor<Integer> TICKER_COUNT =
+            new BasicAttributeSensor<Integer>(Integer.class, "opengamma.marketdata.tickers", "Number of tickers being simulated");
+
+}
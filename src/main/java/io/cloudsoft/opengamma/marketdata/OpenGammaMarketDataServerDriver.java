@@ -0,0 +1,7 @@
+package io.cloudsoft.opengamma.marketdata;
+
+import io.cloudsoft.opengamma.server.OpenGammaServerDriver;
+
+public interface OpenGammaMarketDataServerDriver extends OpenGammaServerDriver {
+
+}
@@ -0,0 +1,35 @@
+package io.cloudsoft.opengamma.marketdata;
+
+import io.cloudsoft.opengamma.server.OpenGammaServerImpl;
+
+import brooklyn.event.feed.jmx.JmxAttributePollConfig;
+import brooklyn.event.feed.jmx.JmxFeed;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Functions;
+import com.google.common.base.Predicates;
+
+public class OpenGammaMarketDataServerImpl extends OpenGammaServerImpl implements OpenGammaMarketDataServer {
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Class getDriverInterface() {
+        return OpenGammaMarketDataServerDriver.class;
+    }
+
+    /** there is no view processor or calc node here, just the web connector */
+    @Override
+    protected void connectJmxSensors() {
+        String ogJettyStatsMbeanName = "com.opengamma.jetty:service=HttpConnector";
+        JmxFeed.builder().entity(this).period(Duration.ONE_SECOND)
+                .pollAttribute(new JmxAttributePollConfig<Boolean>(SERVICE_UP)
+                        .objectName(ogJettyStatsMbeanName)
+                        .attributeName("Running")
+                        .onSuccess(Functions.forPredicate(Predicates.equalTo((Object)true)))
+                        .setOnFailureOrException(false))
+                .pollAttribute(new JmxAttributePollConfig<Integer>(REQUEST_COUNT)
+                        .objectName(ogJettyStatsMbeanName)
+                        .attributeName("Requests"))
+                .build();
+    }
+}
@@ -0,0 +1,65 @@
+package io.cloudsoft.opengamma.marketdata;
+
+import io.cloudsoft.opengamma.server.ConfigFileBundle;
+import io.cloudsoft.opengamma.server.OpenGammaServerSshDriver;
+
+import java.util.List;
+
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.util.net.Urls;
+
+import com.google.common.collect.ImmutableList;
+
+public class OpenGammaMarketDataServerSshDriver extends OpenGammaServerSshDriver implements OpenGammaMarketDataServerDriver {
+
+    public OpenGammaMarketDataServerSshDriver(EntityLocal entity, SshMachineLocation machine) {
+        super(entity, machine);
+    }
+
+    @Override
+    public void customize() {
+        super.customize();
+        entity.setAttribute(OpenGammaMarketDataServer.TICKER_COUNT, entity.getConfig(OpenGammaMarketDataServer.UNIVERSE_SIZE));
+    }
+
+    @Override
+    protected ConfigFileBundle getConfigFiles() {
+        ConfigFileBundle files = super.getConfigFiles();
+        if (entity.getConfig(OpenGammaMarketDataServer.UNIVERSE_SIZE) != null) {
+            files.add(Urls.mergePaths(SCRIPT_SUBDIR(), "generate-market-data.sh"),
+                    getResourceAsBytes("classpath:/io/cloudsoft/opengamma/scripts/generate-market-data.sh"), true);
+        }
+        return files;
+    }
+
+    @Override
+    protected List<String> getPostConfigCommands() {
+        Integer universeSize = entity.getConfig(OpenGammaMarketDataServer.UNIVERSE_SIZE);
+        if (universeSize == null) return super.getPostConfigCommands();
+        return ImmutableList.<String>builder()
+                .addAll(super.getPostConfigCommands())
+                .add("cd "+OPENGAMMA_SUBDIR(),
+                        "unzip -p $(ls lib/examples-simulated-*.jar | head -1) "+SIMULATED_DATA_RESOURCE+" > temp/market-data-example.csv",
+                        "scripts/generate-market-data.sh temp/market-data-example.csv config/brooklyn/market-data.csv "+universeSize,
+                        "cd "+getRunDir())
+                .build();
+    }
+
+    /** Return the generated universe if a size is configured, otherwise the example market data. */
+    @Override
+    public String getLiveDataFile() {
+        if (entity.getConfig(OpenGammaMarketDataServer.UNIVERSE_SIZE) == null) return super.getLiveDataFile();
+        return "classpath:brooklyn/market-data.csv";
+    }
+
+    /** Return the {@link OpenGammaMarketDataServer#MAX_MILLIS_BETWEEN_TICKS} setting, for the ini (absent if unset). */
+    public Integer getMaxMillisBetweenTicks() {
+        return entity.getConfig(OpenGammaMarketDataServer.MAX_MILLIS_BETWEEN_TICKS);
+    }
+
+    @Override
+    protected String getIniContents() {
+        return processTemplate(entity.getConfig(OpenGammaMarketDataServer.INI_TEMPLATE_URL));
+    }
+}
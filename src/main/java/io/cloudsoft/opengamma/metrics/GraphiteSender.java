@@ -0,0 +1,133 @@
+package io.cloudsoft.opengamma.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.net.HostAndPort;
+
+/**
+ * Writes lines to Graphite's plaintext port from a background thread, in batches, over one connection
+ * (re-established after failures). Lines are queued in a bounded buffer so a slow or unreachable Graphite
+ * never blocks the caller; when the buffer is full the oldest lines are dropped.
+ */
+public class GraphiteSender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GraphiteSender.class);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10*1000;
+    private static final Duration RETRY_DELAY = Duration.FIVE_SECONDS;
+
+    private final HostAndPort endpoint;
+    private final int batchSize;
+    private final LinkedBlockingDeque<String> buffer;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running;
+    private Thread thread;
+    private Socket socket;
+
+    public GraphiteSender(HostAndPort endpoint, int bufferSize, int batchSize) {
+        this.endpoint = endpoint;
+        this.batchSize = batchSize;
+        this.buffer = new LinkedBlockingDeque<String>(bufferSize);
+    }
+
+    public synchronized void start() {
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() { sendLoop(); }
+        }, "graphite-sender-"+endpoint);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+        closeSocket();
+    }
+
+    /** queues the lines (each without its trailing newline), dropping the oldest queued lines if the buffer is full */
+    public void send(List<String> lines) {
+        for (String line : lines) {
+            while (!buffer.offerLast(line)) {
+                if (buffer.pollFirst() != null) dropped.incrementAndGet();
+            }
+        }
+    }
+
+    public long getSentCount() { return sent.get(); }
+    public long getDroppedCount() { return dropped.get(); }
+
+    private void sendLoop() {
+        List<String> batch = Lists.newArrayListWithCapacity(batchSize);
+        while (running) {
+            try {
+                String first = buffer.pollFirst(1, TimeUnit.SECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                buffer.drainTo(batch, batchSize - 1);
+                write(batch);
+                sent.addAndGet(batch.size());
+                batch.clear();
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                LOG.debug("Unable to write {} lines to Graphite at {}; will retry: {}", new Object[] {batch.size(), endpoint, e});
+                closeSocket();
+                // put the batch back at the front, in order, as far as the buffer allows
+                for (int i=batch.size()-1; i>=0; i--) {
+                    if (!buffer.offerFirst(batch.get(i))) dropped.incrementAndGet();
+                }
+                batch.clear();
+                try {
+                    Thread.sleep(RETRY_DELAY.toMilliseconds());
+                } catch (InterruptedException e2) {
+                    break;
+                }
+            }
+        }
+        closeSocket();
+    }
+
+    private void write(List<String> lines) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) text.append(line).append('\n');
+        OutputStream out = getSocket().getOutputStream();
+        out.write(text.toString().getBytes(Charsets.UTF_8));
+        out.flush();
+    }
+
+    private synchronized Socket getSocket() throws IOException {
+        if (socket == null || socket.isClosed()) {
+            Socket s = new Socket();
+            s.connect(new InetSocketAddress(endpoint.getHostText(), endpoint.getPort()), CONNECT_TIMEOUT_MILLIS);
+            socket = s;
+        }
+        return socket;
+    }
+
+    private synchronized void closeSocket() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.trace("Error closing Graphite connection to "+endpoint+": "+e);
+            }
+            socket = null;
+        }
+    }
+}
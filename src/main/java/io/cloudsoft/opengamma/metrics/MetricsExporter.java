@@ -0,0 +1,73 @@
+package io.cloudsoft.opengamma.metrics;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.proxying.ImplementedBy;
+import brooklyn.entity.trait.Startable;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.time.Duration;
+
+/**
+ * Exports the numeric sensors of the entities in its application to external monitoring:
+ * in Prometheus text format from a local HTTP endpoint, and/or pushed to Graphite using its plaintext protocol.
+ * <p>
+ * Series are labelled by level (application, fabric, cluster, server or service), region and entity name;
+ * individual servers are only exported if {@link #PER_SERVER_SERIES} is set, as the cluster aggregates
+ * otherwise keep the number of series independent of cluster size.
+ * <p>
+ * Runs in the Brooklyn management node; it needs no location of its own.
+ */
+@ImplementedBy(MetricsExporterImpl.class)
+public interface MetricsExporter extends Entity, Startable {
+
+    @SetFromFlag("prometheusPort")
+    ConfigKey<Integer> PROMETHEUS_PORT = ConfigKeys.newIntegerConfigKey(
+            "opengamma.metrics.prometheus.port", "Port on the management node serving /metrics in Prometheus text format; none if unset");
+
+    @SetFromFlag("graphite")
+    ConfigKey<String> GRAPHITE_ENDPOINT = ConfigKeys.newStringConfigKey(
+            "opengamma.metrics.graphite", "Graphite host:port to push metrics to (plaintext protocol); none if unset");
+
+    @SetFromFlag("graphitePrefix")
+    ConfigKey<String> GRAPHITE_PREFIX = ConfigKeys.newStringConfigKey(
+            "opengamma.metrics.graphite.prefix", "Prefix for metric paths pushed to Graphite", "opengamma");
+
+    @SetFromFlag("pushPeriod")
+    ConfigKey<Duration> PUSH_PERIOD = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.metrics.graphite.period", "How often a snapshot of all metrics is queued for Graphite", Duration.TEN_SECONDS);
+
+    @SetFromFlag("bufferSize")
+    ConfigKey<Integer> BUFFER_SIZE = ConfigKeys.newIntegerConfigKey(
+            "opengamma.metrics.graphite.bufferSize", "Maximum lines queued for Graphite while it is slow or unreachable; " +
+            "the oldest are dropped beyond this", 20000);
+
+    @SetFromFlag("batchSize")
+    ConfigKey<Integer> BATCH_SIZE = ConfigKeys.newIntegerConfigKey(
+            "opengamma.metrics.graphite.batchSize", "Maximum lines written to Graphite in one write", 500);
+
+    @SetFromFlag("sensorPattern")
+    ConfigKey<String> SENSOR_NAME_PATTERN = ConfigKeys.newStringConfigKey(
+            "opengamma.metrics.sensorPattern", "Regular expression matching the names of sensors to export",
+            "(opengamma|webapp|java\\.metrics|host|proxy)\\..*");
+
+    @SetFromFlag("perServerSeries")
+    ConfigKey<Boolean> PER_SERVER_SERIES = ConfigKeys.newBooleanConfigKey(
+            "opengamma.metrics.perServer", "Whether to export each server's own sensors as well as the cluster aggregates " +
+            "(one series per server, so cardinality grows with cluster size)", false);
+
+    AttributeSensor<String> PROMETHEUS_URL =
+            new BasicAttributeSensor<String>(String.class, "opengamma.metrics.prometheus.url", "URL from which Prometheus can scrape the metrics");
+
+    AttributeSensor<Integer> SERIES_COUNT =
+            new BasicAttributeSensor<Integer>(Integer.class, "opengamma.metrics.series.count", "Number of series in the last export");
+
+    AttributeSensor<Long> GRAPHITE_LINES_SENT =
+            new BasicAttributeSensor<Long>(Long.class, "opengamma.metrics.graphite.sent", "Lines written to Graphite");
+
+    AttributeSensor<Long> GRAPHITE_LINES_DROPPED =
+            new BasicAttributeSensor<Long>(Long.class, "opengamma.metrics.graphite.dropped", "Lines dropped because the Graphite buffer was full");
+
+}
@@ -0,0 +1,247 @@
+package io.cloudsoft.opengamma.metrics;
+
+import io.cloudsoft.opengamma.server.OpenGammaServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.Application;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.AbstractEntity;
+import brooklyn.entity.basic.Attributes;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.Lifecycle;
+import brooklyn.entity.group.DynamicCluster;
+import brooklyn.entity.group.DynamicFabric;
+import brooklyn.entity.webapp.ControlledDynamicWebAppCluster;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.Sensor;
+import brooklyn.event.feed.function.FunctionFeed;
+import brooklyn.event.feed.function.FunctionPollConfig;
+import brooklyn.location.Location;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.text.Strings;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.net.HostAndPort;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class MetricsExporterImpl extends AbstractEntity implements MetricsExporter {
+
+    private static final Logger log = LoggerFactory.getLogger(MetricsExporterImpl.class);
+
+    /** a value of one sensor on one entity */
+    static class Sample {
+        final String metric;
+        final Map<String,String> labels;
+        final double value;
+
+        Sample(String metric, Map<String,String> labels, double value) {
+            this.metric = metric;
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+
+    private volatile HttpServer httpServer;
+    private volatile GraphiteSender graphite;
+    private volatile FunctionFeed graphiteFeed;
+
+    @Override
+    public void start(Collection<? extends Location> locations) {
+        setAttribute(Attributes.SERVICE_STATE, Lifecycle.STARTING);
+        try {
+            Integer port = getConfig(PROMETHEUS_PORT);
+            if (port != null) {
+                httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+                httpServer.createContext("/metrics", new HttpHandler() {
+                    @Override
+                    public void handle(HttpExchange exchange) throws IOException {
+                        servePrometheus(exchange);
+                    }
+                });
+                httpServer.start();
+                setAttribute(PROMETHEUS_URL, "http://"+InetAddress.getLocalHost().getHostName()+":"+port+"/metrics");
+            }
+
+            String graphiteEndpoint = getConfig(GRAPHITE_ENDPOINT);
+            if (Strings.isNonBlank(graphiteEndpoint)) {
+                graphite = new GraphiteSender(HostAndPort.fromString(graphiteEndpoint).withDefaultPort(2003),
+                        getConfig(BUFFER_SIZE), getConfig(BATCH_SIZE));
+                graphite.start();
+                graphiteFeed = FunctionFeed.builder()
+                        .entity(this)
+                        .poll(new FunctionPollConfig<Long,Long>(GRAPHITE_LINES_SENT)
+                                .period(getConfig(PUSH_PERIOD))
+                                .callable(new Callable<Long>() {
+                                    @Override
+                                    public Long call() {
+                                        return pushToGraphite();
+                                    }
+                                }))
+                        .build();
+            }
+
+            setAttribute(SERVICE_UP, true);
+            setAttribute(Attributes.SERVICE_STATE, Lifecycle.RUNNING);
+        } catch (Exception e) {
+            setAttribute(Attributes.SERVICE_STATE, Lifecycle.ON_FIRE);
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        setAttribute(Attributes.SERVICE_STATE, Lifecycle.STOPPING);
+        if (graphiteFeed != null) graphiteFeed.stop();
+        graphiteFeed = null;
+        if (graphite != null) graphite.stop();
+        if (httpServer != null) httpServer.stop(0);
+        setAttribute(SERVICE_UP, false);
+        setAttribute(Attributes.SERVICE_STATE, Lifecycle.STOPPED);
+    }
+
+    @Override
+    public void restart() {
+        stop();
+        start(getLocations());
+    }
+
+    /** current values of the exported sensors across the application */
+    protected List<Sample> collect() {
+        Pattern sensorPattern = Pattern.compile(getConfig(SENSOR_NAME_PATTERN));
+        boolean perServer = getConfig(PER_SERVER_SERIES);
+        List<Sample> result = Lists.newArrayList();
+        for (Entity entity : Entities.descendants(getApplication())) {
+            String level = getLevel(entity);
+            if ("server".equals(level) && !perServer) continue;
+            String region = getRegion(entity);
+            Map<String,String> labels = ImmutableMap.of(
+                    "level", level,
+                    "region", region == null ? "" : region,
+                    // display names are few (one per cluster, fabric or service); servers would need their ids to be distinct
+                    "entity", "server".equals(level) ? entity.getId() : entity.getDisplayName());
+            for (Sensor<?> sensor : entity.getEntityType().getSensors()) {
+                if (!(sensor instanceof AttributeSensor) || !sensorPattern.matcher(sensor.getName()).matches()) continue;
+                Object value = entity.getAttribute((AttributeSensor<?>) sensor);
+                Double number = value instanceof Number ? ((Number) value).doubleValue() :
+                        value instanceof Boolean ? ((Boolean) value ? 1d : 0d) : null;
+                if (number != null && !number.isNaN() && !number.isInfinite()) {
+                    result.add(new Sample(sensor.getName(), labels, number));
+                }
+            }
+        }
+        setAttribute(SERIES_COUNT, result.size());
+        return result;
+    }
+
+    protected String getLevel(Entity entity) {
+        if (entity instanceof Application) return "application";
+        if (entity instanceof DynamicFabric) return "fabric";
+        if (entity instanceof ControlledDynamicWebAppCluster || entity instanceof DynamicCluster) return "cluster";
+        if (entity instanceof OpenGammaServer && entity.getParent() instanceof DynamicCluster) return "server";
+        return "service";
+    }
+
+    /** the display name of the location of the nearest enclosing cluster (or the entity's own), if any */
+    protected String getRegion(Entity entity) {
+        for (Entity e = entity; e != null; e = e.getParent()) {
+            if (e instanceof ControlledDynamicWebAppCluster || e instanceof DynamicCluster || e.getParent() == null) {
+                Location location = Iterables.getFirst(e.getLocations(), null);
+                if (location != null) return location.getDisplayName();
+            }
+        }
+        return null;
+    }
+
+    protected void servePrometheus(HttpExchange exchange) throws IOException {
+        byte[] body;
+        try {
+            body = toPrometheus(collect()).getBytes(Charsets.UTF_8);
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            log.warn("Problem collecting metrics for "+this+": "+e, e);
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** sends the current samples to Graphite, returning the total lines sent */
+    protected Long pushToGraphite() {
+        long timestamp = System.currentTimeMillis() / 1000;
+        String prefix = getConfig(GRAPHITE_PREFIX);
+        List<String> lines = Lists.newArrayList();
+        for (Sample sample : collect()) {
+            StringBuilder path = new StringBuilder();
+            if (Strings.isNonBlank(prefix)) path.append(prefix).append('.');
+            path.append(graphiteName(sample.labels.get("level"))).append('.')
+                    .append(graphiteName(sample.labels.get("region"))).append('.')
+                    .append(graphiteName(sample.labels.get("entity"))).append('.')
+                    .append(sample.metric);
+            lines.add(path+" "+sample.value+" "+timestamp);
+        }
+        graphite.send(lines);
+        setAttribute(GRAPHITE_LINES_DROPPED, graphite.getDroppedCount());
+        return graphite.getSentCount();
+    }
+
+    /** the samples in Prometheus text exposition format, as gauges grouped by metric */
+    static String toPrometheus(List<Sample> samples) {
+        Map<String,List<Sample>> byMetric = Maps.newTreeMap();
+        for (Sample sample : samples) {
+            String metric = prometheusName(sample.metric);
+            if (!byMetric.containsKey(metric)) byMetric.put(metric, Lists.<Sample>newArrayList());
+            byMetric.get(metric).add(sample);
+        }
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String,List<Sample>> metric : byMetric.entrySet()) {
+            result.append("# TYPE ").append(metric.getKey()).append(" gauge\n");
+            for (Sample sample : metric.getValue()) {
+                result.append(metric.getKey()).append('{');
+                boolean first = true;
+                for (Map.Entry<String,String> label : sample.labels.entrySet()) {
+                    if (!first) result.append(',');
+                    first = false;
+                    result.append(label.getKey()).append("=\"")
+                            .append(label.getValue().replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                            .append('"');
+                }
+                result.append("} ").append(sample.value).append('\n');
+            }
+        }
+        return result.toString();
+    }
+
+    static String prometheusName(String sensor) {
+        return sensor.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    static String graphiteName(String label) {
+        return Strings.isBlank(label) ? "none" : label.replaceAll("[^a-zA-Z0-9_-]", "_");
+    }
+}
@@ -0,0 +1,110 @@
+package io.cloudsoft.opengamma.server;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Config files rendered in memory for a server, which can be copied individually
+ * or written as a single (ustar) tar archive.
+ */
+public class ConfigFileBundle {
+
+    private static final int BLOCK_SIZE = 512;
+
+    public static class Entry {
+        private final String path;
+        private final byte[] contents;
+        private final boolean executable;
+
+        Entry(String path, byte[] contents, boolean executable) {
+            this.path = path;
+            this.contents = contents;
+            this.executable = executable;
+        }
+
+        /** path relative to the directory the bundle is unpacked in */
+        public String getPath() { return path; }
+        public byte[] getContents() { return contents; }
+        public boolean isExecutable() { return executable; }
+    }
+
+    private final List<Entry> entries = Lists.newArrayList();
+
+    public ConfigFileBundle add(String path, String contents) {
+        return add(path, contents.getBytes(Charsets.UTF_8), false);
+    }
+
+    public ConfigFileBundle add(String path, byte[] contents, boolean executable) {
+        if (path.getBytes(Charsets.UTF_8).length >= 100) throw new IllegalArgumentException("Path too long for bundle: "+path);
+        entries.add(new Entry(path, contents, executable));
+        return this;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /** a digest of the paths, modes and contents of the files, which changes whenever the unpacked files would */
+    public String getContentHash() {
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (Entry entry : entries) {
+            byte[] path = entry.getPath().getBytes(Charsets.UTF_8);
+            hasher.putInt(path.length).putBytes(path)
+                    .putBoolean(entry.isExecutable())
+                    .putInt(entry.getContents().length).putBytes(entry.getContents());
+        }
+        return hasher.hash().toString();
+    }
+
+    /** the files as a tar archive, to be unpacked with {@code tar xf} */
+    public byte[] toTar() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long mtime = System.currentTimeMillis() / 1000;
+        for (Entry entry : entries) {
+            byte[] header = new byte[BLOCK_SIZE];
+            putString(header, 0, 100, entry.getPath());
+            putOctal(header, 100, 8, entry.isExecutable() ? 0755 : 0644);
+            putOctal(header, 108, 8, 0);
+            putOctal(header, 116, 8, 0);
+            putOctal(header, 124, 12, entry.getContents().length);
+            putOctal(header, 136, 12, mtime);
+            header[156] = '0';
+            putString(header, 257, 6, "ustar");
+            putString(header, 263, 2, "00");
+            // checksum is computed with its own field as spaces
+            for (int i = 148; i < 156; i++) header[i] = ' ';
+            long checksum = 0;
+            for (byte b : header) checksum += b & 0xff;
+            putOctal(header, 148, 7, checksum);
+            out.write(header, 0, BLOCK_SIZE);
+            out.write(entry.getContents(), 0, entry.getContents().length);
+            out.write(new byte[padding(entry.getContents().length)], 0, padding(entry.getContents().length));
+        }
+        // end of archive is two empty blocks
+        out.write(new byte[2 * BLOCK_SIZE], 0, 2 * BLOCK_SIZE);
+        return out.toByteArray();
+    }
+
+    private static int padding(int length) {
+        return (BLOCK_SIZE - length % BLOCK_SIZE) % BLOCK_SIZE;
+    }
+
+    private static void putString(byte[] header, int offset, int length, String value) {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+    }
+
+    /** zero-padded octal, NUL-terminated, filling the field */
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        while (octal.length() < length - 1) octal = "0" + octal;
+        putString(header, offset, length - 1, octal);
+        header[offset + length - 1] = 0;
+    }
+}
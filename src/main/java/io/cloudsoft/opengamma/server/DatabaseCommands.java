@@ -0,0 +1,38 @@
+package io.cloudsoft.opengamma.server;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.HostAndPort;
+
+/**
+ * Shell commands for running the Postgres client tools against the OpenGamma database, on the database machine
+ * (where they are installed with the server; OpenGamma servers do not have them).
+ */
+public class DatabaseCommands {
+
+    /** the database ExampleDatabaseCreator populates (and the HTS tables are in), and its credentials,
+     * as in create-brooklyn-db.sql and toolcontext-example.properties */
+    public static final String DATABASE_NAME = "example";
+    public static final String DATABASE_USER = "opengamma";
+    public static final String DATABASE_PASSWORD = "OpenGamma";
+
+    private DatabaseCommands() {}
+
+    /** Commands setting PG_BIN to the directory of the Postgres client tools, and the password they use. */
+    public static List<String> setup() {
+        return ImmutableList.of(
+                "PG_BIN=$(dirname \"$(which pg_restore 2>/dev/null || ls /usr/lib/postgresql/*/bin/pg_restore /usr/pgsql-*/bin/pg_restore 2>/dev/null | tail -1)\")",
+                "export PGPASSWORD="+DATABASE_PASSWORD);
+    }
+
+    /** Arguments connecting a Postgres client tool to the database server at the given location. */
+    public static String connectionArgs(HostAndPort location) {
+        return "--host="+location.getHostText()+" --port="+location.getPort()+" --username="+DATABASE_USER;
+    }
+
+    /** A psql invocation (after {@link #setup()}) connected to the OpenGamma database, stopping at the first error. */
+    public static String psql(HostAndPort location) {
+        return "\"$PG_BIN/psql\" "+connectionArgs(location)+" --dbname="+DATABASE_NAME+" -v ON_ERROR_STOP=1";
+    }
+}
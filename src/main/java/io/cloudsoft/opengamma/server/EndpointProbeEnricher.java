@@ -0,0 +1,163 @@
+package io.cloudsoft.opengamma.server;
+
+import io.cloudsoft.opengamma.load.OpenGammaRestClient;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.enricher.basic.AbstractEnricher;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.entity.webapp.WebAppServiceConstants;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.event.feed.function.FunctionFeed;
+import brooklyn.event.feed.function.FunctionPollConfig;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.reflect.TypeToken;
+
+/**
+ * Periodically calls representative REST endpoints of an {@link OpenGammaServer} directly (not through the
+ * load balancer), publishing the latency of each, so a slow member, or a slow master on all members, stands out.
+ * <p>
+ * Each endpoint's latency in millis is published as {@code opengamma.probe.<name>.latency}
+ * (see {@link #latencySensor(String)}), cleared while the endpoint is failing;
+ * all of them as {@link #PROBE_LATENCIES}, and the slowest as {@link #PROBE_LATENCY_MAX}.
+ * Members which are not up are not probed. The probes are polled by a {@link FunctionFeed} on the entity,
+ * started when it is first up.
+ */
+public class EndpointProbeEnricher extends AbstractEnricher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EndpointProbeEnricher.class);
+
+    public static final AttributeSensor<Map<String,Long>> PROBE_LATENCIES = new BasicAttributeSensor<Map<String,Long>>(new TypeToken<Map<String,Long>>() { },
+            "opengamma.probe.latencies", "Latency in millis of each probed endpoint which succeeded in the last round");
+
+    public static final AttributeSensor<Double> PROBE_LATENCY_MAX =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.probe.latency.max", "Latency in millis of the slowest probed endpoint in the last round");
+
+    public static final AttributeSensor<Integer> PROBE_FAILURES =
+            new BasicAttributeSensor<Integer>(Integer.class, "opengamma.probe.failures", "Number of probed endpoints which failed or returned an error in the last round");
+
+    @SetFromFlag("endpoints")
+    public static final ConfigKey<Map<String,String>> ENDPOINTS = ConfigKeys.newConfigKey(new TypeToken<Map<String,String>>() { },
+            "opengamma.probe.endpoints", "Endpoints to probe, by name (used in the sensor names) to path; GETs, expecting a 2xx response",
+            ImmutableMap.of(
+                    "viewDefinitions", "/jax/viewdefinitions",
+                    "securities", "/jax/securities?pgSze=1",
+                    "timeseries", "/jax/timeseries?pgSze=1"));
+
+    @SetFromFlag("period")
+    public static final ConfigKey<Duration> PERIOD = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.probe.period", "How often the endpoints are probed", Duration.THIRTY_SECONDS);
+
+    @SetFromFlag("timeout")
+    public static final ConfigKey<Duration> TIMEOUT = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.probe.timeout", "Time after which a probe is counted as failed", Duration.TEN_SECONDS);
+
+    private final Map<String,AttributeSensor<Long>> latencySensors = Maps.newConcurrentMap();
+    private transient FunctionFeed feed;
+
+    public EndpointProbeEnricher() {
+        this(MutableMap.<String,Object>of());
+    }
+
+    public EndpointProbeEnricher(Map<String,?> flags) {
+        super(flags);
+    }
+
+    /** the sensor publishing the latency of the named endpoint */
+    public static AttributeSensor<Long> latencySensor(String name) {
+        return new BasicAttributeSensor<Long>(Long.class, "opengamma.probe."+name+".latency", "Latency in millis of the "+name+" endpoint probe");
+    }
+
+    @Override
+    public void setEntity(EntityLocal entity) {
+        super.setEntity(entity);
+        // the feed's polls run in the entity's execution context, so wait until it is managed and up
+        subscribe(entity, OpenGammaServer.SERVICE_UP, new SensorEventListener<Boolean>() {
+            @Override
+            public void onEvent(SensorEvent<Boolean> event) {
+                if (Boolean.TRUE.equals(event.getValue())) connectFeed();
+            }
+        });
+    }
+
+    protected synchronized void connectFeed() {
+        if (feed != null || !isRunning()) return;
+        feed = FunctionFeed.builder()
+                .entity(entity)
+                .poll(new FunctionPollConfig<Integer,Integer>(PROBE_FAILURES)
+                        .period(getConfig(PERIOD))
+                        .callable(new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                return probe();
+                            }
+                        }))
+                .build();
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (feed != null) feed.stop();
+        feed = null;
+        super.destroy();
+    }
+
+    /** probes the endpoints (if the entity is up), setting the latency sensors, and returns the number which failed */
+    protected Integer probe() {
+        String rootUrl = entity.getAttribute(WebAppServiceConstants.ROOT_URL);
+        if (rootUrl == null || !Boolean.TRUE.equals(entity.getAttribute(OpenGammaServer.SERVICE_UP))) return entity.getAttribute(PROBE_FAILURES);
+        OpenGammaRestClient client = new OpenGammaRestClient(rootUrl, (int) getConfig(TIMEOUT).toMilliseconds());
+
+        Map<String,Long> latencies = Maps.newLinkedHashMap();
+        int failures = 0;
+        for (Map.Entry<String,String> endpoint : getConfig(ENDPOINTS).entrySet()) {
+            Long latency = null;
+            try {
+                OpenGammaRestClient.Response response = client.get(endpoint.getValue());
+                if (response.isSuccess()) {
+                    latency = response.getLatencyMillis();
+                } else {
+                    LOG.debug("Probe {} of {} returned {}", new Object[] {endpoint.getKey(), entity, response});
+                }
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.debug("Probe "+endpoint.getKey()+" of "+entity+" failed: "+e);
+            }
+            if (latency != null) latencies.put(endpoint.getKey(), latency);
+            else failures++;
+            entity.setAttribute(getLatencySensor(endpoint.getKey()), latency);
+        }
+
+        Long max = null;
+        for (Long latency : latencies.values()) {
+            if (max == null || latency > max) max = latency;
+        }
+        entity.setAttribute(PROBE_LATENCIES, latencies);
+        entity.setAttribute(PROBE_LATENCY_MAX, max == null ? null : max.doubleValue());
+        return failures;
+    }
+
+    private AttributeSensor<Long> getLatencySensor(String name) {
+        AttributeSensor<Long> result = latencySensors.get(name);
+        if (result == null) {
+            result = latencySensor(name);
+            latencySensors.put(name, result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,130 @@
+package io.cloudsoft.opengamma.server;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+import org.jclouds.compute.domain.TemplateBuilder;
+
+import brooklyn.location.jclouds.JcloudsLocationConfig;
+import brooklyn.util.text.Strings;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Hardware to request for a machine, written as comma-separated {@code key=value} pairs, e.g.
+ * {@code cores=4,ram=16384,disk=ssd}; {@code hardwareId} names an instance type directly.
+ * <p>
+ * jclouds has no portable way to ask for a disk type, so {@code disk} is recorded (and published)
+ * for clouds where it is implied by the {@code hardwareId}, rather than used to select hardware.
+ */
+public class HardwareProfile implements Serializable {
+
+    private static final long serialVersionUID = 4381726950374612039L;
+
+    private final Integer cores;
+    private final Integer ramMb;
+    private final String diskType;
+    private final String hardwareId;
+
+    public HardwareProfile(Integer cores, Integer ramMb, String diskType, String hardwareId) {
+        this.cores = cores;
+        this.ramMb = ramMb;
+        this.diskType = diskType;
+        this.hardwareId = hardwareId;
+    }
+
+    public static HardwareProfile parse(String spec) {
+        Integer cores = null, ramMb = null;
+        String diskType = null, hardwareId = null;
+        if (Strings.isNonBlank(spec)) {
+            for (Map.Entry<String,String> entry : Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator('=').split(spec).entrySet()) {
+                String key = entry.getKey().trim(), value = entry.getValue().trim();
+                if ("cores".equals(key)) cores = Integer.parseInt(value);
+                else if ("ram".equals(key)) ramMb = Integer.parseInt(value);
+                else if ("disk".equals(key)) diskType = value;
+                else if ("hardwareId".equals(key)) hardwareId = value;
+                else throw new IllegalArgumentException("Unknown key '"+key+"' in hardware profile '"+spec+"'");
+            }
+        }
+        return new HardwareProfile(cores, ramMb, diskType, hardwareId);
+    }
+
+    /** parses profiles separated by semicolons, e.g. smallest to largest for vertical scaling */
+    public static List<HardwareProfile> parseList(String specs) {
+        if (Strings.isBlank(specs)) return ImmutableList.of();
+        List<HardwareProfile> result = Lists.newArrayList();
+        for (String spec : Splitter.on(';').trimResults().omitEmptyStrings().split(specs)) {
+            result.add(parse(spec));
+        }
+        return result;
+    }
+
+    public Integer getCores() { return cores; }
+    public Integer getRamMb() { return ramMb; }
+    public String getDiskType() { return diskType; }
+    public String getHardwareId() { return hardwareId; }
+
+    /** a copy with at least the given number of cores */
+    public HardwareProfile withMinCores(Integer minCores) {
+        if (minCores == null || (cores != null && cores >= minCores)) return this;
+        return new HardwareProfile(minCores, ramMb, diskType, hardwareId);
+    }
+
+    /** compares by RAM, then cores */
+    public boolean isSmallerThan(HardwareProfile other) {
+        int ram = ramMb == null ? 0 : ramMb, otherRam = other.ramMb == null ? 0 : other.ramMb;
+        int cores = this.cores == null ? 0 : this.cores, otherCores = other.cores == null ? 0 : other.cores;
+        return ram < otherRam || (ram == otherRam && cores < otherCores);
+    }
+
+    public void applyTo(TemplateBuilder templateBuilder) {
+        if (hardwareId != null) {
+            templateBuilder.hardwareId(hardwareId);
+        } else {
+            if (cores != null) templateBuilder.minCores(cores);
+            if (ramMb != null) templateBuilder.minRam(ramMb);
+        }
+    }
+
+    /** the profile as {@link brooklyn.entity.basic.SoftwareProcess#PROVISIONING_PROPERTIES}, for entities whose template builder we do not control */
+    public Map<String,Object> toProvisioningProperties() {
+        Map<String,Object> result = Maps.newLinkedHashMap();
+        if (hardwareId != null) {
+            result.put(JcloudsLocationConfig.HARDWARE_ID.getName(), hardwareId);
+        } else {
+            if (cores != null) result.put(JcloudsLocationConfig.MIN_CORES.getName(), cores);
+            if (ramMb != null) result.put(JcloudsLocationConfig.MIN_RAM.getName(), ramMb);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof HardwareProfile)) return false;
+        HardwareProfile other = (HardwareProfile) obj;
+        return Objects.equal(cores, other.cores) && Objects.equal(ramMb, other.ramMb)
+                && Objects.equal(diskType, other.diskType) && Objects.equal(hardwareId, other.hardwareId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(cores, ramMb, diskType, hardwareId);
+    }
+
+    /** in the form accepted by {@link #parse(String)} */
+    @Override
+    public String toString() {
+        List<String> parts = Lists.newArrayList();
+        if (cores != null) parts.add("cores="+cores);
+        if (ramMb != null) parts.add("ram="+ramMb);
+        if (diskType != null) parts.add("disk="+diskType);
+        if (hardwareId != null) parts.add("hardwareId="+hardwareId);
+        return Joiner.on(',').join(parts);
+    }
+}
@@ -0,0 +1,120 @@
+package io.cloudsoft.opengamma.server;
+
+import java.util.Map;
+
+import brooklyn.enricher.basic.AbstractEnricher;
+import brooklyn.entity.Entity;
+import brooklyn.entity.Group;
+import brooklyn.entity.basic.AbstractGroup;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Sums or averages a sensor across the members of a group, keeping a running sum and count
+ * which each member event updates in constant time, rather than rescanning all members as
+ * {@link brooklyn.enricher.CustomAggregatingEnricher} does.
+ * <p>
+ * Used at each level of the hierarchy (servers into their cluster, clusters into the fabric),
+ * so a server's change costs one update per level however many servers the fabric has.
+ * The sum is recomputed from the retained values every {@link #RESUM_INTERVAL} updates,
+ * so floating-point error does not accumulate.
+ */
+public class IncrementalAggregator<T extends Number> extends AbstractEnricher {
+
+    /** updates after which the running sum is recomputed from the members' values */
+    public static final int RESUM_INTERVAL = 10000;
+
+    public static <T extends Number> IncrementalAggregator<T> summing(AttributeSensor<? extends Number> source, AttributeSensor<T> target) {
+        return new IncrementalAggregator<T>(source, target, false);
+    }
+
+    public static IncrementalAggregator<Double> averaging(AttributeSensor<? extends Number> source, AttributeSensor<Double> target) {
+        return new IncrementalAggregator<Double>(source, target, true);
+    }
+
+    private final AttributeSensor<? extends Number> source;
+    private final AttributeSensor<T> target;
+    private final boolean average;
+
+    /** member id to its last value; members without a value are absent */
+    private final Map<String,Double> values = Maps.newHashMap();
+    private double sum;
+    private int updates;
+
+    protected IncrementalAggregator(AttributeSensor<? extends Number> source, AttributeSensor<T> target, boolean average) {
+        this.source = Preconditions.checkNotNull(source, "source");
+        this.target = Preconditions.checkNotNull(target, "target");
+        this.average = average;
+    }
+
+    @Override
+    public void setEntity(EntityLocal entity) {
+        if (!(entity instanceof Group)) throw new IllegalArgumentException("Cannot attach "+this+" to non-group "+entity);
+        super.setEntity(entity);
+        subscribeToMembers((Group) entity, source, new SensorEventListener<Number>() {
+            @Override
+            public void onEvent(SensorEvent<Number> event) {
+                update(event.getSource().getId(), event.getValue());
+            }
+        });
+        subscribe(entity, AbstractGroup.MEMBER_ADDED, new SensorEventListener<Entity>() {
+            @Override
+            public void onEvent(SensorEvent<Entity> event) {
+                update(event.getValue().getId(), event.getValue().getAttribute(source));
+            }
+        });
+        subscribe(entity, AbstractGroup.MEMBER_REMOVED, new SensorEventListener<Entity>() {
+            @Override
+            public void onEvent(SensorEvent<Entity> event) {
+                update(event.getValue().getId(), null);
+            }
+        });
+        // the one full scan, for members already present
+        for (Entity member : ((Group) entity).getMembers()) {
+            update(member.getId(), member.getAttribute(source));
+        }
+    }
+
+    protected synchronized void update(String memberId, Number value) {
+        Double old = value == null ? values.remove(memberId) : values.put(memberId, value.doubleValue());
+        if (Objects.equal(old, value == null ? null : value.doubleValue())) return;
+        if (old != null) sum -= old;
+        if (value != null) sum += value.doubleValue();
+        if (++updates >= RESUM_INTERVAL) {
+            sum = 0;
+            for (Double v : values.values()) sum += v;
+            updates = 0;
+        }
+        publish();
+    }
+
+    protected void publish() {
+        entity.setAttribute(target, getValue());
+    }
+
+    /** the sum, or the average (null if no member has a value) */
+    protected synchronized T getValue() {
+        if (average) return values.isEmpty() ? null : cast(sum / values.size());
+        return cast(sum);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T cast(double value) {
+        Class<? super T> type = target.getType();
+        if (type == Integer.class) return (T) Integer.valueOf((int) Math.round(value));
+        if (type == Long.class) return (T) Long.valueOf(Math.round(value));
+        return (T) Double.valueOf(value);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("source", source.getName()).add("target", target.getName())
+                .add("average", average).toString();
+    }
+}
@@ -2,7 +2,6 @@ package io.cloudsoft.opengamma.server;
 
 import java.util.List;
 
-import brooklyn.enricher.CustomAggregatingEnricher;
 import brooklyn.enricher.HttpLatencyDetector;
 import brooklyn.enricher.basic.SensorPropagatingEnricher;
 import brooklyn.enricher.basic.SensorTransformingEnricher;
@@ -13,7 +12,6 @@ import brooklyn.entity.trait.Changeable;
 import brooklyn.entity.webapp.DynamicWebAppCluster;
 import brooklyn.event.AttributeSensor;
 import brooklyn.event.basic.BasicAttributeSensor;
-import brooklyn.util.collections.MutableMap;
 
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
@@ -26,6 +24,33 @@ public class OpenGammaMonitoringAggregation {
     public static final AttributeSensor<Double> PROCESSING_TIME_PER_SECOND_IN_WINDOW = OpenGammaServer.PROCESSING_TIME_PER_SECOND_IN_WINDOW;
     public static final AttributeSensor<Integer> VIEW_PROCESSES_COUNT = OpenGammaServer.VIEW_PROCESSES_COUNT;
     
+    public static final AttributeSensor<Long> CACHE_ELEMENTS = OpenGammaServer.CACHE_ELEMENTS;
+    public static final AttributeSensor<Double> CACHE_HIT_RATIO = OpenGammaServer.CACHE_HIT_RATIO;
+
+    public static final AttributeSensor<Double> VIEW_MEAN_CYCLE_TIME_P95 = OpenGammaServer.VIEW_MEAN_CYCLE_TIME_P95;
+    public static final AttributeSensor<Double> VIEW_CYCLES_PER_SECOND = OpenGammaServer.VIEW_CYCLES_PER_SECOND;
+
+    public static final AttributeSensor<Double> VIEW_MEAN_CYCLE_TIME_P95_PER_NODE =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.views.meanCycleTime.weightedP95.perNode", "Mean across cluster of the weighted 95th percentile of per-view mean cycle times in millis");
+
+    public static final AttributeSensor<Double> GC_PAUSE_TIME_PER_SECOND = OpenGammaServer.GC_PAUSE_TIME_PER_SECOND;
+    public static final AttributeSensor<Double> GC_PROMOTION_RATE = OpenGammaServer.GC_PROMOTION_RATE;
+    public static final AttributeSensor<Double> OLD_GEN_AFTER_GC = OpenGammaServer.OLD_GEN_AFTER_GC;
+
+    public static final AttributeSensor<Double> GC_PAUSE_TIME_PER_SECOND_PER_NODE =
+            new BasicAttributeSensor<Double>(Double.class, "java.gc.pauseTime.perSec.perNode", "Mean across cluster of the millis per second spent in garbage collection");
+
+    public static final AttributeSensor<Double> OLD_GEN_AFTER_GC_PER_NODE =
+            new BasicAttributeSensor<Double>(Double.class, "java.gc.old.occupancyAfterGc.perNode", "Mean across cluster of the fraction of the old generation used after collection");
+
+    public static final AttributeSensor<Double> PROBE_LATENCY_MAX = EndpointProbeEnricher.PROBE_LATENCY_MAX;
+
+    public static final AttributeSensor<Double> PROBE_LATENCY_MAX_PER_NODE =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.probe.latency.max.perNode", "Mean across cluster of the latency in millis of each server's slowest probed endpoint");
+
+    public static final AttributeSensor<Double> CACHE_HIT_RATIO_PER_NODE =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.cache.hitRatio.perNode", "Mean across cluster of the cache hit ratio");
+
     public static final AttributeSensor<Double> PROCESSING_TIME_PER_SECOND_LAST_PER_NODE =
             new BasicAttributeSensor<Double>(Double.class, "webapp.reqs.processingTime.perSec.last.perNode", "Mean across cluster of percentage of time spent processing requests (most recent period; cf CPU utilisation)");
 
@@ -51,45 +76,52 @@ public class OpenGammaMonitoringAggregation {
                 ImmutableList.of(PROCESSING_TIME_PER_SECOND_LAST, PROCESSING_TIME_PER_SECOND_LAST),
                 ImmutableList.of(PROCESSING_TIME_PER_SECOND_IN_WINDOW, PROCESSING_TIME_PER_SECOND_IN_WINDOW),
                 ImmutableList.of(VIEW_PROCESSES_COUNT, VIEW_PROCESSES_COUNT),
-                ImmutableList.of(PROCESS_CPU_TIME_FRACTION_IN_WINDOW, PROCESS_CPU_TIME_FRACTION_IN_WINDOW)
+                ImmutableList.of(PROCESS_CPU_TIME_FRACTION_IN_WINDOW, PROCESS_CPU_TIME_FRACTION_IN_WINDOW),
+                ImmutableList.of(CACHE_ELEMENTS, CACHE_ELEMENTS),
+                ImmutableList.of(VIEW_CYCLES_PER_SECOND, VIEW_CYCLES_PER_SECOND),
+                ImmutableList.of(GC_PROMOTION_RATE, GC_PROMOTION_RATE)
         );
         
         List<? extends List<? extends AttributeSensor<? extends Number>>> averagingEnricherSetup = ImmutableList.of(
                 ImmutableList.of(PROCESSING_TIME_PER_SECOND_LAST, PROCESSING_TIME_PER_SECOND_LAST_PER_NODE),
                 ImmutableList.of(PROCESSING_TIME_PER_SECOND_IN_WINDOW, PROCESSING_TIME_PER_SECOND_IN_WINDOW_PER_NODE),
                 ImmutableList.of(VIEW_PROCESSES_COUNT, VIEW_PROCESSES_COUNT_PER_NODE),
-                ImmutableList.of(PROCESS_CPU_TIME_FRACTION_IN_WINDOW, PROCESS_CPU_TIME_FRACTION_IN_WINDOW_PER_NODE)
+                ImmutableList.of(PROCESS_CPU_TIME_FRACTION_IN_WINDOW, PROCESS_CPU_TIME_FRACTION_IN_WINDOW_PER_NODE),
+                ImmutableList.of(CACHE_HIT_RATIO, CACHE_HIT_RATIO_PER_NODE),
+                ImmutableList.of(VIEW_MEAN_CYCLE_TIME_P95, VIEW_MEAN_CYCLE_TIME_P95_PER_NODE),
+                ImmutableList.of(PROBE_LATENCY_MAX, PROBE_LATENCY_MAX_PER_NODE),
+                ImmutableList.of(GC_PAUSE_TIME_PER_SECOND, GC_PAUSE_TIME_PER_SECOND_PER_NODE),
+                ImmutableList.of(OLD_GEN_AFTER_GC, OLD_GEN_AFTER_GC_PER_NODE)
         );
         
         for (List<? extends AttributeSensor<? extends Number>> es : summingEnricherSetup) {
             AttributeSensor<? extends Number> t = es.get(0);
             AttributeSensor<? extends Number> total = es.get(1);
-            CustomAggregatingEnricher<?,?> totaller = CustomAggregatingEnricher.newSummingEnricher(MutableMap.of("allMembers", true), t, total);
-            cluster.addEnricher(totaller);
+            cluster.addEnricher(IncrementalAggregator.summing(t, total));
         }
         
         for (List<? extends AttributeSensor<? extends Number>> es : averagingEnricherSetup) {
-            @SuppressWarnings("unchecked")
-            AttributeSensor<Number> t = (AttributeSensor<Number>) es.get(0);
+            AttributeSensor<? extends Number> t = es.get(0);
             @SuppressWarnings("unchecked")
             AttributeSensor<Double> average = (AttributeSensor<Double>) es.get(1);
-            CustomAggregatingEnricher<?,?> averager = CustomAggregatingEnricher.newAveragingEnricher(MutableMap.of("allMembers", true), t, average);
-            cluster.addEnricher(averager);
+            cluster.addEnricher(IncrementalAggregator.averaging(t, average));
         }
         
         cluster.addEnricher(new SensorTransformingEnricher<Integer, Integer>(cluster, Changeable.GROUP_SIZE, OG_SERVER_COUNT, Functions.<Integer>identity()));
+        cluster.addEnricher(new StartupPhaseAggregator());
     }
 
     public static void aggregateOpenGammaClusterSensors(DynamicFabric webFabric) {
         // at fabric, take the total for ViewProcesses and Reqs/Sec;
-        // and take avg for reqLatency (note: simple avg -- assuming all regions equal)
-        webFabric.addEnricher(CustomAggregatingEnricher.newSummingEnricher(MutableMap.of("allMembers", true), 
+        // and take avg for reqLatency (note: simple avg -- assuming all regions equal);
+        // each region's cluster has already rolled up its servers, so a server's change costs one update here
+        webFabric.addEnricher(IncrementalAggregator.summing(
                 OpenGammaMonitoringAggregation.VIEW_PROCESSES_COUNT, OpenGammaMonitoringAggregation.VIEW_PROCESSES_COUNT));
-        webFabric.addEnricher(CustomAggregatingEnricher.newSummingEnricher(MutableMap.of("allMembers", true), 
+        webFabric.addEnricher(IncrementalAggregator.summing(
                 DynamicWebAppCluster.REQUESTS_PER_SECOND_IN_WINDOW, DynamicWebAppCluster.REQUESTS_PER_SECOND_IN_WINDOW));
-        webFabric.addEnricher(CustomAggregatingEnricher.newSummingEnricher(MutableMap.of("allMembers", true), 
+        webFabric.addEnricher(IncrementalAggregator.summing(
                 OpenGammaMonitoringAggregation.OG_SERVER_COUNT, OpenGammaMonitoringAggregation.OG_SERVER_COUNT));
-        webFabric.addEnricher(CustomAggregatingEnricher.newAveragingEnricher(MutableMap.of("allMembers", true), 
+        webFabric.addEnricher(IncrementalAggregator.averaging(
                 HttpLatencyDetector.REQUEST_LATENCY_IN_SECONDS_IN_WINDOW, HttpLatencyDetector.REQUEST_LATENCY_IN_SECONDS_IN_WINDOW));
     }
 
@@ -1,6 +1,11 @@
 package io.cloudsoft.opengamma.server;
 
+import java.util.Map;
+
 import brooklyn.config.ConfigKey;
+import brooklyn.entity.Entity;
+import brooklyn.entity.annotation.Effector;
+import brooklyn.entity.annotation.EffectorParam;
 import brooklyn.entity.basic.BrooklynConfigKeys;
 import brooklyn.entity.basic.ConfigKeys;
 import brooklyn.entity.basic.SoftwareProcess;
@@ -12,7 +17,11 @@ import brooklyn.event.AttributeSensor;
 import brooklyn.event.basic.BasicAttributeSensor;
 import brooklyn.event.basic.BasicAttributeSensorAndConfigKey;
 import brooklyn.event.basic.BasicConfigKey;
+import brooklyn.event.basic.PortAttributeSensorAndConfigKey;
 import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.time.Duration;
+
+import com.google.common.reflect.TypeToken;
 
 @ImplementedBy(OpenGammaServerImpl.class)
 public interface OpenGammaServer extends SoftwareProcess, WebAppService {
@@ -52,6 +61,166 @@ public interface OpenGammaServer extends SoftwareProcess, WebAppService {
             "The given file will be the first entry in the OpenGamma configuration chain.",
             "classpath:/io/cloudsoft/opengamma/config/brooklyn/brooklyn.properties");
 
+    @SetFromFlag("marketDataServer")
+    ConfigKey<Entity> MARKET_DATA_SERVER = ConfigKeys.newConfigKey(Entity.class,
+            "opengamma.services.marketdata.entity", "A standalone market-data server (OpenGammaMarketDataServer) to subscribe to, " +
+            "instead of simulating live data locally");
+
+    @SetFromFlag("marketDataClientIni")
+    ConfigKey<String> MARKET_DATA_CLIENT_INI_URL = ConfigKeys.newStringConfigKey(
+            "opengamma.server.marketdata.clientIni", "Ini section(s) in freemarker format which replace [exampleLiveDataServer] " +
+            "when a market-data server is used, making its live data provider available to this server",
+            "classpath:/io/cloudsoft/opengamma/config/brooklyn/marketdata-client.ini");
+
+    @SetFromFlag("cacheMode")
+    ConfigKey<String> CACHE_MODE = ConfigKeys.newStringConfigKey(
+            "opengamma.server.cache.mode", "Either 'private', where each server has its own caches, or 'replicated', " +
+            "where cache entries are replicated between the servers of a cluster (discovered by multicast, so the network must support it)", "private");
+
+    @SetFromFlag("cacheMaxElements")
+    ConfigKey<Integer> CACHE_MAX_ELEMENTS = ConfigKeys.newIntegerConfigKey(
+            "opengamma.server.cache.maxElements", "Maximum entries held in memory by each replicated cache", 10000);
+
+    @SetFromFlag("cacheMulticastGroup")
+    ConfigKey<String> CACHE_MULTICAST_GROUP = ConfigKeys.newStringConfigKey(
+            "opengamma.server.cache.multicastGroup", "Multicast address:port on which replicated cache peers discover each other; " +
+            "by default one in 239.255.0.0/16 derived from the server's cluster, so servers of different clusters do not replicate to each other");
+
+    @SetFromFlag("cacheReplicationPort")
+    PortAttributeSensorAndConfigKey CACHE_REPLICATION_PORT = new PortAttributeSensorAndConfigKey(
+            "opengamma.server.cache.replicationPort", "Port on which replicated cache updates are received from peers", "40001+");
+
+    @SetFromFlag("bundledCustomize")
+    ConfigKey<Boolean> BUNDLED_CUSTOMIZE = ConfigKeys.newBooleanConfigKey(
+            "opengamma.server.customize.bundled", "Whether to send all config files as one archive within a single customize script, " +
+            "rather than copying each file and running each step separately (fewer round trips on high-latency links)", false);
+
+    @SetFromFlag("calcNodesPerCore")
+    ConfigKey<Double> CALC_NODES_PER_CORE = ConfigKeys.newDoubleConfigKey(
+            "opengamma.server.calcNodes.perCore", "Local calc nodes to run for each core detected on the server's machine " +
+            "(at least one node is always run)", 1.0d);
+
+    @SetFromFlag("calcNodes")
+    ConfigKey<Integer> CALC_NODES = ConfigKeys.newIntegerConfigKey(
+            "opengamma.server.calcNodes", "Number of local calc nodes to run, overriding CALC_NODES_PER_CORE; sized to the cores if unset");
+
+    @SetFromFlag("viewProcessorThreads")
+    ConfigKey<Integer> VIEW_PROCESSOR_THREADS = ConfigKeys.newIntegerConfigKey(
+            "opengamma.server.viewProcessor.threads", "Threads the view processor uses to compile views; " +
+            "half the cores (at least two) if unset");
+
+    @SetFromFlag("minCores")
+    ConfigKey<Integer> MIN_CORES = ConfigKeys.newIntegerConfigKey(
+            "opengamma.server.minCores", "Minimum cores to request when provisioning a machine for the server; no constraint if unset");
+
+    @SetFromFlag("hardwareProfile")
+    ConfigKey<String> HARDWARE_PROFILE = ConfigKeys.newStringConfigKey(
+            "opengamma.server.hardwareProfile", "Hardware to provision for the server, as a HardwareProfile (e.g. cores=4,ram=16384,disk=ssd)",
+            "cores=2,ram=8192");
+
+    @SetFromFlag("hardwareProfiles")
+    ConfigKey<String> HARDWARE_PROFILES = ConfigKeys.newStringConfigKey(
+            "opengamma.server.hardwareProfiles", "Hardware profiles, smallest to largest and separated by semicolons, " +
+            "through which the server steps when replaced with a larger or smaller instance",
+            "cores=2,ram=8192; cores=4,ram=16384; cores=8,ram=32768");
+
+    @SetFromFlag("startupAcceleration")
+    ConfigKey<Boolean> STARTUP_ACCELERATION = ConfigKeys.newBooleanConfigKey(
+            "opengamma.server.startupAcceleration", "Whether the start script keeps its computed classpath and, on Java 10+, " +
+            "a class-data-sharing archive of the classes loaded by the first launch, reusing them on later launches", false);
+
+    @SetFromFlag("databaseSnapshot")
+    ConfigKey<Boolean> DATABASE_SNAPSHOT = ConfigKeys.newBooleanConfigKey(
+            "opengamma.server.database.snapshot", "Whether the first server restores the database from a pg_dump snapshot " +
+            "kept on the management node for this OpenGamma version, instead of running ExampleDatabaseCreator; " +
+            "if there is no snapshot yet, the database is created as usual and the snapshot taken", false);
+
+    @SetFromFlag("databaseSnapshotDir")
+    ConfigKey<String> DATABASE_SNAPSHOT_DIR = ConfigKeys.newStringConfigKey(
+            "opengamma.server.database.snapshot.dir", "Directory on the management node in which database snapshots are kept",
+            "~/.brooklyn/opengamma/db-snapshots");
+
+    @SetFromFlag("databaseRestoreJobs")
+    ConfigKey<Integer> DATABASE_RESTORE_JOBS = ConfigKeys.newIntegerConfigKey(
+            "opengamma.server.database.restore.jobs", "Parallel jobs pg_restore uses to load a database snapshot", 4);
+
+    @SetFromFlag("heapFraction")
+    ConfigKey<Double> HEAP_FRACTION = ConfigKeys.newDoubleConfigKey(
+            "opengamma.server.heapFraction", "Fraction of the machine's RAM to give the JVM heap, so larger instances get larger heaps; " +
+            "the script's default (1g) if unset");
+
+    @SetFromFlag("drainTimeout")
+    ConfigKey<Duration> DRAIN_TIMEOUT = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.server.drain.timeout", "When removed from a running cluster, how long to wait for active view processes " +
+            "to finish (after leaving the load-balancer pool) before stopping; zero to stop immediately", Duration.FIVE_MINUTES);
+
+    @SetFromFlag("gracefulShutdown")
+    ConfigKey<Duration> JETTY_GRACEFUL_SHUTDOWN = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.server.jetty.gracefulShutdown", "Time Jetty allows in-flight requests to complete when the server is stopped", Duration.seconds(2));
+
+    @SetFromFlag("jmxNotifications")
+    ConfigKey<Boolean> JMX_NOTIFICATIONS_ENABLED = ConfigKeys.newBooleanConfigKey(
+            "opengamma.server.jmx.notifications", "Whether view-process and connector changes are pushed as JMX (MBean registration) " +
+            "notifications, with polling of those sensors only as a slow reconciliation; if false they are polled every second", true);
+
+    @SetFromFlag("jmxReconciliationPeriod")
+    ConfigKey<Duration> JMX_RECONCILIATION_PERIOD = ConfigKeys.newConfigKey(Duration.class,
+            "opengamma.server.jmx.reconciliationPeriod", "Period at which notification-driven sensors, including service-up once the server is up, are re-polled as a fallback", Duration.THIRTY_SECONDS);
+
+    @SetFromFlag("viewProcessMBeanPattern")
+    ConfigKey<String> VIEW_PROCESS_MBEAN_PATTERN = ConfigKeys.newStringConfigKey(
+            "opengamma.server.jmx.viewProcessPattern", "JMX object name pattern matching the MBean OpenGamma registers for each view process " +
+            "(and not the view client and statistics MBeans registered beneath the view processor, which have further keys)",
+            "com.opengamma:type=ViewProcessor,ViewProcessor=*,ViewProcess=*");
+
+    @SetFromFlag("cycleStatisticsPattern")
+    ConfigKey<String> CYCLE_STATISTICS_MBEAN_PATTERN = ConfigKeys.newStringConfigKey(
+            "opengamma.server.jmx.cycleStatisticsPattern", "JMX object name pattern matching the graph execution statistics MBean " +
+            "OpenGamma registers for each view process (with cumulative ProcessedGraphs and ActualTime, in nanos, attributes)",
+            "com.opengamma:type=GraphExecutionStatistics,*");
+
+    @SetFromFlag("graphBuildTimeAttribute")
+    ConfigKey<String> GRAPH_BUILD_TIME_ATTRIBUTE = ConfigKeys.newStringConfigKey(
+            "opengamma.server.jmx.graphBuildTimeAttribute", "Attribute of the view-process MBeans (see VIEW_PROCESS_MBEAN_PATTERN) " +
+            "giving the millis taken to build the view's dependency graph; not reported if absent", "LastCompilationTime");
+
+    AttributeSensor<Boolean> DRAINING =
+            new BasicAttributeSensor<Boolean>(Boolean.class, "opengamma.server.draining", "Whether the server is draining view processes prior to being stopped");
+
+    AttributeSensor<Long> START_DURATION =
+            new BasicAttributeSensor<Long>(Long.class, "opengamma.server.start.durationMillis", "Time taken by the last start, from install until launched, in millis");
+
+    AttributeSensor<Long> RESTART_DURATION =
+            new BasicAttributeSensor<Long>(Long.class, "opengamma.server.restart.durationMillis", "Time taken by the last restart, from stop until relaunched, in millis");
+
+    AttributeSensor<Boolean> RUN_DIR_REUSED =
+            new BasicAttributeSensor<Boolean>(Boolean.class, "opengamma.server.runDir.reused", "Whether the last start or restart skipped install and customize, " +
+            "the installed and customized run dir being unchanged");
+
+    AttributeSensor<Map<String,Long>> STARTUP_PHASE_STARTED = new BasicAttributeSensor<Map<String,Long>>(new TypeToken<Map<String,Long>>() { },
+            "opengamma.server.startup.phases.started", "When each phase of the last start began (epoch millis); see StartupPhases");
+
+    AttributeSensor<Map<String,Long>> STARTUP_PHASE_ENDED = new BasicAttributeSensor<Map<String,Long>>(new TypeToken<Map<String,Long>>() { },
+            "opengamma.server.startup.phases.ended", "When each phase of the last start ended (epoch millis)");
+
+    AttributeSensor<Map<String,Long>> STARTUP_PHASE_DURATIONS = new BasicAttributeSensor<Map<String,Long>>(new TypeToken<Map<String,Long>>() { },
+            "opengamma.server.startup.phases.durationMillis", "Time taken by each phase of the last start, in millis");
+
+    AttributeSensor<Long> BOOT_DURATION =
+            new BasicAttributeSensor<Long>(Long.class, "opengamma.server.boot.durationMillis", "Time from the start script being run " +
+            "until the server was first reported up, in the last start, in millis");
+
+    AttributeSensor<String> RUNNING_VERSION =
+            new BasicAttributeSensor<String>(String.class, "opengamma.server.version.running", "OpenGamma version the server last launched");
+
+    AttributeSensor<Boolean> STARTUP_ACCELERATED =
+            new BasicAttributeSensor<Boolean>(Boolean.class, "opengamma.server.startupAccelerated", "Whether the last start used startup acceleration " +
+            "(for comparing boot durations with and without)");
+
+    AttributeSensor<Boolean> DATABASE_RESTORED_FROM_SNAPSHOT =
+            new BasicAttributeSensor<Boolean>(Boolean.class, "opengamma.server.database.restoredFromSnapshot", "Whether this server, " +
+            "having initialised the database, restored it from a snapshot (rather than creating it)");
+
     AttributeSensor<Boolean> DATABASE_INITIALIZED =
         new BasicAttributeSensor<Boolean>(Boolean.class, "opengamma.db.completed", "OG database completely initialised");
     
@@ -66,7 +235,22 @@ public interface OpenGammaServer extends SoftwareProcess, WebAppService {
 //            new BasicAttributeSensor<Double>(Double.class, "opengamma.calc.jobs.rate", "Calc jobs per second");
 
     AttributeSensor<Integer> CALC_NODE_COUNT =
-            new BasicAttributeSensor<Integer>(Integer.class, "opengamma.calc.nodes.count", "Calc nodes total (default 8 per server)");
+            new BasicAttributeSensor<Integer>(Integer.class, "opengamma.calc.nodes.count", "Calc nodes total");
+
+    AttributeSensor<Integer> DETECTED_CORES =
+            new BasicAttributeSensor<Integer>(Integer.class, "opengamma.server.cores", "Cores detected on the server's machine when it was configured");
+
+    AttributeSensor<Integer> DETECTED_RAM =
+            new BasicAttributeSensor<Integer>(Integer.class, "opengamma.server.ramMb", "RAM in megabytes detected on the server's machine when it was configured");
+
+    AttributeSensor<String> CURRENT_HARDWARE_PROFILE =
+            new BasicAttributeSensor<String>(String.class, "opengamma.server.hardwareProfile.current", "Hardware profile the server's machine was provisioned with");
+
+    AttributeSensor<Integer> CONFIGURED_CALC_NODES =
+            new BasicAttributeSensor<Integer>(Integer.class, "opengamma.calc.nodes.configured", "Local calc nodes the server was configured to run");
+
+    AttributeSensor<Integer> CONFIGURED_VIEW_PROCESSOR_THREADS =
+            new BasicAttributeSensor<Integer>(Integer.class, "opengamma.views.processor.threads", "View compilation threads the server was configured to use");
 
     AttributeSensor<Double> PROCESSING_TIME_PER_SECOND_LAST =
             new BasicAttributeSensor<Double>(Double.class, "webapp.reqs.processingTime.perSec.last", "Percentage of time spent processing requests (most recent period; cf CPU utilisation)");
@@ -74,6 +258,63 @@ public interface OpenGammaServer extends SoftwareProcess, WebAppService {
     AttributeSensor<Double> PROCESSING_TIME_PER_SECOND_IN_WINDOW =
             new BasicAttributeSensor<Double>(Double.class, "webapp.reqs.processingTime.perSec.windowed", "Percentage of time spent processing requests (windowed over time period)");
 
+    AttributeSensor<Double> VIEW_MEAN_CYCLE_TIME_P50 =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.views.meanCycleTime.weightedP50", "Median of the views' mean calculation-cycle times in millis, " +
+                    "each view weighted by the cycles it completed (last poll period); not a percentile of individual cycles");
+
+    AttributeSensor<Double> VIEW_MEAN_CYCLE_TIME_P95 =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.views.meanCycleTime.weightedP95", "95th percentile of the views' mean calculation-cycle times in millis, " +
+                    "each view weighted by the cycles it completed (last poll period); not a percentile of individual cycles");
+
+    AttributeSensor<Double> VIEW_MEAN_CYCLE_TIME_P99 =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.views.meanCycleTime.weightedP99", "99th percentile of the views' mean calculation-cycle times in millis, " +
+                    "each view weighted by the cycles it completed (last poll period); not a percentile of individual cycles");
+
+    AttributeSensor<Map<String,Double>> VIEW_CYCLE_TIMES = new BasicAttributeSensor<Map<String,Double>>(new TypeToken<Map<String,Double>>() { },
+            "opengamma.views.cycleTime.perView", "Mean calculation-cycle time in millis of each view process (last poll period)");
+
+    AttributeSensor<Double> VIEW_CYCLES_PER_SECOND =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.views.cycles.perSec", "View calculation cycles completed per second, across this server's views");
+
+    AttributeSensor<Double> DEPENDENCY_GRAPH_BUILD_TIME =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.views.graphBuildTime", "Longest time in millis taken to build the dependency graph of a current view process");
+
+    AttributeSensor<Long> CACHE_ELEMENTS =
+            new BasicAttributeSensor<Long>(Long.class, "opengamma.cache.elements", "Entries held across all caches");
+
+    AttributeSensor<Double> CACHE_HIT_RATIO =
+            new BasicAttributeSensor<Double>(Double.class, "opengamma.cache.hitRatio", "Fraction of cache lookups which were hits (since the last poll)");
+
+    AttributeSensor<Long> NETWORK_BYTES_RECEIVED =
+            new BasicAttributeSensor<Long>(Long.class, "host.network.bytes.received", "Bytes received on all non-loopback interfaces (when caches are replicated)");
+
+    AttributeSensor<Long> NETWORK_BYTES_SENT =
+            new BasicAttributeSensor<Long>(Long.class, "host.network.bytes.sent", "Bytes sent on all non-loopback interfaces (when caches are replicated)");
+
+    AttributeSensor<Double> GC_PAUSE_TIME_PER_SECOND =
+            new BasicAttributeSensor<Double>(Double.class, "java.gc.pauseTime.perSec", "Millis per second spent in garbage collection, across all collectors (last poll period)");
+
+    AttributeSensor<Long> GC_MAX_PAUSE =
+            new BasicAttributeSensor<Long>(Long.class, "java.gc.pause.max", "Longest of the latest collections (in millis) of each collector which ran in the last poll period");
+
+    AttributeSensor<Long> GC_YOUNG_COLLECTIONS =
+            new BasicAttributeSensor<Long>(Long.class, "java.gc.young.count", "Young-generation collections since the server started");
+
+    AttributeSensor<Long> GC_OLD_COLLECTIONS =
+            new BasicAttributeSensor<Long>(Long.class, "java.gc.old.count", "Old-generation (full) collections since the server started");
+
+    AttributeSensor<Double> GC_PROMOTION_RATE =
+            new BasicAttributeSensor<Double>(Double.class, "java.gc.promotionRate", "Bytes per second by which the old generation grew between old-generation collections (last poll period)");
+
+    AttributeSensor<Double> OLD_GEN_AFTER_GC =
+            new BasicAttributeSensor<Double>(Double.class, "java.gc.old.occupancyAfterGc", "Fraction of the old generation still used after its last collection");
+
+    @Effector(description="Starts a replacement for this server on a larger or smaller instance, adds it to the cluster, " +
+            "then drains and removes this server; returns the replacement's id")
+    String replaceWithProfile(
+            @EffectorParam(name="profile", description="'up' or 'down' one step of HARDWARE_PROFILES, or a hardware profile " +
+                    "(e.g. cores=8,ram=32768)") String profile);
+
     /** The OpenGamma message bus broker entity. */
     ActiveMQBroker getBroker();
 
@@ -1,6 +1,20 @@
 package io.cloudsoft.opengamma.server;
 
+import io.cloudsoft.opengamma.load.LatencySamples;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.relation.MBeanServerNotificationFilter;
 
 import org.jclouds.compute.domain.OsFamily;
 import org.slf4j.Logger;
@@ -8,34 +22,68 @@ import org.slf4j.LoggerFactory;
 
 import brooklyn.enricher.RollingTimeWindowMeanEnricher;
 import brooklyn.enricher.TimeWeightedDeltaEnricher;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.Attributes;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.entity.basic.Lifecycle;
 import brooklyn.entity.basic.SoftwareProcessImpl;
 import brooklyn.entity.database.postgresql.PostgreSqlNode;
+import brooklyn.entity.group.DynamicCluster;
 import brooklyn.entity.java.JavaAppUtils;
 import brooklyn.entity.java.UsesJmx;
 import brooklyn.entity.messaging.activemq.ActiveMQBroker;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.entity.trait.Startable;
 import brooklyn.entity.webapp.WebAppServiceConstants;
 import brooklyn.entity.webapp.WebAppServiceMethods;
+import brooklyn.event.feed.function.FunctionFeed;
+import brooklyn.event.feed.function.FunctionPollConfig;
 import brooklyn.event.feed.http.HttpFeed;
 import brooklyn.event.feed.http.HttpPollConfig;
 import brooklyn.event.feed.http.HttpValueFunctions;
 import brooklyn.event.feed.jmx.JmxAttributePollConfig;
 import brooklyn.event.feed.jmx.JmxFeed;
 import brooklyn.event.feed.jmx.JmxHelper;
+import brooklyn.event.feed.jmx.JmxNotificationSubscriptionConfig;
+import brooklyn.event.feed.ssh.SshFeed;
+import brooklyn.event.feed.ssh.SshPollConfig;
+import brooklyn.event.feed.ssh.SshValueFunctions;
+import brooklyn.location.Location;
 import brooklyn.location.MachineProvisioningLocation;
 import brooklyn.location.access.BrooklynAccessUtils;
+import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.location.jclouds.templates.PortableTemplateBuilder;
+import brooklyn.util.collections.MutableMap;
 import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.task.Tasks;
+import brooklyn.util.text.Strings;
 import brooklyn.util.time.Duration;
 import brooklyn.util.time.Time;
 
+import com.google.common.base.Function;
 import com.google.common.base.Functions;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.net.HostAndPort;
+import com.google.common.primitives.Doubles;
 
 public class OpenGammaServerImpl extends SoftwareProcessImpl implements OpenGammaServer, UsesJmx {
 
     private static final Logger log = LoggerFactory.getLogger(OpenGammaServerImpl.class);
     
     private HttpFeed httpFeed;
+    private FunctionFeed cacheFeed;
+    private FunctionFeed cycleFeed;
+    private FunctionFeed gcFeed;
+    private SshFeed networkFeed;
+    private JmxHelper cacheJmxHelper;
+    private JmxHelper cycleJmxHelper;
+    private JmxHelper gcJmxHelper;
     private ActiveMQBroker broker;
     private PostgreSqlNode database;
 
@@ -53,15 +101,21 @@ public class OpenGammaServerImpl extends SoftwareProcessImpl implements OpenGamm
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
     protected Map<String,Object> obtainProvisioningFlags(MachineProvisioningLocation location) {
+        StartupPhases.reset(this);
+        StartupPhases.started(this, StartupPhases.PROVISIONING);
         Map flags = super.obtainProvisioningFlags(location);
-        flags.put("templateBuilder", new PortableTemplateBuilder()
-            // need a beefy machine
+        PortableTemplateBuilder templateBuilder = new PortableTemplateBuilder();
+        templateBuilder
             .os64Bit(true)
-            .minRam(8192)
             // either should work... however ubuntu not available in GCE
 //          .osFamily(OsFamily.UBUNTU).osVersionMatches("12.04")
 //          .osFamily(OsFamily.CENTOS)
-            );
+            ;
+        // need a beefy machine; calc nodes are sized to whatever cores we get, but a floor can be requested
+        HardwareProfile profile = HardwareProfile.parse(getConfig(HARDWARE_PROFILE)).withMinCores(getConfig(MIN_CORES));
+        profile.applyTo(templateBuilder);
+        setAttribute(CURRENT_HARDWARE_PROFILE, profile.toString());
+        flags.put("templateBuilder", templateBuilder);
         return flags;
     }
 
@@ -74,53 +128,369 @@ public class OpenGammaServerImpl extends SoftwareProcessImpl implements OpenGamm
         String rootUrl = "http://"+hp.getHostText()+":"+hp.getPort()+"/";
         setAttribute(ROOT_URL, rootUrl);
         
+        // every second until up, so the start is seen promptly
+        connectServiceUpFeed(Duration.ONE_SECOND);
+    }
+
+    protected void connectServiceUpFeed(Duration period) {
+        if (httpFeed != null) httpFeed.stop();
         httpFeed = HttpFeed.builder()
                 .entity(this)
-                .period(1000)
-                .baseUri(rootUrl)
+                .period(period)
+                .baseUri(getAttribute(ROOT_URL))
                 .poll(new HttpPollConfig<Boolean>(SERVICE_UP)
-                        .onSuccess(HttpValueFunctions.responseCodeEquals(200))
+                        .onSuccess(unlessDraining(HttpValueFunctions.responseCodeEquals(200)))
                         .onFailureOrException(Functions.constant(false)))
                 .build();
     }
     
+    @Override
+    protected void preStart() {
+        super.preStart();
+        // the machine has been obtained (on restart, provisioning is skipped and this is not recorded)
+        StartupPhases.ended(this, StartupPhases.PROVISIONING);
+    }
+
     @Override
     protected void postStart() {
         super.postStart();
-        
-            String ogJettyStatsMbeanName = "com.opengamma.jetty:service=HttpConnector";
-
-            JmxFeed.builder().entity(this).period(Duration.ONE_SECOND)
-                    .pollAttribute(new JmxAttributePollConfig<Boolean>(SERVICE_UP)
-                            .objectName(ogJettyStatsMbeanName)
-                            .attributeName("Running")
-                            .setOnFailureOrException(false))
-                    .pollAttribute(new JmxAttributePollConfig<Integer>(REQUEST_COUNT)
-                            .objectName(ogJettyStatsMbeanName)
-                            .attributeName("Requests"))
+        // called once service-up has been seen
+        StartupPhases.endedAfter(this, StartupPhases.SERVICE_UP, StartupPhases.LAUNCH);
+        Map<String,Long> phases = getAttribute(STARTUP_PHASE_DURATIONS);
+        Long launch = phases == null ? null : phases.get(StartupPhases.LAUNCH);
+        Long serviceUp = phases == null ? null : phases.get(StartupPhases.SERVICE_UP);
+        if (launch != null && serviceUp != null) setAttribute(BOOT_DURATION, launch + serviceUp);
+        connectJmxSensors();
+        connectCacheSensors();
+        connectViewCycleSensors();
+        connectGcSensors();
+        connectJavaAppSensorsAndEnrichers();
+        // once up, the connector's unregistration notification reports it going down; polling is only a reconciliation
+        if (getConfig(JMX_NOTIFICATIONS_ENABLED)) connectServiceUpFeed(getConfig(JMX_RECONCILIATION_PERIOD));
+    }
+
+    protected void connectJmxSensors() {
+        String ogJettyStatsMbeanName = "com.opengamma.jetty:service=HttpConnector";
+        boolean notifications = getConfig(JMX_NOTIFICATIONS_ENABLED);
+        // with notifications, view-process and connector sensors only need a slow reconciliation poll
+        Duration slowPeriod = notifications ? getConfig(JMX_RECONCILIATION_PERIOD) : Duration.ONE_SECOND;
+
+        JmxFeed.Builder jmxFeed = JmxFeed.builder().entity(this).period(Duration.ONE_SECOND)
+                .pollAttribute(new JmxAttributePollConfig<Boolean>(SERVICE_UP)
+                        .objectName(ogJettyStatsMbeanName)
+                        .attributeName("Running")
+                        .period(slowPeriod)
+                        .onSuccess(unlessDraining(Functions.forPredicate(Predicates.equalTo((Object)true))))
+                        .setOnFailureOrException(false))
+                .pollAttribute(new JmxAttributePollConfig<Integer>(REQUEST_COUNT)
+                        .objectName(ogJettyStatsMbeanName)
+                        .attributeName("Requests"))
         // these two from jetty not available from opengamma bean:
 //        jettyStatsHandler.attribute("requestTimeTotal").subscribe(TOTAL_PROCESSING_TIME);
 //        jettyStatsHandler.attribute("responsesBytesTotal").subscribe(BYTES_SENT);
-                    .pollAttribute(new JmxAttributePollConfig<Integer>(TOTAL_PROCESSING_TIME)
-                            .objectName(ogJettyStatsMbeanName)
-                            .attributeName("ConnectionsDurationTotal"))
-                    .pollAttribute(new JmxAttributePollConfig<Integer>(MAX_PROCESSING_TIME)
-                            .objectName(ogJettyStatsMbeanName)
-                            .attributeName("ConnectionsDurationMax"))
-                            
-                    .pollAttribute(new JmxAttributePollConfig<Integer>(VIEW_PROCESSES_COUNT)
-                            .objectName("com.opengamma:type=ViewProcessor,name=ViewProcessor main")
-                            .attributeName("NumberOfViewProcesses"))
-                            
-                    .pollAttribute(new JmxAttributePollConfig<Integer>(CALC_JOB_COUNT)
-                            .objectName("com.opengamma:type=CalculationNodes,name=local")
-                            .attributeName("TotalJobCount"))
-                    .pollAttribute(new JmxAttributePollConfig<Integer>(CALC_NODE_COUNT)
-                            .objectName("com.opengamma:type=CalculationNodes,name=local")
-                            .attributeName("TotalNodeCount"))
-                            
+                .pollAttribute(new JmxAttributePollConfig<Integer>(TOTAL_PROCESSING_TIME)
+                        .objectName(ogJettyStatsMbeanName)
+                        .attributeName("ConnectionsDurationTotal"))
+                .pollAttribute(new JmxAttributePollConfig<Integer>(MAX_PROCESSING_TIME)
+                        .objectName(ogJettyStatsMbeanName)
+                        .attributeName("ConnectionsDurationMax"))
+                        
+                .pollAttribute(new JmxAttributePollConfig<Integer>(VIEW_PROCESSES_COUNT)
+                        .objectName("com.opengamma:type=ViewProcessor,name=ViewProcessor main")
+                        .attributeName("NumberOfViewProcesses")
+                        .period(slowPeriod))
+                        
+                .pollAttribute(new JmxAttributePollConfig<Integer>(CALC_JOB_COUNT)
+                        .objectName("com.opengamma:type=CalculationNodes,name=local")
+                        .attributeName("TotalJobCount"))
+                .pollAttribute(new JmxAttributePollConfig<Integer>(CALC_NODE_COUNT)
+                        .objectName("com.opengamma:type=CalculationNodes,name=local")
+                        .attributeName("TotalNodeCount"));
+        if (notifications) {
+            // the MBean server delegate announces every MBean (un)registration, so view processes
+            // starting and stopping, and the connector going away, are seen without custom server-side code
+            MBeanServerNotificationFilter connectorFilter = new MBeanServerNotificationFilter();
+            connectorFilter.disableAllObjectNames();
+            connectorFilter.enableObjectName(JmxHelper.createObjectName(ogJettyStatsMbeanName));
+            connectorFilter.disableAllTypes();
+            connectorFilter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+            jmxFeed.subscribeToNotification(new JmxNotificationSubscriptionConfig<Boolean>(SERVICE_UP)
+                        .objectName(MBeanServerDelegate.DELEGATE_NAME)
+                        .notificationFilter(connectorFilter)
+                        .onNotification(Functions.constant(false)));
+
+            MBeanServerNotificationFilter allMBeansFilter = new MBeanServerNotificationFilter();
+            allMBeansFilter.enableAllObjectNames();
+            jmxFeed.subscribeToNotification(new JmxNotificationSubscriptionConfig<Integer>(VIEW_PROCESSES_COUNT)
+                        .objectName(MBeanServerDelegate.DELEGATE_NAME)
+                        .notificationFilter(allMBeansFilter)
+                        .onNotification(new ViewProcessCounter(JmxHelper.createObjectName(getConfig(VIEW_PROCESS_MBEAN_PATTERN)))));
+        }
+        jmxFeed.build();
+    }
+
+    protected void connectCacheSensors() {
+        cacheJmxHelper = new JmxHelper(this);
+        cacheFeed = FunctionFeed.builder()
+                .entity(this)
+                .poll(new FunctionPollConfig<Double,Double>(CACHE_HIT_RATIO)
+                        .period(Duration.TEN_SECONDS)
+                        .callable(new CacheStatisticsPoller()))
+                .build();
+
+        // replication traffic is not reported by ehcache, so watch the host's network counters
+        if ("replicated".equalsIgnoreCase(getConfig(CACHE_MODE))) {
+            SshMachineLocation machine = (SshMachineLocation) Iterables.find(getLocations(), Predicates.instanceOf(SshMachineLocation.class));
+            networkFeed = SshFeed.builder()
+                    .entity(this)
+                    .machine(machine)
+                    .period(Duration.TEN_SECONDS)
+                    .poll(new SshPollConfig<Long>(NETWORK_BYTES_RECEIVED)
+                            .command(sumNetworkCounterCommand(2))
+                            .onSuccess(Functions.compose(PARSE_LONG, SshValueFunctions.stdout())))
+                    .poll(new SshPollConfig<Long>(NETWORK_BYTES_SENT)
+                            .command(sumNetworkCounterCommand(10))
+                            .onSuccess(Functions.compose(PARSE_LONG, SshValueFunctions.stdout())))
                     .build();
-            
+        }
+    }
+
+    /** sums the given column of /proc/net/dev (2 is bytes received, 10 bytes sent) over non-loopback interfaces */
+    private static String sumNetworkCounterCommand(int column) {
+        return "sed 1,2d /proc/net/dev | sed 's/:/ /' | awk '$1 != \"lo\" { total += $"+column+" } END { printf \"%.0f\\n\", total }'";
+    }
+
+    private static final Function<String,Long> PARSE_LONG = new Function<String,Long>() {
+        @Override
+        public Long apply(String input) {
+            return Strings.isBlank(input) ? null : Long.parseLong(input.trim());
+        }
+    };
+
+    /**
+     * Sums the statistics of all caches published by ehcache's ManagementService (see brooklyn-infrastructure-spring.xml),
+     * setting {@link #CACHE_ELEMENTS} and returning the hit ratio since the previous poll.
+     */
+    private class CacheStatisticsPoller implements Callable<Double> {
+        private long lastHits = -1;
+        private long lastMisses = -1;
+
+        @Override
+        public Double call() throws Exception {
+            if (!cacheJmxHelper.isConnected()) cacheJmxHelper.connect(Duration.THIRTY_SECONDS.toMilliseconds());
+            long hits = 0, misses = 0, elements = 0;
+            for (ObjectInstance mbean : cacheJmxHelper.findMBeans(JmxHelper.createObjectName("net.sf.ehcache:type=CacheStatistics,*"))) {
+                hits += ((Number) cacheJmxHelper.getAttribute(mbean.getObjectName(), "CacheHits")).longValue();
+                misses += ((Number) cacheJmxHelper.getAttribute(mbean.getObjectName(), "CacheMisses")).longValue();
+                elements += ((Number) cacheJmxHelper.getAttribute(mbean.getObjectName(), "ObjectCount")).longValue();
+            }
+            setAttribute(CACHE_ELEMENTS, elements);
+
+            Double hitRatio = null;
+            long newHits = hits - lastHits, newMisses = misses - lastMisses;
+            // counters go backwards if a cache is removed; skip that period
+            if (lastHits >= 0 && newHits >= 0 && newMisses >= 0 && newHits + newMisses > 0) {
+                hitRatio = (double) newHits / (newHits + newMisses);
+            }
+            lastHits = hits;
+            lastMisses = misses;
+            return hitRatio;
+        }
+    }
+
+    protected void connectViewCycleSensors() {
+        cycleJmxHelper = new JmxHelper(this);
+        cycleFeed = FunctionFeed.builder()
+                .entity(this)
+                .poll(new FunctionPollConfig<Double,Double>(VIEW_MEAN_CYCLE_TIME_P95)
+                        .period(Duration.TEN_SECONDS)
+                        .callable(new ViewCycleStatisticsPoller()))
+                .build();
+    }
+
+    /**
+     * Reads the cumulative cycle count and time of each view process from its graph execution statistics MBean
+     * (see {@link #CYCLE_STATISTICS_MBEAN_PATTERN}), and from the increase since the previous poll sets
+     * {@link #VIEW_CYCLE_TIMES}, the other percentiles and {@link #VIEW_CYCLES_PER_SECOND}, returning the p95.
+     * The statistics MBeans only expose cumulative totals, not individual cycle durations, so the percentiles are
+     * over the views' mean cycle times in the period, each weighted by the cycles it completed: a slow cycle within
+     * an otherwise fast view is averaged away, hence the sensors' names.
+     * Also sets {@link #DEPENDENCY_GRAPH_BUILD_TIME} from the view-process MBeans, where they report it.
+     */
+    private class ViewCycleStatisticsPoller implements Callable<Double> {
+        /** weight of the busiest view in the percentiles, bounding the samples array */
+        private static final int MAX_WEIGHT = 1000;
+
+        private final Map<ObjectName,long[]> lastTotals = Maps.newHashMap();
+        private long lastPoll = -1;
+
+        @Override
+        public Double call() throws Exception {
+            if (!cycleJmxHelper.isConnected()) cycleJmxHelper.connect(Duration.THIRTY_SECONDS.toMilliseconds());
+            long now = System.currentTimeMillis();
+            Map<ObjectName,long[]> totals = Maps.newHashMap();
+            Map<String,Double> cycleTimes = Maps.newTreeMap();
+            Map<String,Long> cycleCounts = Maps.newHashMap();
+            long cycles = 0;
+            for (ObjectInstance mbean : cycleJmxHelper.findMBeans(JmxHelper.createObjectName(getConfig(CYCLE_STATISTICS_MBEAN_PATTERN)))) {
+                ObjectName name = mbean.getObjectName();
+                long count = ((Number) cycleJmxHelper.getAttribute(name, "ProcessedGraphs")).longValue();
+                long nanos = ((Number) cycleJmxHelper.getAttribute(name, "ActualTime")).longValue();
+                totals.put(name, new long[] {count, nanos});
+                long[] last = lastTotals.get(name);
+                // new views have no baseline yet; counters going backwards mean the view was restarted
+                if (last == null || count < last[0] || nanos < last[1] || count == last[0]) continue;
+                String view = Objects.firstNonNull(name.getKeyProperty("view"), name.getKeyProperty("name"));
+                if (view == null) view = name.toString();
+                cycleTimes.put(view, (nanos - last[1]) / 1e6 / (count - last[0]));
+                cycleCounts.put(view, count - last[0]);
+                cycles += count - last[0];
+            }
+            lastTotals.clear();
+            lastTotals.putAll(totals);
+
+            Double p95 = null;
+            if (lastPoll >= 0) {
+                setAttribute(VIEW_CYCLES_PER_SECOND, cycles * 1000d / Math.max(1, now - lastPoll));
+                setAttribute(VIEW_CYCLE_TIMES, cycleTimes);
+                if (!cycleTimes.isEmpty()) {
+                    long maxCount = Collections.max(cycleCounts.values());
+                    List<Double> samples = Lists.newArrayList();
+                    for (Map.Entry<String,Double> view : cycleTimes.entrySet()) {
+                        long weight = Math.max(1, cycleCounts.get(view.getKey()) * MAX_WEIGHT / maxCount);
+                        for (int i=0; i<weight; i++) samples.add(view.getValue());
+                    }
+                    double[] sorted = Doubles.toArray(samples);
+                    Arrays.sort(sorted);
+                    setAttribute(VIEW_MEAN_CYCLE_TIME_P50, LatencySamples.percentile(sorted, 50));
+                    setAttribute(VIEW_MEAN_CYCLE_TIME_P99, LatencySamples.percentile(sorted, 99));
+                    p95 = LatencySamples.percentile(sorted, 95);
+                }
+            }
+            lastPoll = now;
+
+            setAttribute(DEPENDENCY_GRAPH_BUILD_TIME, getGraphBuildTime());
+            return p95;
+        }
+
+        /** the longest graph build time reported by any view process; null if none report it */
+        private Double getGraphBuildTime() {
+            String attribute = getConfig(GRAPH_BUILD_TIME_ATTRIBUTE);
+            if (Strings.isBlank(attribute)) return null;
+            Double result = null;
+            for (ObjectInstance mbean : cycleJmxHelper.findMBeans(JmxHelper.createObjectName(getConfig(VIEW_PROCESS_MBEAN_PATTERN)))) {
+                try {
+                    Object value = cycleJmxHelper.getAttribute(mbean.getObjectName(), attribute);
+                    if (value instanceof Number) result = Math.max(result == null ? 0 : result, ((Number) value).doubleValue());
+                } catch (Exception e) {
+                    Exceptions.propagateIfFatal(e);
+                    log.trace("No graph build time from {} on {}: {}", new Object[] {mbean.getObjectName(), OpenGammaServerImpl.this, e});
+                }
+            }
+            return result;
+        }
+    }
+
+    protected void connectGcSensors() {
+        gcJmxHelper = new JmxHelper(this);
+        gcFeed = FunctionFeed.builder()
+                .entity(this)
+                .poll(new FunctionPollConfig<Double,Double>(GC_PAUSE_TIME_PER_SECOND)
+                        .period(Duration.TEN_SECONDS)
+                        .callable(new GcStatisticsPoller()))
+                .build();
+    }
+
+    /**
+     * Reads the platform's garbage collector and memory pool MXBeans, setting the collection counts,
+     * {@link #GC_MAX_PAUSE}, {@link #GC_PROMOTION_RATE} and {@link #OLD_GEN_AFTER_GC}, and returning the
+     * collection time per second since the previous poll.
+     * <p>
+     * The MXBeans report only the latest collection of each collector, so the max pause is of those;
+     * and promotion is estimated as the growth of the old generation over polls in which it was not collected.
+     */
+    private class GcStatisticsPoller implements Callable<Double> {
+        private final Map<ObjectName,long[]> lastTotals = Maps.newHashMap();
+        private long lastOldUsed = -1;
+        private long lastPoll = -1;
+
+        @Override
+        public Double call() throws Exception {
+            if (!gcJmxHelper.isConnected()) gcJmxHelper.connect(Duration.THIRTY_SECONDS.toMilliseconds());
+            long now = System.currentTimeMillis();
+            long young = 0, old = 0, newTime = 0, newOld = 0;
+            Long maxPause = null;
+            Map<ObjectName,long[]> totals = Maps.newHashMap();
+            for (ObjectInstance mbean : gcJmxHelper.findMBeans(JmxHelper.createObjectName("java.lang:type=GarbageCollector,*"))) {
+                ObjectName name = mbean.getObjectName();
+                long count = ((Number) gcJmxHelper.getAttribute(name, "CollectionCount")).longValue();
+                long time = ((Number) gcJmxHelper.getAttribute(name, "CollectionTime")).longValue();
+                boolean oldCollector = isOldCollector(name.getKeyProperty("name"));
+                if (oldCollector) old += count; else young += count;
+                totals.put(name, new long[] {count, time});
+                long[] last = lastTotals.get(name);
+                if (last == null || count <= last[0]) continue;
+                newTime += time - last[1];
+                if (oldCollector) newOld += count - last[0];
+                Long pause = getLastPause(name);
+                if (pause != null && (maxPause == null || pause > maxPause)) maxPause = pause;
+            }
+            lastTotals.clear();
+            lastTotals.putAll(totals);
+            setAttribute(GC_YOUNG_COLLECTIONS, young);
+            setAttribute(GC_OLD_COLLECTIONS, old);
+
+            Double pauseTimePerSecond = null;
+            CompositeData oldUsage = null, oldUsageAfterGc = null;
+            for (ObjectInstance mbean : gcJmxHelper.findMBeans(JmxHelper.createObjectName("java.lang:type=MemoryPool,*"))) {
+                if (!isOldPool(mbean.getObjectName().getKeyProperty("name"))) continue;
+                oldUsage = (CompositeData) gcJmxHelper.getAttribute(mbean.getObjectName(), "Usage");
+                oldUsageAfterGc = (CompositeData) gcJmxHelper.getAttribute(mbean.getObjectName(), "CollectionUsage");
+            }
+            if (oldUsageAfterGc != null) {
+                long max = ((Number) oldUsageAfterGc.get("max")).longValue();
+                if (max <= 0) max = ((Number) oldUsageAfterGc.get("committed")).longValue();
+                if (max > 0) setAttribute(OLD_GEN_AFTER_GC, ((Number) oldUsageAfterGc.get("used")).doubleValue() / max);
+            }
+            long oldUsed = oldUsage == null ? -1 : ((Number) oldUsage.get("used")).longValue();
+            if (lastPoll >= 0) {
+                long elapsed = Math.max(1, now - lastPoll);
+                pauseTimePerSecond = newTime * 1000d / elapsed;
+                setAttribute(GC_MAX_PAUSE, maxPause == null ? 0L : maxPause);
+                // an old collection in the period hides what was promoted
+                if (newOld == 0 && oldUsed >= 0 && lastOldUsed >= 0) {
+                    setAttribute(GC_PROMOTION_RATE, Math.max(0, oldUsed - lastOldUsed) * 1000d / elapsed);
+                }
+            }
+            lastOldUsed = oldUsed;
+            lastPoll = now;
+            return pauseTimePerSecond;
+        }
+
+        /** duration of the collector's latest collection, where the JVM reports it (HotSpot's LastGcInfo) */
+        private Long getLastPause(ObjectName collector) {
+            try {
+                CompositeData info = (CompositeData) gcJmxHelper.getAttribute(collector, "LastGcInfo");
+                return info == null ? null : ((Number) info.get("duration")).longValue();
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                log.trace("No last GC info from {} on {}: {}", new Object[] {collector, OpenGammaServerImpl.this, e});
+                return null;
+            }
+        }
+    }
+
+    /** whether the named collector collects the old generation (as opposed to young collectors, e.g. PS Scavenge, ParNew) */
+    private static boolean isOldCollector(String name) {
+        return name != null && (name.contains("MarkSweep") || name.contains("Old") || name.contains("Tenured") || name.equals("MSC"));
+    }
+
+    /** whether the named memory pool is the old generation (e.g. PS Old Gen, CMS Old Gen, Tenured Gen, G1 Old Gen) */
+    private static boolean isOldPool(String name) {
+        return name != null && (name.contains("Old Gen") || name.contains("Tenured"));
+    }
+
+    protected void connectJavaAppSensorsAndEnrichers() {
         JavaAppUtils.connectMXBeanSensors(this);
         JavaAppUtils.connectJavaAppServerPolicies(this);
         WebAppServiceMethods.connectWebAppServerPolicies(this);
@@ -148,10 +518,157 @@ public class OpenGammaServerImpl extends SoftwareProcessImpl implements OpenGamm
         }
     }
     
+    /** adjusts {@link #VIEW_PROCESSES_COUNT} as view-process MBeans are registered and unregistered; the reconciliation poll corrects any drift */
+    protected class ViewProcessCounter implements Function<Notification,Integer> {
+        private final ObjectName viewProcessPattern;
+
+        public ViewProcessCounter(ObjectName viewProcessPattern) {
+            this.viewProcessPattern = viewProcessPattern;
+        }
+
+        @Override
+        public Integer apply(Notification notification) {
+            Integer current = getAttribute(VIEW_PROCESSES_COUNT);
+            if (!(notification instanceof MBeanServerNotification)) return current;
+            ObjectName name = ((MBeanServerNotification)notification).getMBeanName();
+            // the view client and statistics MBeans beneath a view process carry its key too, but further keys as well
+            if (!viewProcessPattern.apply(name) || name.getKeyProperty("ViewProcess") == null) return current;
+            int count = current == null ? 0 : current;
+            if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) return count + 1;
+            return Math.max(0, count - 1);
+        }
+    }
+
+    /** reports service-up as false while draining, so the load-balancer drops this server from its pool */
+    protected <T> Function<T,Boolean> unlessDraining(final Function<? super T,Boolean> serviceUpFunction) {
+        return new Function<T,Boolean>() {
+            @Override
+            public Boolean apply(T input) {
+                if (Boolean.TRUE.equals(getAttribute(DRAINING))) return false;
+                return serviceUpFunction.apply(input);
+            }
+        };
+    }
+
+    @Override
+    protected void preStop() {
+        super.preStop();
+        drain();
+    }
+
+    /** as on stop, drains view processes first when restarted as a member of a running cluster (e.g. when recycled) */
+    @Override
+    public void restart() {
+        drain();
+        // back in service-up checks, as the restart waits for the server to come up again
+        setAttribute(DRAINING, false);
+        boolean notifications = getConfig(JMX_NOTIFICATIONS_ENABLED);
+        if (notifications) connectServiceUpFeed(Duration.ONE_SECOND);
+        super.restart();
+        if (notifications) connectServiceUpFeed(getConfig(JMX_RECONCILIATION_PERIOD));
+    }
+
+    /**
+     * When this server is being removed from a cluster which is still running (i.e. scale-in, not a full stop),
+     * leaves the load-balancer pool and then waits for active view processes to complete, up to {@link #DRAIN_TIMEOUT},
+     * so users' views are not killed and recomputed from scratch on the surviving servers.
+     */
+    protected void drain() {
+        Duration timeout = getConfig(DRAIN_TIMEOUT);
+        if (timeout == null || timeout.toMilliseconds() <= 0) return;
+        if (!Boolean.TRUE.equals(getAttribute(SERVICE_UP))) return;
+        Entity parent = getParent();
+        if (parent == null || parent.getAttribute(Attributes.SERVICE_STATE) != Lifecycle.RUNNING) {
+            log.debug("Not draining {} as parent {} is not running (whole cluster stopping)", this, parent);
+            return;
+        }
+
+        log.info("Draining {} before stop: leaving load-balancer pool, waiting up to {} for {} view process(es)",
+                new Object[] {this, timeout, getAttribute(VIEW_PROCESSES_COUNT)});
+        setAttribute(DRAINING, true);
+        setAttribute(SERVICE_UP, false);
+        Tasks.setBlockingDetails("Draining view processes before stop");
+        try {
+            long start = System.currentTimeMillis();
+            while (System.currentTimeMillis() - start < timeout.toMilliseconds()) {
+                Integer views = getAttribute(VIEW_PROCESSES_COUNT);
+                if (views == null || views <= 0) {
+                    log.info("Drained {} after {}", this, Time.makeTimeStringRounded(System.currentTimeMillis() - start));
+                    return;
+                }
+                Time.sleep(Duration.ONE_SECOND);
+            }
+            log.warn("Timeout draining {}; stopping with {} view process(es) still active", this, getAttribute(VIEW_PROCESSES_COUNT));
+        } finally {
+            Tasks.resetBlockingDetails();
+        }
+    }
+
+    @Override
+    public String replaceWithProfile(String profile) {
+        if (!(getParent() instanceof DynamicCluster)) throw new IllegalStateException("Cannot replace "+this+": it is not a cluster member");
+        final DynamicCluster cluster = (DynamicCluster) getParent();
+        final HardwareProfile target = getReplacementProfile(profile);
+        final Location location = Iterables.getOnlyElement(cluster.getLocations());
+        final EntitySpec<OpenGammaServer> spec = EntitySpec.create(OpenGammaServer.class)
+                .displayName(getDisplayName())
+                .configure(getConfigMap().getLocalConfig())
+                .configure(HARDWARE_PROFILE, target.toString());
+        final OpenGammaServer old = (OpenGammaServer) getProxyIfAvailable();
+
+        // run in the cluster's context, as this server is unmanaged by the end of it
+        return Entities.submit(cluster, Tasks.<String>builder().name("Replacing "+this+" with "+target).body(new Callable<String>() {
+            @Override
+            public String call() {
+                log.info("Replacing {} in {} with a server on hardware {}", new Object[] {old, cluster, target});
+                OpenGammaServer replacement = cluster.addChild(spec);
+                Entities.manage(replacement);
+                try {
+                    Entities.invokeEffector((EntityLocal) cluster, replacement, Startable.START, MutableMap.of("locations", ImmutableList.of(location))).getUnchecked();
+                } catch (RuntimeException e) {
+                    // leave the original serving
+                    log.warn("Failed to start replacement "+replacement+" for "+old+"; keeping "+old+": "+e);
+                    Entities.unmanage(replacement);
+                    throw e;
+                }
+                cluster.addMember(replacement);
+                // the cluster is still running, so stopping drains the original's view processes first
+                Entities.invokeEffector((EntityLocal) cluster, old, Startable.STOP).getUnchecked();
+                cluster.removeMember(old);
+                Entities.unmanage(old);
+                log.info("Replaced {} in {} with {}", new Object[] {old, cluster, replacement});
+                return replacement.getId();
+            }
+        }).build()).getUnchecked();
+    }
+
+    /** the next larger or smaller of {@link #HARDWARE_PROFILES} than the current profile, for "up" or "down", or else the profile given */
+    protected HardwareProfile getReplacementProfile(String profile) {
+        boolean up = "up".equalsIgnoreCase(profile);
+        if (!up && !"down".equalsIgnoreCase(profile)) return HardwareProfile.parse(profile);
+        HardwareProfile current = HardwareProfile.parse(getConfig(HARDWARE_PROFILE));
+        HardwareProfile result = null;
+        for (HardwareProfile candidate : HardwareProfile.parseList(getConfig(HARDWARE_PROFILES))) {
+            if (up && current.isSmallerThan(candidate) && result == null) result = candidate;
+            if (!up && candidate.isSmallerThan(current)) result = candidate;
+        }
+        if (result == null) {
+            throw new IllegalStateException("No hardware profile "+profile+" from "+current+" in "+getConfig(HARDWARE_PROFILES)+" for "+this);
+        }
+        return result;
+    }
+
     @Override
     protected void disconnectSensors() {
         super.disconnectSensors();
         if (httpFeed != null) httpFeed.stop();
+        if (cacheFeed != null) cacheFeed.stop();
+        if (networkFeed != null) networkFeed.stop();
+        if (cacheJmxHelper != null) cacheJmxHelper.terminate();
+        if (cycleFeed != null) cycleFeed.stop();
+        if (cycleJmxHelper != null) cycleJmxHelper.terminate();
+        if (gcFeed != null) gcFeed.stop();
+        if (gcJmxHelper != null) gcJmxHelper.terminate();
     }
 
     /** HTTP port number for Jetty web service. */
@@ -160,6 +677,9 @@ public class OpenGammaServerImpl extends SoftwareProcessImpl implements OpenGamm
     /** HTTPS port number for Jetty web service. */
     public Integer getHttpsPort() { return getAttribute(HTTPS_PORT); }
 
+    /** Port on which replicated cache updates are received. */
+    public Integer getCacheReplicationPort() { return getAttribute(CACHE_REPLICATION_PORT); }
+
     /** {@inheritDoc} */
     @Override
     public ActiveMQBroker getBroker() { return broker; }
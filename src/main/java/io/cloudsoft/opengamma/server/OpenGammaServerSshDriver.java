@@ -1,9 +1,14 @@
 package io.cloudsoft.opengamma.server;
 
-import java.io.StringReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import brooklyn.config.ConfigKey;
 import brooklyn.entity.Entity;
@@ -18,6 +23,7 @@ import brooklyn.event.AttributeSensor;
 import brooklyn.event.basic.BasicAttributeSensor;
 import brooklyn.event.basic.DependentConfiguration;
 import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.util.ResourceUtils;
 import brooklyn.util.collections.MutableMap;
 import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.internal.ssh.SshTool;
@@ -31,10 +37,16 @@ import brooklyn.util.text.Strings;
 import brooklyn.util.time.Duration;
 import brooklyn.util.time.Time;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
 import com.google.common.net.HostAndPort;
 
 public class OpenGammaServerSshDriver extends JavaSoftwareProcessSshDriver implements OpenGammaServerDriver {
@@ -43,6 +55,25 @@ public class OpenGammaServerSshDriver extends JavaSoftwareProcessSshDriver imple
     public static final AttributeSensor<Boolean> DB_INITIALISED =
             new BasicAttributeSensor<Boolean>(Boolean.class, "opengamma.database.initialised");
     
+    /** market data simulated by the example live data server, within the examples-simulated jar */
+    public static final String SIMULATED_DATA_RESOURCE = "com/opengamma/examples/simulated/livedata/market-data.csv";
+
+    /** the only version whose og-masterdb jar is patched; see {@link #getPostConfigCommands()} */
+    public static final String MASTERDB_PATCH_VERSION = "2.1.0";
+
+    /** marker files recording the hash of what was installed (in the install dir) and customized (in the run dir) */
+    public static final String INSTALLED_MARKER = ".brooklyn-installed";
+    public static final String CUSTOMIZED_MARKER = ".brooklyn-customized";
+
+    /** port of the replicated cache multicast group, unless one is configured with its own */
+    public static final int CACHE_MULTICAST_PORT = 4446;
+
+    private volatile long lifecycleStartedMillis;
+    private volatile boolean restarting;
+    private volatile boolean runDirReused;
+    private volatile Integer coreCount;
+    private volatile Integer ramMb;
+
     public OpenGammaServerSshDriver(EntityLocal entity, SshMachineLocation machine) {
         super(entity, machine);
     }
@@ -82,6 +113,11 @@ public class OpenGammaServerSshDriver extends JavaSoftwareProcessSshDriver imple
         return broker.toString();
     }
 
+    /** Return the {@link OpenGammaServer#JETTY_GRACEFUL_SHUTDOWN graceful shutdown} period in millis, for Jetty. */
+    public Long getGracefulShutdownMillis() {
+        return entity.getConfig(OpenGammaServer.JETTY_GRACEFUL_SHUTDOWN).toMilliseconds();
+    }
+
     /** Return the {@code host:port} location for the {@link OpenGammaServer#DATABASE database}. */
     public String getDatabaseLocation() {
         String address = attributeWhenReady(OpenGammaServer.DATABASE, PostgreSqlNode.ADDRESS);
@@ -109,12 +145,43 @@ public class OpenGammaServerSshDriver extends JavaSoftwareProcessSshDriver imple
     protected String BROOKLYN_CONFIG_SUBDIR() { return CONFIG_SUBDIR() + "/brooklyn"; }
 //    protected String TOOLCONTEXT_SUBDIR() { return CONFIG_SUBDIR() + "/toolcontext"; }
 
+    @Override
+    public void start() {
+        if (!restarting) lifecycleStartedMillis = System.currentTimeMillis();
+        runDirReused = true;
+        super.start();
+    }
+
+    @Override
+    public void restart() {
+        lifecycleStartedMillis = System.currentTimeMillis();
+        restarting = true;
+        StartupPhases.reset(entity);
+        super.restart();
+    }
+
     @Override
     public void install() {
+        StartupPhases.started(entity, StartupPhases.INSTALL);
+        try {
+            doInstall();
+        } finally {
+            StartupPhases.ended(entity, StartupPhases.INSTALL);
+        }
+    }
+
+    protected void doInstall() {
         DownloadResolver resolver = Entities.newDownloader(this);
         List<String> urls = resolver.getTargets();
         String saveAs = resolver.getFilename();
 
+        String installedMarker = Urls.mergePaths(getInstallDir(), INSTALLED_MARKER);
+        if (isMarkerCurrent(installedMarker, getInstallHash())) {
+            log.debug("{}: {} already installed in {}; skipping install", new Object[] {entity, saveAs, getInstallDir()});
+            return;
+        }
+        runDirReused = false;
+
         List<String> commands = ImmutableList.<String>builder()
                 .addAll(BashCommands.commandsToDownloadUrlsAs(urls, saveAs))
                 .add(BashCommands.INSTALL_TAR)
@@ -126,6 +193,7 @@ public class OpenGammaServerSshDriver extends JavaSoftwareProcessSshDriver imple
         newScript(INSTALLING)
                 .updateTaskAndFailOnNonZeroResultCode()
                 .body.append(commands).execute();
+        writeMarker(installedMarker, getInstallHash());
     }
     /*
 
@@ -152,81 +220,235 @@ should effectively nullify the [activeMQ] section in the ini file
 
     @Override
     public void customize() {
-        DownloadResolver resolver = Entities.newDownloader(this);
-        // Copy the install files to the run-dir
+        StartupPhases.started(entity, StartupPhases.CUSTOMIZE);
+        detectHardware();
+        ConfigFileBundle files = getConfigFiles();
+        String customizedMarker = Urls.mergePaths(getRunDir(), CUSTOMIZED_MARKER);
+        String customizeHash = getCustomizeHash(files);
+        if (runDirReused && isMarkerCurrent(customizedMarker, customizeHash)) {
+            // patching the masterdb jar and copying the install are not repeatable, so only do them when something changed
+            log.info("{}: configuration in {} unchanged; reusing run dir", entity, getRunDir());
+        } else {
+            runDirReused = false;
+            if (entity.getConfig(OpenGammaServer.BUNDLED_CUSTOMIZE)) {
+                customizeBundled(files);
+            } else {
+                customizeFileByFile(files);
+            }
+            writeMarker(customizedMarker, customizeHash);
+        }
+        StartupPhases.ended(entity, StartupPhases.CUSTOMIZE);
+
+        StartupPhases.started(entity, StartupPhases.DATABASE_INIT);
+        initialiseDatabase();
+        StartupPhases.ended(entity, StartupPhases.DATABASE_INIT);
+    }
+
+    /** Prepares the run dir, copies each config file and then patches the install, in separate SSH sessions. */
+    protected void customizeFileByFile(ConfigFileBundle files) {
         newScript(CUSTOMIZING)
             .updateTaskAndFailOnNonZeroResultCode()
-            .body.append("cp -r "+getInstallDir()+"/"+resolver.getUnpackedDirectoryName(getDownloadArchiveSubpath())+" "+OPENGAMMA_SUBDIR())
+            .body.append(getPrepareRunDirCommands())
+            .execute();
+
+        for (ConfigFileBundle.Entry file : files.getEntries()) {
+            getMachine().copyTo(MutableMap.of(SshTool.PROP_PERMISSIONS.getName(), file.isExecutable() ? "0755" : "0644"),
+                    new KnownSizeInputStream(new ByteArrayInputStream(file.getContents()), file.getContents().length),
+                    Urls.mergePaths(getRunDir(), file.getPath()));
+        }
+
+        newScript("patching postgres rsk")
+            .updateTaskAndFailOnNonZeroResultCode()
+            .body.append(getPostConfigCommands())
+            .execute();
+    }
+
+    /**
+     * Renders all config files in memory and sends them as a single tar archive embedded in one script,
+     * which prepares the run dir, unpacks them and patches the install, saving many round trips on high-latency links.
+     */
+    protected void customizeBundled(ConfigFileBundle files) {
+        String bundle = BaseEncoding.base64().withSeparator("\n", 76).encode(files.toTar());
+        String bundleFile = Urls.mergePaths(TEMP_SUBDIR(), "brooklyn-config.tar");
+        newScript(CUSTOMIZING)
+            .updateTaskAndFailOnNonZeroResultCode()
+            .body.append(getPrepareRunDirCommands())
+            .body.append(
+                "base64 -d > "+bundleFile+" <<'END_OF_BROOKLYN_CONFIG'\n"+bundle+"\nEND_OF_BROOKLYN_CONFIG",
+                "tar xf "+bundleFile,
+                "rm -f "+bundleFile)
+            .body.append(getPostConfigCommands())
+            .execute();
+    }
+
+    /** Commands (run in the run dir) to copy the install files to the run dir and create the dirs config files go in. */
+    protected List<String> getPrepareRunDirCommands() {
+        DownloadResolver resolver = Entities.newDownloader(this);
+        return ImmutableList.of(
+            // start afresh, as a previous customization may have been for different config
+            "rm -f "+CUSTOMIZED_MARKER,
+            "rm -rf "+OPENGAMMA_SUBDIR(),
+            // Copy the install files to the run-dir
+            "cp -r "+getInstallDir()+"/"+resolver.getUnpackedDirectoryName(getDownloadArchiveSubpath())+" "+OPENGAMMA_SUBDIR(),
             // create the dirs where we will put config files
-            .body.append("mkdir -p " + TEMP_SUBDIR())
-            .body.append("mkdir -p " + COMMON_SUBDIR())
-            .body.append("mkdir -p " + BROOKLYN_CONFIG_SUBDIR())
-            .body.append("mkdir -p " + LIB_OVERRIDE_SUBDIR())
+            "mkdir -p " + TEMP_SUBDIR(),
+            "mkdir -p " + COMMON_SUBDIR(),
+            "mkdir -p " + BROOKLYN_CONFIG_SUBDIR(),
+            "mkdir -p " + LIB_OVERRIDE_SUBDIR(),
             // scripts may try to access these before they are created
-            .body.append("mkdir -p " + LOGS_SUBDIR())
-            .body.append("mkdir -p " + DATA_SUBDIR())
+            "mkdir -p " + LOGS_SUBDIR(),
+            "mkdir -p " + DATA_SUBDIR(),
             // install the postgres jar (FIXME should be done as install step ideally)
-            .body.append(BashCommands.commandToDownloadUrlAs(
+            BashCommands.commandToDownloadUrlAs(
                 "http://jdbc.postgresql.org/download/postgresql-9.2-1003.jdbc4.jar",
-                LIB_OVERRIDE_SUBDIR()+"/postgresql-9.2-1003.jdbc4.jar"))
-            .execute();
+                LIB_OVERRIDE_SUBDIR()+"/postgresql-9.2-1003.jdbc4.jar"));
+    }
 
-        String[] fileNamesToCopyLiterally = {
-                "classpath:/io/cloudsoft/opengamma/config/brooklyn/brooklyn-infrastructure-spring.xml",
-                "classpath:/io/cloudsoft/opengamma/config/brooklyn/brooklyn.ini"
-        };
-        String[] filesToCopyTemplated = {
-                getPropertiesTemplateUrl()
-        };
-        for (String name : fileNamesToCopyLiterally) {
-            String contents = getResourceAsString(name);
-            String filename = name.substring(name.lastIndexOf('/') + 1);
-            getMachine().copyTo(KnownSizeInputStream.of(contents), Urls.mergePaths(getRunDir(), BROOKLYN_CONFIG_SUBDIR(), filename));
-        }
-        for (String name : filesToCopyTemplated) {
-            String contents = processTemplate(name);
-            String filename = name.substring(name.lastIndexOf('/') + 1);
-            getMachine().copyTo(KnownSizeInputStream.of(contents), Urls.mergePaths(getRunDir(), BROOKLYN_CONFIG_SUBDIR(), filename));
+    /** Return the config files to install, rendered in memory, with paths relative to the run dir. */
+    protected ConfigFileBundle getConfigFiles() {
+        ConfigFileBundle files = new ConfigFileBundle();
+        files.add(Urls.mergePaths(BROOKLYN_CONFIG_SUBDIR(), "brooklyn-infrastructure-spring.xml"),
+                getResourceAsString("classpath:/io/cloudsoft/opengamma/config/brooklyn/brooklyn-infrastructure-spring.xml"));
+        String propertiesTemplateUrl = getPropertiesTemplateUrl();
+        files.add(Urls.mergePaths(BROOKLYN_CONFIG_SUBDIR(), propertiesTemplateUrl.substring(propertiesTemplateUrl.lastIndexOf('/') + 1)),
+                processTemplate(propertiesTemplateUrl));
+        files.add(Urls.mergePaths(BROOKLYN_CONFIG_SUBDIR(), "brooklyn.ini"), getIniContents());
+        files.add(Urls.mergePaths(BROOKLYN_CONFIG_SUBDIR(), "brooklyn-viewprocessor-spring.xml"),
+                getResourceAsString("classpath:/io/cloudsoft/opengamma/config/brooklyn/brooklyn-viewprocessor-spring.xml"));
+        if (isCacheReplicated()) {
+            files.add(Urls.mergePaths(BROOKLYN_CONFIG_SUBDIR(), "brooklyn-ehcache.xml"),
+                    processTemplate("classpath:/io/cloudsoft/opengamma/config/brooklyn/brooklyn-ehcache.xml"));
         }
+        files.add(Urls.mergePaths(BROOKLYN_CONFIG_SUBDIR(), "toolcontext-example.properties"),
+                processTemplate("classpath:/io/cloudsoft/opengamma/config/brooklyn/toolcontext-example.properties"));
 
         // needed for 2.1.0 due as workaround for https://github.com/OpenGamma/OG-Platform/pull/6
         // (remove once that is fixed in OG)
-        copyResource("classpath:/io/cloudsoft/opengamma/config/patches/patch-postgres-rsk-v-51.jar",
-                getRunDir() + "/" + LIB_OVERRIDE_SUBDIR() + "/patch-postgres-rsk-v-51.jar");
+        if (isMasterDbPatchNeeded()) {
+            files.add(Urls.mergePaths(LIB_OVERRIDE_SUBDIR(), "patch-postgres-rsk-v-51.jar"),
+                    getResourceAsBytes("classpath:/io/cloudsoft/opengamma/config/patches/patch-postgres-rsk-v-51.jar"), false);
+        }
+
+        files.add(Urls.mergePaths(COMMON_SUBDIR(), "jetty-spring.xml"),
+                getResourceAsString("classpath:/io/cloudsoft/opengamma/config/jetty-spring.xml"));
+        files.add(Urls.mergePaths(SCRIPT_SUBDIR(), "og-brooklyn.sh"),
+                getResourceAsBytes("classpath:/io/cloudsoft/opengamma/scripts/og-brooklyn.sh"), true);
+        files.add(Urls.mergePaths(SCRIPT_SUBDIR(), "init-brooklyn-db.sh"),
+                getResourceAsBytes("classpath:/io/cloudsoft/opengamma/scripts/init-brooklyn-db.sh"), true);
+        return files;
+    }
+
+    protected byte[] getResourceAsBytes(String url) {
+        InputStream in = new ResourceUtils(entity).getResourceFromUrl(url);
+        try {
+            return ByteStreams.toByteArray(in);
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /** Commands (run in the run dir) to patch the install once the config files are in place. */
+    protected List<String> getPostConfigCommands() {
+        if (!isMasterDbPatchNeeded()) return ImmutableList.of("cd "+getRunDir());
         // patch does not work due to local classloading -- we need to rebuild the jar
-        newScript("patching postgres rsk")
-            .updateTaskAndFailOnNonZeroResultCode()
-            .body.append("cd "+getRunDir(),
+        return ImmutableList.of(
+                "cd "+getRunDir(),
                 "cd "+LIB_OVERRIDE_SUBDIR(),
                 "mkdir tmp", 
                 "cd tmp",
-                "unzip ../../og-masterdb-2.1.0.jar",
+                "unzip ../../og-masterdb-"+getVersion()+".jar",
                 "mv META-INF META-INF_masterdb",
                 "unzip -fo ../patch-postgres-rsk-v-51.jar",
                 "rm -rf META-INF",
                 "mv META-INF_masterdb META-INF",
-                "jar cvf ../og-masterdb-2.1.0.jar .",
+                "jar cvf ../og-masterdb-"+getVersion()+".jar .",
                 "cd ..",
                 "rm -rf tmp",
                 "rm -f patch-postgres-rsk-v-51.jar",
-                "mv og-masterdb-2.1.0.jar ..")
-            .failOnNonZeroResultCode()
-            .execute();
-        
-        copyResource("classpath:/io/cloudsoft/opengamma/config/jetty-spring.xml",
-                getRunDir() + "/" + COMMON_SUBDIR() + "/jetty-spring.xml");
-        copyResource(MutableMap.of(SshTool.PROP_PERMISSIONS.getName(), "0755"), 
-                "classpath:/io/cloudsoft/opengamma/scripts/og-brooklyn.sh",
-                getRunDir() + "/" + SCRIPT_SUBDIR() + "/og-brooklyn.sh");
+                "mv og-masterdb-"+getVersion()+".jar ..",
+                "cd "+getRunDir());
+    }
 
-        String toolcontextContents = processTemplate("classpath:/io/cloudsoft/opengamma/config/brooklyn/toolcontext-example.properties");
-        String toolcontextDestination = Urls.mergePaths(getRunDir(), BROOKLYN_CONFIG_SUBDIR(), "toolcontext-example.properties");
-        getMachine().copyTo(new StringReader(toolcontextContents), toolcontextDestination);
+    /** whether this version needs the patched og-masterdb jar (a workaround specific to 2.1.0) */
+    protected boolean isMasterDbPatchNeeded() {
+        return MASTERDB_PATCH_VERSION.equals(getVersion());
+    }
 
-        String scriptContents = getResourceAsString("classpath:/io/cloudsoft/opengamma/scripts/init-brooklyn-db.sh");
-        String scriptDestination = Urls.mergePaths(getRunDir(), SCRIPT_SUBDIR(), "init-brooklyn-db.sh");
-        getMachine().copyTo(MutableMap.of(SshTool.PROP_PERMISSIONS.getName(), "0755"), new StringReader(scriptContents), scriptDestination);
+    protected String getInstallHash() {
+        DownloadResolver resolver = Entities.newDownloader(this);
+        return Hashing.sha1().hashBytes((Joiner.on('\n').join(resolver.getTargets())+"\n"+resolver.getFilename()).getBytes(Charsets.UTF_8)).toString();
+    }
+
+    /** Hash of everything customize does to the run dir, so it can be skipped on restart if none of it has changed. */
+    protected String getCustomizeHash(ConfigFileBundle files) {
+        String steps = Joiner.on('\n').join(Iterables.concat(getPrepareRunDirCommands(), getPostConfigCommands()));
+        return Hashing.sha1().hashBytes((getInstallHash()+"\n"+files.getContentHash()+"\n"+steps).getBytes(Charsets.UTF_8)).toString();
+    }
+
+    protected boolean isMarkerCurrent(String marker, String hash) {
+        return getMachine().execCommands("checking "+marker, ImmutableList.of("test \"`cat "+marker+" 2>/dev/null`\" = "+hash)) == 0;
+    }
+
+    protected void writeMarker(String marker, String hash) {
+        int result = getMachine().execCommands("writing "+marker, ImmutableList.of("echo "+hash+" > "+marker));
+        if (result != 0) log.warn("{}: unable to write {} (exit code {}); will not be able to skip this phase on restart", new Object[] {entity, marker, result});
+    }
 
+    /**
+     * Detects the machine's cores and RAM, and publishes the calc node and view processor sizing
+     * which the properties template will use.
+     */
+    protected void detectHardware() {
+        Integer cores = execForInteger("nproc 2>/dev/null || grep -c ^processor /proc/cpuinfo");
+        if (cores == null || cores <= 0) {
+            cores = 1;
+            log.warn("{}: unable to detect cores on {}; sizing as for one core", entity, getMachine());
+        }
+        coreCount = cores;
+        ramMb = execForInteger("awk '/^MemTotal:/ { printf \"%d\\n\", $2 / 1024 }' /proc/meminfo");
+        entity.setAttribute(OpenGammaServer.DETECTED_CORES, cores);
+        entity.setAttribute(OpenGammaServer.DETECTED_RAM, ramMb);
+        entity.setAttribute(OpenGammaServer.CONFIGURED_CALC_NODES, getCalcNodeCount());
+        entity.setAttribute(OpenGammaServer.CONFIGURED_VIEW_PROCESSOR_THREADS, getViewProcessorThreads());
+        log.info("{}: {} cores detected; configuring {} calc nodes and {} view processor threads",
+                new Object[] {entity, cores, getCalcNodeCount(), getViewProcessorThreads()});
+    }
+
+    /** the integer printed by the command, or null if it fails */
+    private Integer execForInteger(String command) {
+        ProcessTaskWrapper<Integer> task = Entities.submit(getEntity(), SshTasks.newSshExecTaskFactory(getMachine(), command));
+        if (task.get() != 0) return null;
+        try {
+            return Integer.parseInt(task.getStdout().trim());
+        } catch (NumberFormatException e) {
+            log.debug("{}: unable to parse output of {}: {}", new Object[] {entity, command, task.getStdout()});
+            return null;
+        }
+    }
+
+    /** Return the cores detected on the machine (one if not yet detected). */
+    public Integer getCoreCount() {
+        return coreCount != null ? coreCount : 1;
+    }
+
+    /** Return the number of local calc nodes, for the properties file; {@link OpenGammaServer#CALC_NODES} or sized to the cores. */
+    public Integer getCalcNodeCount() {
+        Integer explicit = entity.getConfig(OpenGammaServer.CALC_NODES);
+        if (explicit != null) return explicit;
+        return Math.max(1, (int) Math.round(getCoreCount() * entity.getConfig(OpenGammaServer.CALC_NODES_PER_CORE)));
+    }
+
+    /** Return the view processor thread count, for the properties file; {@link OpenGammaServer#VIEW_PROCESSOR_THREADS} or half the cores. */
+    public Integer getViewProcessorThreads() {
+        Integer explicit = entity.getConfig(OpenGammaServer.VIEW_PROCESSOR_THREADS);
+        if (explicit != null) return explicit;
+        return Math.max(2, getCoreCount() / 2);
+    }
+
+    /** Initialises the database from the first server to get there, using the database machine as a mutex. */
+    protected void initialiseDatabase() {
         // wait for DB up, of course
         attributeWhenReady(OpenGammaServer.DATABASE, PostgreSqlNode.SERVICE_UP);
 
@@ -238,11 +460,11 @@ should effectively nullify the [activeMQ] section in the ini file
                 machine.acquireMutex(database.getId(), "initialising database "+database);
                 if (database.getAttribute(DB_INITIALISED) != Boolean.TRUE) {
                     isInitial = true;
-                    log.info("{}: Initialising database on {}", entity, database);
-                    newScript("initialising OG db")
-                            .updateTaskAndFailOnNonZeroResultCode()
-                            .body.append("cd "+getRunDir(), "cd opengamma", "unset JAVA_HOME", "scripts/init-brooklyn-db.sh")
-                            .execute();
+                    if (entity.getConfig(OpenGammaServer.DATABASE_SNAPSHOT)) {
+                        initialiseDatabaseFromSnapshot(database, machine);
+                    } else {
+                        createDatabase(database);
+                    }
                     ((EntityLocal)database).setAttribute(DB_INITIALISED, true);
                 } else {
                     log.info("{}: Database on {} already initialised", entity, database);
@@ -255,8 +477,100 @@ should effectively nullify the [activeMQ] section in the ini file
         }
     }
 
+    /** Creates and populates the database by running ExampleDatabaseCreator from this server. */
+    protected void createDatabase(Entity database) {
+        log.info("{}: Initialising database on {}", entity, database);
+        newScript("initialising OG db")
+                .updateTaskAndFailOnNonZeroResultCode()
+                .body.append("cd "+getRunDir(), "cd opengamma", "unset JAVA_HOME", "scripts/init-brooklyn-db.sh")
+                .execute();
+    }
+
+    /**
+     * Restores the database from the snapshot for this OpenGamma install, kept on the management node;
+     * or, if there is none yet, creates it as usual and then takes the snapshot for later deployments.
+     */
+    protected void initialiseDatabaseFromSnapshot(Entity database, SshMachineLocation databaseMachine) {
+        File snapshot = getDatabaseSnapshotFile();
+        String remoteSnapshot = Urls.mergePaths("/tmp", snapshot.getName());
+        if (snapshot.exists()) {
+            log.info("{}: Restoring database on {} from snapshot {}", new Object[] {entity, database, snapshot});
+            int result = databaseMachine.copyTo(snapshot, remoteSnapshot);
+            if (result == 0) result = databaseMachine.execScript("restoring OG db snapshot", getDatabaseRestoreCommands(remoteSnapshot));
+            if (result != 0) {
+                throw new IllegalStateException("Failed to restore database snapshot "+snapshot+" on "+database+" (exit code "+result+"); " +
+                        "delete the snapshot to recreate the database from scratch");
+            }
+            entity.setAttribute(OpenGammaServer.DATABASE_RESTORED_FROM_SNAPSHOT, true);
+        } else {
+            createDatabase(database);
+            entity.setAttribute(OpenGammaServer.DATABASE_RESTORED_FROM_SNAPSHOT, false);
+            saveDatabaseSnapshot(database, databaseMachine, snapshot, remoteSnapshot);
+        }
+    }
+
+    /** Dumps the newly created database and copies it to the management node; a failure only costs later deployments the speed-up. */
+    protected void saveDatabaseSnapshot(Entity database, SshMachineLocation databaseMachine, File snapshot, String remoteSnapshot) {
+        log.info("{}: Saving snapshot of database on {} to {}", new Object[] {entity, database, snapshot});
+        int result = databaseMachine.execScript("dumping OG db snapshot", getDatabaseDumpCommands(remoteSnapshot));
+        if (result != 0) {
+            log.warn("{}: unable to dump database on {} (exit code {}); no snapshot saved", new Object[] {entity, database, result});
+            return;
+        }
+        // copied under a temporary name then renamed, so a partial copy is never restored
+        File partial = new File(snapshot.getParentFile(), snapshot.getName()+".part");
+        snapshot.getParentFile().mkdirs();
+        result = databaseMachine.copyFrom(remoteSnapshot, partial.getAbsolutePath());
+        databaseMachine.execCommands("removing OG db snapshot", ImmutableList.of("rm -f "+remoteSnapshot));
+        if (result != 0 || !partial.renameTo(snapshot)) {
+            log.warn("{}: unable to copy database snapshot from {} to {} (exit code {}); no snapshot saved", new Object[] {entity, database, snapshot, result});
+            partial.delete();
+        }
+    }
+
+    /** Return the snapshot on the management node for this OpenGamma version and download. */
+    protected File getDatabaseSnapshotFile() {
+        String dir = entity.getConfig(OpenGammaServer.DATABASE_SNAPSHOT_DIR);
+        if (dir.startsWith("~/")) dir = System.getProperty("user.home")+dir.substring(1);
+        return new File(dir, "opengamma-"+getVersion()+"-"+getInstallHash().substring(0, 12)+".pgdump");
+    }
+
+    /**
+     * Commands (run on the database machine) to dump the database in pg_dump's custom format, which pg_restore can load in parallel.
+     * Only the public schema is dumped, so extensions owned by the superuser are not restored as the opengamma user.
+     */
+    protected List<String> getDatabaseDumpCommands(String remoteSnapshot) {
+        return ImmutableList.<String>builder()
+                .addAll(DatabaseCommands.setup())
+                .add("\"$PG_BIN/pg_dump\" "+getDatabaseConnectionArgs()+" --format=custom --schema=public --no-owner --no-privileges " +
+                        "--file="+remoteSnapshot+".part "+DatabaseCommands.DATABASE_NAME)
+                .add("mv "+remoteSnapshot+".part "+remoteSnapshot)
+                .build();
+    }
+
+    /**
+     * Commands (run on the database machine) to restore the snapshot with {@link OpenGammaServer#DATABASE_RESTORE_JOBS} parallel jobs.
+     * pg_restore exits non-zero for harmless errors too (such as the public schema already existing),
+     * so success is judged by the tables being there afterwards.
+     */
+    protected List<String> getDatabaseRestoreCommands(String remoteSnapshot) {
+        return ImmutableList.<String>builder()
+                .addAll(DatabaseCommands.setup())
+                .add("\"$PG_BIN/pg_restore\" "+getDatabaseConnectionArgs()+" --dbname="+DatabaseCommands.DATABASE_NAME+" --no-owner --no-privileges " +
+                        "--jobs="+entity.getConfig(OpenGammaServer.DATABASE_RESTORE_JOBS)+" "+remoteSnapshot+" || echo \"pg_restore reported errors; checking tables\"")
+                .add("rm -f "+remoteSnapshot)
+                .add("test \"$("+DatabaseCommands.psql(HostAndPort.fromString(getDatabaseLocation()))+" -tAc " +
+                        "\"select count(*) from information_schema.tables where table_schema = 'public'\")\" -gt 0")
+                .build();
+    }
+
+    private String getDatabaseConnectionArgs() {
+        return DatabaseCommands.connectionArgs(HostAndPort.fromString(getDatabaseLocation()));
+    }
+
     @Override
     public void launch() {
+        StartupPhases.started(entity, StartupPhases.DEPENDENCY_WAIT);
         // and wait for broker up also
         attributeWhenReady(OpenGammaServer.BROKER, ActiveMQBroker.SERVICE_UP);
 
@@ -274,7 +588,11 @@ should effectively nullify the [activeMQ] section in the ini file
                 log.debug("OG server "+getEntity()+" continuing, as database is now completely initialised");
             }
         }
-        
+        StartupPhases.ended(entity, StartupPhases.DEPENDENCY_WAIT);
+
+        StartupPhases.started(entity, StartupPhases.LAUNCH);
+        entity.setAttribute(OpenGammaServer.STARTUP_ACCELERATED, entity.getConfig(OpenGammaServer.STARTUP_ACCELERATION));
+        entity.setAttribute(OpenGammaServer.RUNNING_VERSION, getVersion());
         newScript(LAUNCHING)
                 .updateTaskAndFailOnNonZeroResultCode()
                 .body.append(
@@ -291,6 +609,17 @@ should effectively nullify the [activeMQ] section in the ini file
             Time.sleep(Duration.TEN_SECONDS);
             ((EntityInternal)database).setAttribute(OpenGammaServer.DATABASE_INITIALIZED, true);
         }
+        StartupPhases.ended(entity, StartupPhases.LAUNCH);
+
+        if (lifecycleStartedMillis > 0) {
+            long duration = System.currentTimeMillis() - lifecycleStartedMillis;
+            entity.setAttribute(restarting ? OpenGammaServer.RESTART_DURATION : OpenGammaServer.START_DURATION, duration);
+            entity.setAttribute(OpenGammaServer.RUN_DIR_REUSED, runDirReused);
+            log.info("{}: {} took {} ({})", new Object[] {entity, restarting ? "restart" : "start", Time.makeTimeStringRounded(duration),
+                    runDirReused ? "reusing run dir" : "installed and customized"});
+            lifecycleStartedMillis = 0;
+            restarting = false;
+        }
     }
 
 
@@ -319,6 +648,71 @@ should effectively nullify the [activeMQ] section in the ini file
         return "opengamma/data/og-brooklyn.pid";
     }
 
+    /** Return the contents for {@code brooklyn.ini}, the last file in the OpenGamma configuration chain. */
+    protected String getIniContents() {
+        String ini = getResourceAsString("classpath:/io/cloudsoft/opengamma/config/brooklyn/brooklyn.ini");
+        if (entity.getConfig(OpenGammaServer.MARKET_DATA_SERVER) != null) {
+            // subscribe to the market-data server's ticks instead of simulating them on this box
+            ini = replaceIniSection(ini, "exampleLiveDataServer", processTemplate(entity.getConfig(OpenGammaServer.MARKET_DATA_CLIENT_INI_URL)));
+        }
+        return ini;
+    }
+
+    /** Replaces the given section of an OpenGamma ini file, up to the next section header. */
+    protected static String replaceIniSection(String ini, String section, String replacement) {
+        Matcher matcher = Pattern.compile("(?ms)^\\["+Pattern.quote(section)+"\\]$.*?(?=^\\[|\\z)").matcher(ini);
+        if (!matcher.find()) throw new IllegalStateException("No ["+section+"] section in OpenGamma ini");
+        return ini.substring(0, matcher.start()) + replacement + "\n" + ini.substring(matcher.end());
+    }
+
+    protected boolean isCacheReplicated() {
+        return "replicated".equalsIgnoreCase(entity.getConfig(OpenGammaServer.CACHE_MODE));
+    }
+
+    /** Return the ehcache configuration, for the properties file; OpenGamma's default unless caches are replicated. */
+    public String getEhcacheConfigFile() {
+        return isCacheReplicated() ? "classpath:brooklyn/brooklyn-ehcache.xml" : "classpath:default-ehcache.xml";
+    }
+
+    public String getCacheMulticastAddress() {
+        return getCacheMulticastGroup().getHostText();
+    }
+
+    public Integer getCacheMulticastPort() {
+        return getCacheMulticastGroup().getPortOrDefault(CACHE_MULTICAST_PORT);
+    }
+
+    /**
+     * Return the configured multicast group, or else one in the organisation-local scope derived from the id of
+     * the server's cluster (or of the server, if not in one), so each cluster's servers discover only each other.
+     */
+    protected HostAndPort getCacheMulticastGroup() {
+        String configured = entity.getConfig(OpenGammaServer.CACHE_MULTICAST_GROUP);
+        if (Strings.isNonBlank(configured)) return HostAndPort.fromString(configured);
+        Entity cluster = entity.getParent() != null ? entity.getParent() : entity;
+        int hash = cluster.getId().hashCode();
+        return HostAndPort.fromParts("239.255."+((hash >>> 8) & 0xff)+"."+(hash & 0xff), CACHE_MULTICAST_PORT);
+    }
+
+    public Integer getCacheMaxElements() {
+        return entity.getConfig(OpenGammaServer.CACHE_MAX_ELEMENTS);
+    }
+
+    /** Return the address cache peers use to reach this server. */
+    public String getCacheReplicationHostname() {
+        return getMachine().getAddress().getHostAddress();
+    }
+
+    /** Return the simulated live data file, for the properties file. */
+    public String getLiveDataFile() {
+        return "classpath:"+SIMULATED_DATA_RESOURCE;
+    }
+
+    /** Return the base URI of the {@link OpenGammaServer#MARKET_DATA_SERVER market-data server}'s REST components. */
+    public String getMarketDataServerUri() {
+        return Urls.mergePaths(attributeWhenReady(OpenGammaServer.MARKET_DATA_SERVER, OpenGammaServer.ROOT_URL), "jax");
+    }
+
     protected String getPropertiesTemplateUrl() {
         return entity.getConfig(OpenGammaServer.PROPERTIES_TEMPLATE_URL);
     }
@@ -331,11 +725,23 @@ should effectively nullify the [activeMQ] section in the ini file
         String jopts = env.remove("JAVA_OPTS");
         if (jopts != null) env.put("EXTRA_JVM_OPTS", jopts);
 
+        // heap sized to the machine, so larger instances (see OpenGammaServer#replaceWithProfile) help memory-bound views
+        Double heapFraction = entity.getConfig(OpenGammaServer.HEAP_FRACTION);
+        if (heapFraction != null && ramMb != null) {
+            env.put("BROOKLYN_MEM_OPTS", "-Xms512m -Xmx"+Math.max(1024, (int) (ramMb * heapFraction))+"m -XX:MaxPermSize=256m");
+        }
+        if (entity.getConfig(OpenGammaServer.STARTUP_ACCELERATION)) {
+            env.put("BROOKLYN_STARTUP_ACCELERATION", "true");
+        }
+        // the start script's PROJECTJAR is named for the version
+        env.put("OPENGAMMA_VERSION", getVersion());
+
         return env;
     }
     
     @Override
     public boolean installJava() {
+        StartupPhases.started(entity, StartupPhases.INSTALL_JAVA);
         try {
             getLocation().acquireMutex("install:" + getLocation().getDisplayName(), "installing Java at " + getLocation());
             log.debug("checking for java at " + entity + " @ " + getLocation());
@@ -412,6 +818,7 @@ should effectively nullify the [activeMQ] section in the ini file
             throw Throwables.propagate(e);
         } finally {
             getLocation().releaseMutex("install:" + getLocation().getDisplayName());
+            StartupPhases.ended(entity, StartupPhases.INSTALL_JAVA);
         }
 
         // //this works on ubuntu (surprising that jdk not in default repos!)
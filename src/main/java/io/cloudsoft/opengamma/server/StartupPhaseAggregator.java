@@ -0,0 +1,80 @@
+package io.cloudsoft.opengamma.server;
+
+import io.cloudsoft.opengamma.load.LatencySamples;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import brooklyn.enricher.basic.AbstractEnricher;
+import brooklyn.entity.Entity;
+import brooklyn.entity.Group;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.entity.group.DynamicCluster;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
+import brooklyn.event.basic.BasicAttributeSensor;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import com.google.common.reflect.TypeToken;
+
+/**
+ * Publishes on a cluster the median, 95th percentile and maximum duration of each startup phase
+ * across its members' latest starts (see {@link StartupPhases}), so the slow phase of a scale-out,
+ * and regressions in boot time, can be seen without inspecting each server.
+ */
+public class StartupPhaseAggregator extends AbstractEnricher {
+
+    public static final AttributeSensor<Map<String,Long>> STARTUP_PHASE_P50 = new BasicAttributeSensor<Map<String,Long>>(new TypeToken<Map<String,Long>>() { },
+            "opengamma.server.startup.phases.durationMillis.p50", "Median across members of the time taken by each startup phase, in millis");
+
+    public static final AttributeSensor<Map<String,Long>> STARTUP_PHASE_P95 = new BasicAttributeSensor<Map<String,Long>>(new TypeToken<Map<String,Long>>() { },
+            "opengamma.server.startup.phases.durationMillis.p95", "95th percentile across members of the time taken by each startup phase, in millis");
+
+    public static final AttributeSensor<Map<String,Long>> STARTUP_PHASE_MAX = new BasicAttributeSensor<Map<String,Long>>(new TypeToken<Map<String,Long>>() { },
+            "opengamma.server.startup.phases.durationMillis.max", "Longest time taken by each startup phase on any member, in millis");
+
+    @Override
+    public void setEntity(EntityLocal entity) {
+        if (!(entity instanceof Group)) throw new IllegalArgumentException("Cannot attach "+this+" to non-group "+entity);
+        super.setEntity(entity);
+        subscribeToMembers((Group) entity, OpenGammaServer.STARTUP_PHASE_DURATIONS, new SensorEventListener<Map<String,Long>>() {
+            @Override
+            public void onEvent(SensorEvent<Map<String,Long>> event) {
+                aggregate();
+            }
+        });
+        subscribe(entity, DynamicCluster.MEMBER_REMOVED, new SensorEventListener<Entity>() {
+            @Override
+            public void onEvent(SensorEvent<Entity> event) {
+                aggregate();
+            }
+        });
+    }
+
+    protected synchronized void aggregate() {
+        Map<String,List<Long>> durations = Maps.newLinkedHashMap();
+        for (Entity member : ((Group) entity).getMembers()) {
+            Map<String,Long> phases = member.getAttribute(OpenGammaServer.STARTUP_PHASE_DURATIONS);
+            if (phases == null) continue;
+            for (Map.Entry<String,Long> phase : phases.entrySet()) {
+                if (!durations.containsKey(phase.getKey())) durations.put(phase.getKey(), Lists.<Long>newArrayList());
+                durations.get(phase.getKey()).add(phase.getValue());
+            }
+        }
+        Map<String,Long> p50 = Maps.newLinkedHashMap(), p95 = Maps.newLinkedHashMap(), max = Maps.newLinkedHashMap();
+        for (Map.Entry<String,List<Long>> phase : durations.entrySet()) {
+            long[] sorted = Longs.toArray(phase.getValue());
+            Arrays.sort(sorted);
+            p50.put(phase.getKey(), LatencySamples.percentile(sorted, 50).longValue());
+            p95.put(phase.getKey(), LatencySamples.percentile(sorted, 95).longValue());
+            max.put(phase.getKey(), sorted[sorted.length - 1]);
+        }
+        entity.setAttribute(STARTUP_PHASE_P50, p50);
+        entity.setAttribute(STARTUP_PHASE_P95, p95);
+        entity.setAttribute(STARTUP_PHASE_MAX, max);
+    }
+}
@@ -0,0 +1,85 @@
+package io.cloudsoft.opengamma.server;
+
+import java.util.Map;
+
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.event.AttributeSensor;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Records when each phase of starting an {@link OpenGammaServer} began and ended, and how long it took,
+ * in {@link OpenGammaServer#STARTUP_PHASE_STARTED}, {@link OpenGammaServer#STARTUP_PHASE_ENDED}
+ * and {@link OpenGammaServer#STARTUP_PHASE_DURATIONS} (keyed by the phase names here).
+ * Timings are of the latest start or restart; phases skipped in that one (e.g. provisioning on restart) are absent.
+ */
+public class StartupPhases {
+
+    /** obtaining the machine, including any location-specific setup such as Interoute NIC reconfiguration */
+    public static final String PROVISIONING = "provisioning";
+    public static final String INSTALL_JAVA = "installJava";
+    public static final String INSTALL = "install";
+    /** preparing the run dir and config, including re-jarring masterdb, but not database initialisation */
+    public static final String CUSTOMIZE = "customize";
+    /** waiting for the database, then initialising it if this is the first server */
+    public static final String DATABASE_INIT = "databaseInit";
+    /** waiting for the broker, and for another server to finish initialising the database */
+    public static final String DEPENDENCY_WAIT = "dependencyWait";
+    /** running the start script (and its settling sleep), and the first server's hold before releasing the others */
+    public static final String LAUNCH = "launch";
+    /** from the start script returning to the server first being reported up */
+    public static final String SERVICE_UP = "serviceUp";
+
+    private StartupPhases() {}
+
+    /** clears the timings of a previous start */
+    public static void reset(EntityLocal entity) {
+        synchronized (entity) {
+            entity.setAttribute(OpenGammaServer.STARTUP_PHASE_STARTED, Maps.<String,Long>newLinkedHashMap());
+            entity.setAttribute(OpenGammaServer.STARTUP_PHASE_ENDED, Maps.<String,Long>newLinkedHashMap());
+            entity.setAttribute(OpenGammaServer.STARTUP_PHASE_DURATIONS, Maps.<String,Long>newLinkedHashMap());
+        }
+    }
+
+    public static void started(EntityLocal entity, String phase) {
+        synchronized (entity) {
+            put(entity, OpenGammaServer.STARTUP_PHASE_STARTED, phase, System.currentTimeMillis());
+        }
+    }
+
+    /** records the end of the phase, and its duration if its start was recorded */
+    public static void ended(EntityLocal entity, String phase) {
+        long now = System.currentTimeMillis();
+        synchronized (entity) {
+            put(entity, OpenGammaServer.STARTUP_PHASE_ENDED, phase, now);
+            Map<String,Long> started = entity.getAttribute(OpenGammaServer.STARTUP_PHASE_STARTED);
+            Long start = started == null ? null : started.get(phase);
+            if (start != null) put(entity, OpenGammaServer.STARTUP_PHASE_DURATIONS, phase, now - start);
+        }
+    }
+
+    /** records the end of a phase which began when the given previous phase ended; nothing if that was not recorded */
+    public static void endedAfter(EntityLocal entity, String phase, String previousPhase) {
+        synchronized (entity) {
+            Long start = getEnded(entity, previousPhase);
+            if (start == null) return;
+            put(entity, OpenGammaServer.STARTUP_PHASE_STARTED, phase, start);
+            ended(entity, phase);
+        }
+    }
+
+    /** when the phase ended in the latest start, or null */
+    public static Long getEnded(EntityLocal entity, String phase) {
+        Map<String,Long> ended = entity.getAttribute(OpenGammaServer.STARTUP_PHASE_ENDED);
+        return ended == null ? null : ended.get(phase);
+    }
+
+    private static void put(EntityLocal entity, AttributeSensor<Map<String,Long>> sensor, String phase, long value) {
+        // copied, so sensor events carry a snapshot
+        Map<String,Long> values = Maps.newLinkedHashMap();
+        Map<String,Long> current = entity.getAttribute(sensor);
+        if (current != null) values.putAll(current);
+        values.put(phase, value);
+        entity.setAttribute(sensor, values);
+    }
+}
@@ -0,0 +1,28 @@
+#!/bin/sh
+set -e
+
+# Writes a simulated market data file with exactly SIZE tickers, taking the rows of the
+# example file (scheme,ticker,field,value) and, if more are needed, repeating them with
+# suffixed tickers (so each copy ticks independently).
+#
+# usage: generate-market-data.sh SOURCE.csv DEST.csv SIZE
+
+SOURCE=$1
+DEST=$2
+SIZE=$3
+
+awk -F, -v OFS=, -v size=${SIZE} '
+{ rows[NR] = $0; if (!($2 in ticker)) ticker[$2] = ++tickers; rowTicker[NR] = ticker[$2] }
+END {
+  for (copy = 0; copy * tickers < size; copy++) {
+    for (i = 1; i <= NR; i++) {
+      if (copy * tickers + rowTicker[i] > size) continue
+      $0 = rows[i]
+      # keep any closing quote after the suffix
+      if (copy > 0) sub(/"?$/, "_" copy "&", $2)
+      print
+    }
+  }
+}' ${SOURCE} > ${DEST}
+
+echo "Generated $(cut -d, -f2 ${DEST} | sort -u | wc -l) tickers in ${DEST}"
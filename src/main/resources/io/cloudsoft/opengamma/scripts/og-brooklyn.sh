@@ -36,8 +36,8 @@ DATABASE=brooklyn
 # the installer combines multiple projects in the same dir
 # so project-utils.sh gets overwritten
 PROJECT=examples-simulated
-# FIXME hardcoded version
-PROJECTJAR=${PROJECT}-2.1.0.jar
+# version set by brooklyn (OPENGAMMA_VERSION), so servers can be upgraded in place
+PROJECTJAR=${PROJECT}-${OPENGAMMA_VERSION:-2.1.0}.jar
 
 . ${SCRIPTDIR}/java-utils.sh
 . ${SCRIPTDIR}/componentserver-init-utils.sh
@@ -58,24 +58,74 @@ load_default_config
 # Component specific default configs
 CONFIG=classpath:brooklyn/brooklyn.properties
 LOGBACK_CONFIG=jetty-logback.xml
-# No need to use 4g in the examples
-MEM_OPTS="-Xms512m -Xmx1024m -XX:MaxPermSize=256m"
+# No need to use 4g in the examples, unless brooklyn has sized the heap to the machine
+MEM_OPTS=${BROOKLYN_MEM_OPTS:-"-Xms512m -Xmx1024m -XX:MaxPermSize=256m"}
 
 # User customizations
 load_component_config ${PROJECT} ${COMPONENT}
 
-CLASSPATH=$(build_classpath)
-if [ -f ${PROJECTJAR} ] ; then
-  CLASSPATH=${PROJECTJAR}:${CLASSPATH}
-elif [ -f lib/${PROJECTJAR} ] ; then
-  CLASSPATH=lib/${PROJECTJAR}:${CLASSPATH}
-elif [ -f build/${PROJECTJAR} ] ; then
-  CLASSPATH=build/${PROJECTJAR}:${CLASSPATH}
+# Optional startup acceleration (BROOKLYN_STARTUP_ACCELERATION=true, set by brooklyn): the classpath is
+# computed once and kept, and on JVMs with application class-data sharing (10+) the classes loaded by the
+# first launch are archived when next started, and mapped from the archive by every later launch.
+# The cache is rebuilt whenever lib or config change.
+CACHEDIR=${BASEDIR}/data/startup-cache
+if [ "${BROOKLYN_STARTUP_ACCELERATION}" = "true" ] ; then
+  mkdir -p ${CACHEDIR}
+  CACHEKEY=$(ls -lR lib config ${PROJECTJAR} 2>/dev/null | md5sum | cut -d' ' -f1)
+  if [ "$(cat ${CACHEDIR}/key 2>/dev/null)" != "${CACHEKEY}" ] ; then
+    rm -f ${CACHEDIR}/*
+    echo ${CACHEKEY} > ${CACHEDIR}/key
+  fi
+fi
+
+if [ "${BROOKLYN_STARTUP_ACCELERATION}" = "true" -a -s ${CACHEDIR}/classpath ] ; then
+  CLASSPATH=$(cat ${CACHEDIR}/classpath)
 else
-  echo Could not find PROJECTJAR ${PROJECTJAR}. Exiting.
-  exit 1
+  CLASSPATH=$(build_classpath)
+  if [ -f ${PROJECTJAR} ] ; then
+    CLASSPATH=${PROJECTJAR}:${CLASSPATH}
+  elif [ -f lib/${PROJECTJAR} ] ; then
+    CLASSPATH=lib/${PROJECTJAR}:${CLASSPATH}
+  elif [ -f build/${PROJECTJAR} ] ; then
+    CLASSPATH=build/${PROJECTJAR}:${CLASSPATH}
+  else
+    echo Could not find PROJECTJAR ${PROJECTJAR}. Exiting.
+    exit 1
+  fi
+  CLASSPATH=config:${CLASSPATH}
+  [ "${BROOKLYN_STARTUP_ACCELERATION}" = "true" ] && echo "${CLASSPATH}" > ${CACHEDIR}/classpath
+fi
+
+accelerate_startup() {
+  JAVA_MAJOR=$(java -version 2>&1 | head -1 | sed -e 's/.*version "1\.\([0-9]*\).*/\1/' -e 's/.*version "\([0-9]*\).*/\1/')
+  if [ "${JAVA_MAJOR}" -ge 10 ] 2>/dev/null && which jar >/dev/null 2>&1 ; then
+    # archived classpaths may not contain non-empty directories, so config is served from a jar of it
+    if [ ! -f ${CACHEDIR}/config.jar ] ; then
+      jar cf ${CACHEDIR}/config.jar -C config . || return
+    fi
+    CLASSPATH=${CACHEDIR}/config.jar:${CLASSPATH#config:}
+    if [ ! -f ${CACHEDIR}/classes.jsa -a -s ${CACHEDIR}/classes.lst ] ; then
+      java -Xshare:dump -XX:SharedClassListFile=${CACHEDIR}/classes.lst -XX:SharedArchiveFile=${CACHEDIR}/classes.jsa \
+        -cp "${CLASSPATH}" > ${CACHEDIR}/dump.log 2>&1 || rm -f ${CACHEDIR}/classes.jsa
+    fi
+    if [ -f ${CACHEDIR}/classes.jsa ] ; then
+      EXTRA_JVM_OPTS="${EXTRA_JVM_OPTS} -Xshare:auto -XX:SharedArchiveFile=${CACHEDIR}/classes.jsa"
+    else
+      EXTRA_JVM_OPTS="${EXTRA_JVM_OPTS} -XX:DumpLoadedClassList=${CACHEDIR}/classes.lst"
+    fi
+  else
+    # older JVMs can only share the JDK's own classes
+    EXTRA_JVM_OPTS="${EXTRA_JVM_OPTS} -Xshare:auto"
+  fi
+}
+
+if [ "${BROOKLYN_STARTUP_ACCELERATION}" = "true" ] ; then
+  case "$1" in
+    start|restart|reload|debug)
+      accelerate_startup
+      ;;
+  esac
 fi
-CLASSPATH=config:${CLASSPATH}
 
 RETVAL=0
 case "$1" in
@@ -0,0 +1,133 @@
+package io.cloudsoft.opengamma.history;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.io.Files;
+
+public class TimeSeriesSegmentTest {
+
+    private File dir;
+    private File file;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        file = new File(dir, "segment");
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (dir == null) return;
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testRoundTripsValues() throws Exception {
+        TimeSeriesSegment segment = TimeSeriesSegment.create(file, 4096, 3, 1000);
+        double[][] values = {
+                {0, 1.5, -2},
+                {0, 1.5, -2},
+                {42, Double.NaN, Double.MAX_VALUE},
+                {-0.0, Double.NEGATIVE_INFINITY, 1e-300},
+        };
+        long[] times = {1000, 1001, 5000, 5000L + Integer.MAX_VALUE};
+        for (int i=0; i<values.length; i++) {
+            assertTrue(segment.append(times[i], values[i]));
+        }
+
+        List<TimeSeriesSegment.Record> records = segment.read(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(records.size(), values.length);
+        for (int i=0; i<values.length; i++) {
+            assertEquals(records.get(i).getTime(), times[i]);
+            assertTrue(Arrays.equals(records.get(i).getValues(), values[i]), "record "+i+": "+Arrays.toString(records.get(i).getValues()));
+        }
+        assertEquals(segment.getLastTime(), times[times.length-1]);
+    }
+
+    @Test
+    public void testReadsTimeRangeInclusive() throws Exception {
+        TimeSeriesSegment segment = TimeSeriesSegment.create(file, 4096, 1, 0);
+        for (int i=0; i<10; i++) {
+            segment.append(i*10, i);
+        }
+        List<TimeSeriesSegment.Record> records = segment.read(20, 50);
+        assertEquals(records.size(), 4);
+        assertEquals(records.get(0).getTime(), 20);
+        assertEquals(records.get(3).getValues()[0], 5d);
+    }
+
+    @Test
+    public void testEarlierTimesRecordedAtLastTime() throws Exception {
+        TimeSeriesSegment segment = TimeSeriesSegment.create(file, 4096, 1, 0);
+        segment.append(100, 1);
+        segment.append(50, 2);
+        assertEquals(segment.read(0, 1000).get(1).getTime(), 100);
+    }
+
+    @Test
+    public void testAppendFailsWhenFull() throws Exception {
+        TimeSeriesSegment segment = TimeSeriesSegment.create(file, 64, 1, 0);
+        int appended = 0;
+        while (segment.append(appended, appended)) appended++;
+        assertTrue(appended > 0);
+        assertEquals(segment.getCount(), appended);
+        assertEquals(segment.read(0, Long.MAX_VALUE).size(), appended);
+    }
+
+    @Test
+    public void testReopenedSegmentAppendsAfterReplay() throws Exception {
+        TimeSeriesSegment segment = TimeSeriesSegment.create(file, 4096, 2, 0);
+        segment.append(10, 1, 2);
+        segment.append(20, 3, 4);
+        segment.force();
+
+        TimeSeriesSegment reopened = TimeSeriesSegment.open(file);
+        assertEquals(reopened.getCount(), 2);
+        assertEquals(reopened.getLastTime(), 20);
+        reopened.append(30, 3, 5);
+
+        List<TimeSeriesSegment.Record> records = reopened.read(0, 100);
+        assertEquals(records.size(), 3);
+        assertEquals(records.get(2).getTime(), 30);
+        assertTrue(Arrays.equals(records.get(2).getValues(), new double[] {3, 5}));
+    }
+
+    @Test
+    public void testReadOnlySeesRecordsAppendedMeanwhile() throws Exception {
+        TimeSeriesSegment segment = TimeSeriesSegment.create(file, 4096, 1, 0);
+        segment.append(10, 1);
+        TimeSeriesSegment readOnly = TimeSeriesSegment.openReadOnly(file);
+        assertEquals(readOnly.read(0, 100).size(), 1);
+
+        segment.append(20, 2);
+        assertEquals(readOnly.getCount(), 2);
+        assertEquals(readOnly.read(0, 100).get(1).getValues()[0], 2d);
+    }
+
+    @Test(expectedExceptions=IllegalStateException.class)
+    public void testReadOnlyRejectsAppend() throws Exception {
+        TimeSeriesSegment.create(file, 4096, 1, 0);
+        TimeSeriesSegment.openReadOnly(file).append(10, 1);
+    }
+
+    @Test
+    public void testOutOfRangeReadIsEmpty() throws Exception {
+        TimeSeriesSegment segment = TimeSeriesSegment.create(file, 4096, 1, 100);
+        segment.append(100, 1);
+        assertFalse(segment.read(0, 99).iterator().hasNext());
+        assertFalse(segment.read(101, 200).iterator().hasNext());
+    }
+}
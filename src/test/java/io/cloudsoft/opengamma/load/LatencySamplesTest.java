@@ -0,0 +1,30 @@
+package io.cloudsoft.opengamma.load;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import org.testng.annotations.Test;
+
+public class LatencySamplesTest {
+
+    @Test
+    public void testNearestRankPercentile() {
+        long[] sorted = {10, 20, 30, 40, 50, 60, 70, 80, 90, 100};
+        assertEquals(LatencySamples.percentile(sorted, 50), 50d);
+        assertEquals(LatencySamples.percentile(sorted, 95), 100d);
+        assertEquals(LatencySamples.percentile(sorted, 11), 20d);
+        assertEquals(LatencySamples.percentile(sorted, 0), 10d);
+        assertEquals(LatencySamples.percentile(sorted, 100), 100d);
+    }
+
+    @Test
+    public void testSingleSample() {
+        assertEquals(LatencySamples.percentile(new double[] {7.5}, 99), 7.5d);
+    }
+
+    @Test
+    public void testNoSamples() {
+        assertNull(LatencySamples.percentile(new long[0], 50));
+        assertNull(LatencySamples.percentile(new double[0], 50));
+    }
+}
@@ -0,0 +1,90 @@
+package io.cloudsoft.opengamma.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+
+public class ConfigFileBundleTest {
+
+    @Test
+    public void testTarLayout() throws Exception {
+        String ini = "[global]\nport = 8080\n";
+        byte[] script = new byte[600];
+        Arrays.fill(script, (byte) 'x');
+        byte[] tar = new ConfigFileBundle()
+                .add("config/brooklyn.ini", ini)
+                .add("scripts/start.sh", script, true)
+                .toTar();
+
+        // each file is a header block then its contents padded to whole blocks; two empty blocks end the archive
+        assertEquals(tar.length, 512 + 512 + 512 + 1024 + 1024);
+
+        assertHeader(tar, 0, "config/brooklyn.ini", 0644, ini.length());
+        assertEquals(new String(tar, 512, ini.length(), Charsets.UTF_8), ini);
+        assertEquals(tar[512 + ini.length()], 0);
+
+        assertHeader(tar, 1024, "scripts/start.sh", 0755, script.length);
+        assertEquals(Arrays.copyOfRange(tar, 1536, 1536 + script.length), script);
+
+        for (int i = tar.length - 1024; i < tar.length; i++) {
+            assertEquals(tar[i], 0, "byte "+i+" of the end-of-archive blocks");
+        }
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class)
+    public void testRejectsPathTooLongForHeader() {
+        char[] path = new char[100];
+        Arrays.fill(path, 'a');
+        new ConfigFileBundle().add(new String(path), "");
+    }
+
+    @Test
+    public void testContentHashIsStable() {
+        assertEquals(bundle("a", "1", false).getContentHash(), bundle("a", "1", false).getContentHash());
+    }
+
+    @Test
+    public void testContentHashChangesWithPathContentsAndMode() {
+        String hash = bundle("a", "1", false).getContentHash();
+        assertNotEquals(bundle("b", "1", false).getContentHash(), hash);
+        assertNotEquals(bundle("a", "2", false).getContentHash(), hash);
+        assertNotEquals(bundle("a", "1", true).getContentHash(), hash);
+    }
+
+    @Test
+    public void testContentHashDistinguishesFileBoundaries() {
+        String one = new ConfigFileBundle().add("a", "bc").add("d", "").getContentHash();
+        String other = new ConfigFileBundle().add("a", "b").add("cd", "").getContentHash();
+        assertNotEquals(one, other);
+    }
+
+    private static ConfigFileBundle bundle(String path, String contents, boolean executable) {
+        return new ConfigFileBundle().add(path, contents.getBytes(Charsets.UTF_8), executable);
+    }
+
+    private static void assertHeader(byte[] tar, int offset, String path, int mode, int size) {
+        assertEquals(field(tar, offset, 100), path);
+        assertEquals(Integer.parseInt(field(tar, offset + 100, 8), 8), mode);
+        assertEquals(Integer.parseInt(field(tar, offset + 124, 12), 8), size);
+        assertEquals(tar[offset + 156], '0');
+        assertEquals(field(tar, offset + 257, 6), "ustar");
+
+        long checksum = 0;
+        for (int i = 0; i < 512; i++) {
+            checksum += (i >= 148 && i < 156) ? ' ' : tar[offset + i] & 0xff;
+        }
+        assertEquals(Long.parseLong(field(tar, offset + 148, 8), 8), checksum);
+    }
+
+    /** the NUL-terminated string in the header field */
+    private static String field(byte[] tar, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && tar[end] != 0) end++;
+        return new String(tar, offset, end - offset, Charsets.UTF_8);
+    }
+}
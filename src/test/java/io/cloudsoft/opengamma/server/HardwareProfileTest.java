@@ -0,0 +1,59 @@
+package io.cloudsoft.opengamma.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class HardwareProfileTest {
+
+    @Test
+    public void testParsesAndPrintsSpec() {
+        HardwareProfile profile = HardwareProfile.parse(" cores=4, ram=16384 ,disk=ssd");
+        assertEquals(profile.getCores(), (Integer) 4);
+        assertEquals(profile.getRamMb(), (Integer) 16384);
+        assertEquals(profile.getDiskType(), "ssd");
+        assertNull(profile.getHardwareId());
+        assertEquals(profile.toString(), "cores=4,ram=16384,disk=ssd");
+        assertEquals(HardwareProfile.parse(profile.toString()), profile);
+    }
+
+    @Test
+    public void testBlankSpecIsEmptyProfile() {
+        assertEquals(HardwareProfile.parse(""), new HardwareProfile(null, null, null, null));
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class)
+    public void testRejectsUnknownKey() {
+        HardwareProfile.parse("cores=2,gpus=1");
+    }
+
+    @Test
+    public void testParsesList() {
+        List<HardwareProfile> profiles = HardwareProfile.parseList("cores=2,ram=8192; cores=4,ram=16384;");
+        assertEquals(profiles.size(), 2);
+        assertEquals(profiles.get(1).getCores(), (Integer) 4);
+    }
+
+    @Test
+    public void testComparesByRamThenCores() {
+        HardwareProfile small = HardwareProfile.parse("cores=8,ram=8192");
+        HardwareProfile large = HardwareProfile.parse("cores=2,ram=16384");
+        assertTrue(small.isSmallerThan(large));
+        assertFalse(large.isSmallerThan(small));
+        assertTrue(HardwareProfile.parse("cores=2,ram=8192").isSmallerThan(small));
+        assertFalse(small.isSmallerThan(small));
+    }
+
+    @Test
+    public void testWithMinCores() {
+        HardwareProfile profile = HardwareProfile.parse("cores=2,ram=8192");
+        assertEquals(profile.withMinCores(4).getCores(), (Integer) 4);
+        assertEquals(profile.withMinCores(1), profile);
+        assertEquals(profile.withMinCores(null), profile);
+    }
+}
@@ -0,0 +1,84 @@
+package io.cloudsoft.opengamma.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import org.testng.annotations.Test;
+
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.basic.BasicAttributeSensor;
+
+public class IncrementalAggregatorTest {
+
+    private static final AttributeSensor<Integer> SOURCE = new BasicAttributeSensor<Integer>(Integer.class, "test.source");
+    private static final AttributeSensor<Integer> TOTAL = new BasicAttributeSensor<Integer>(Integer.class, "test.total");
+    private static final AttributeSensor<Double> MEAN = new BasicAttributeSensor<Double>(Double.class, "test.mean");
+
+    /** updated directly, as member events would, without an entity to publish to */
+    private static class UnattachedAggregator<T extends Number> extends IncrementalAggregator<T> {
+        int published;
+
+        UnattachedAggregator(AttributeSensor<T> target, boolean average) {
+            super(SOURCE, target, average);
+        }
+
+        @Override
+        protected void publish() {
+            published++;
+        }
+    }
+
+    @Test
+    public void testSumsAddedChangedAndRemovedMembers() {
+        UnattachedAggregator<Integer> aggregator = new UnattachedAggregator<Integer>(TOTAL, false);
+        aggregator.update("a", 3);
+        aggregator.update("b", 4);
+        assertEquals(aggregator.getValue(), (Integer) 7);
+
+        aggregator.update("a", 10);
+        assertEquals(aggregator.getValue(), (Integer) 14);
+
+        aggregator.update("b", null);
+        assertEquals(aggregator.getValue(), (Integer) 10);
+
+        aggregator.update("a", null);
+        assertEquals(aggregator.getValue(), (Integer) 0);
+    }
+
+    @Test
+    public void testAveragesOnlyMembersWithValues() {
+        UnattachedAggregator<Double> aggregator = new UnattachedAggregator<Double>(MEAN, true);
+        assertNull(aggregator.getValue());
+
+        aggregator.update("a", 1);
+        aggregator.update("b", 2);
+        aggregator.update("c", null);
+        assertEquals(aggregator.getValue(), 1.5d);
+
+        aggregator.update("a", null);
+        assertEquals(aggregator.getValue(), 2d);
+
+        aggregator.update("b", null);
+        assertNull(aggregator.getValue());
+    }
+
+    @Test
+    public void testUnchangedValuesAreNotPublished() {
+        UnattachedAggregator<Integer> aggregator = new UnattachedAggregator<Integer>(TOTAL, false);
+        aggregator.update("a", 3);
+        aggregator.update("a", 3);
+        aggregator.update("b", null);
+        assertEquals(aggregator.published, 1);
+    }
+
+    @Test
+    public void testSumStaysAccurateOverManyUpdates() {
+        UnattachedAggregator<Double> aggregator = new UnattachedAggregator<Double>(MEAN, true);
+        aggregator.update("fixed", 1);
+        for (int i = 0; i < IncrementalAggregator.RESUM_INTERVAL + 1; i++) {
+            aggregator.update("varying", 0.1 * (i % 7));
+        }
+        aggregator.update("varying", null);
+        assertEquals(aggregator.getValue(), 1d, 1e-12);
+    }
+}